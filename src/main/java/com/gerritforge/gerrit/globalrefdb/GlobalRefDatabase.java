@@ -14,8 +14,16 @@
 
 package com.gerritforge.gerrit.globalrefdb;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.gerrit.entities.Project;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 
@@ -52,6 +60,42 @@ public interface GlobalRefDatabase {
         "isUpToDateUnchecked() is not supported by " + this.getClass().getName());
   }
 
+  /**
+   * Check in global ref-db the state of multiple refs of the same project in a single operation.
+   *
+   * <p>Implementations should retrieve the global value of all the refs in a single round trip to
+   * the global ref-db.
+   *
+   * <p>The default implementation falls back to calling {@link
+   * #isUpToDate(com.google.gerrit.entities.Project.NameKey, Ref)} for each ref and then {@link
+   * #exists(com.google.gerrit.entities.Project.NameKey, String)} for the ones that are not
+   * up-to-date.
+   *
+   * @param project project name of the refs
+   * @param refs the local refs to be checked against global ref-db. Each ref name must appear at
+   *     most once.
+   * @return the state of each ref, keyed by ref name and in the same order of the refs
+   * @throws GlobalRefDbLockException implementation must handle operation atomicity if there was a
+   *     problem with locking ref in the ref db exception will be thrown
+   */
+  default Map<String, GlobalRefState> checkState(Project.NameKey project, Collection<Ref> refs)
+      throws GlobalRefDbLockException {
+    ImmutableMap.Builder<String, GlobalRefState> states =
+        ImmutableMap.builderWithExpectedSize(refs.size());
+    for (Ref ref : refs) {
+      GlobalRefState state;
+      if (isUpToDate(project, ref)) {
+        state = GlobalRefState.UP_TO_DATE;
+      } else if (exists(project, ref.getName())) {
+        state = GlobalRefState.OUT_OF_SYNC;
+      } else {
+        state = GlobalRefState.MISSING;
+      }
+      states.put(ref.getName(), state);
+    }
+    return states.buildOrThrow();
+  }
+
   /**
    * Compare a reference, and put if it is up-to-date with the current.
    *
@@ -76,6 +120,66 @@ public interface GlobalRefDatabase {
   boolean compareAndPut(Project.NameKey project, Ref currRef, ObjectId newRefValue)
       throws GlobalRefDbSystemError;
 
+  /**
+   * Compare a reference, and put if it is up-to-date with the current and the lease of the ref with
+   * the given fencing token is still held.
+   *
+   * <p>The update is rejected when the lease has expired or has been released, so that a node
+   * resuming after a stall cannot overwrite the updates performed by the new holder of the lease.
+   *
+   * <p>The default implementation throws {@link UnsupportedOperationException}.
+   *
+   * @param project project name of the ref
+   * @param currRef old value to compare to.
+   * @param newRefValue new reference to store.
+   * @param fencingToken the fencing token of the {@link GlobalRefLease} held on the ref
+   * @return true if the put was successful; false otherwise.
+   * @throws GlobalRefDbSystemError the reference cannot be put due to a system error.
+   */
+  default boolean compareAndPut(
+      Project.NameKey project, Ref currRef, ObjectId newRefValue, long fencingToken)
+      throws GlobalRefDbSystemError {
+    throw new UnsupportedOperationException(
+        "compareAndPut() with fencing token is not supported by " + this.getClass().getName());
+  }
+
+  /**
+   * Compare and put multiple references of the same project in a single operation.
+   *
+   * <p>Each update follows the same matching rules of {@link
+   * #compareAndPut(com.google.gerrit.entities.Project.NameKey, Ref, ObjectId)}. Implementations
+   * should execute all the updates in a single atomic round trip to the global ref-db and report
+   * the outcome of each one of them.
+   *
+   * <p>The updates having a fencing token must be rejected when the lease with that token is not
+   * held anymore, as in {@link #compareAndPut(com.google.gerrit.entities.Project.NameKey, Ref,
+   * ObjectId, long)}.
+   *
+   * <p>The default implementation falls back to calling {@link
+   * #compareAndPut(com.google.gerrit.entities.Project.NameKey, Ref, ObjectId)}, or its fenced
+   * variant, for each update, which is neither atomic nor a single round trip.
+   *
+   * @param project project name of the refs
+   * @param updates the updates to perform. Each ref name must appear at most once.
+   * @return the outcome of each update, keyed by ref name and in the same order of the updates:
+   *     true if the put was successful; false otherwise.
+   * @throws GlobalRefDbSystemError the references cannot be put due to a system error.
+   */
+  default Map<String, Boolean> compareAndPutAll(
+      Project.NameKey project, List<GlobalRefUpdate> updates) throws GlobalRefDbSystemError {
+    ImmutableMap.Builder<String, Boolean> results =
+        ImmutableMap.builderWithExpectedSize(updates.size());
+    for (GlobalRefUpdate update : updates) {
+      results.put(
+          update.getRefName(),
+          update.hasFencingToken()
+              ? compareAndPut(
+                  project, update.getCurrRef(), update.getNewRefValue(), update.getFencingToken())
+              : compareAndPut(project, update.getCurrRef(), update.getNewRefValue()));
+    }
+    return results.buildOrThrow();
+  }
+
   /**
    * Compare a value of generic type T, and put if it is up-to-date with the current.
    *
@@ -102,6 +206,68 @@ public interface GlobalRefDatabase {
    */
   AutoCloseable lockRef(Project.NameKey project, String refName) throws GlobalRefDbLockException;
 
+  /**
+   * Lock multiple references in a single request.
+   *
+   * <p>The refs are locked in the order of the set, so that concurrent requests on overlapping refs
+   * always acquire their locks in the same order and cannot deadlock. Implementations should
+   * acquire all the locks in a single round trip to the global-refdb; the default implementation
+   * locks each ref with {@link #lockRef(com.google.gerrit.entities.Project.NameKey, String)} and
+   * releases the locks already acquired if one of them cannot be obtained.
+   *
+   * @param project project name
+   * @param refNames refs to lock, in their canonical order
+   * @return lock object on all the refs, releasing them in reverse order when closed
+   * @throws GlobalRefDbLockException if any of the locks cannot be obtained
+   */
+  default AutoCloseable lockRefs(Project.NameKey project, SortedSet<String> refNames)
+      throws GlobalRefDbLockException {
+    return MultiRefLock.acquire(refNames, refName -> lockRef(project, refName));
+  }
+
+  /**
+   * Lease a reference for a limited time.
+   *
+   * <p>Unlike {@link #lockRef(com.google.gerrit.entities.Project.NameKey, String)}, the lease
+   * expires automatically unless renewed within its time-to-live, so that a node crashing whilst
+   * holding it does not block the ref until the lock is removed manually. Leases and locks are
+   * independent: all the nodes of a cluster should use the same mechanism.
+   *
+   * <p>The default implementation throws {@link UnsupportedOperationException}: callers are then
+   * expected to lock the ref instead.
+   *
+   * @param project project name
+   * @param refName ref to lease
+   * @param ttl time-to-live of the lease
+   * @return the lease of the ref
+   * @throws GlobalRefDbLockException if the lease cannot be obtained
+   */
+  default GlobalRefLease leaseRef(Project.NameKey project, String refName, Duration ttl)
+      throws GlobalRefDbLockException {
+    throw new UnsupportedOperationException(
+        "leaseRef() is not supported by " + this.getClass().getName());
+  }
+
+  /**
+   * Lock all the references of a project with a single lock.
+   *
+   * <p>The lock excludes the locks of any ref of the project, acquired with {@link
+   * #lockRef(com.google.gerrit.entities.Project.NameKey, String)} or {@link
+   * #lockRefs(com.google.gerrit.entities.Project.NameKey, SortedSet)}, so that large batches of
+   * updates can lock all their refs with one request to the global-refdb.
+   *
+   * <p>The default implementation throws {@link UnsupportedOperationException}: callers are then
+   * expected to lock the refs individually.
+   *
+   * @param project project name
+   * @return lock object on all the refs of the project
+   * @throws GlobalRefDbLockException if the lock cannot be obtained
+   */
+  default AutoCloseable lockProject(Project.NameKey project) throws GlobalRefDbLockException {
+    throw new UnsupportedOperationException(
+        "lockProject() is not supported by " + this.getClass().getName());
+  }
+
   /**
    * Verify if the DB contains a value for the specific project and ref name
    *
@@ -131,4 +297,98 @@ public interface GlobalRefDatabase {
    */
   <T> Optional<T> get(Project.NameKey project, String refName, Class<T> clazz)
       throws GlobalRefDbSystemError;
+
+  /**
+   * Asynchronous version of {@link #isUpToDate(com.google.gerrit.entities.Project.NameKey, Ref)}.
+   *
+   * <p>The default implementation executes the blocking operation on the calling thread and returns
+   * an already completed future.
+   *
+   * @param project project name of the ref
+   * @param ref to be checked against global ref-db
+   * @return future completed with true if it is up-to-date, false otherwise; or completed
+   *     exceptionally with {@link GlobalRefDbLockException} if there was a problem with locking ref
+   *     in the ref db
+   */
+  default CompletableFuture<Boolean> isUpToDateAsync(Project.NameKey project, Ref ref) {
+    return blockingCall(() -> isUpToDate(project, ref));
+  }
+
+  /**
+   * Asynchronous version of {@link #compareAndPut(com.google.gerrit.entities.Project.NameKey, Ref,
+   * ObjectId)}.
+   *
+   * <p>The default implementation executes the blocking operation on the calling thread and returns
+   * an already completed future.
+   *
+   * @param project project name of the ref
+   * @param currRef old value to compare to.
+   * @param newRefValue new reference to store.
+   * @return future completed with true if the put was successful, false otherwise; or completed
+   *     exceptionally with {@link GlobalRefDbSystemError} if the reference cannot be put due to a
+   *     system error.
+   */
+  default CompletableFuture<Boolean> compareAndPutAsync(
+      Project.NameKey project, Ref currRef, ObjectId newRefValue) {
+    return blockingCall(() -> compareAndPut(project, currRef, newRefValue));
+  }
+
+  /**
+   * Asynchronous version of {@link #lockRef(com.google.gerrit.entities.Project.NameKey, String)}.
+   *
+   * <p>The default implementation executes the blocking operation on the calling thread and returns
+   * an already completed future. Implementations whose locks are owned by the acquiring thread
+   * therefore require the returned lock to be closed by the thread that called this method, rather
+   * than by whichever thread runs the dependent stages of the future.
+   *
+   * @param project project name
+   * @param refName ref to lock
+   * @return future completed with the lock object; or completed exceptionally with {@link
+   *     GlobalRefDbLockException} if the lock cannot be obtained
+   */
+  default CompletableFuture<AutoCloseable> lockRefAsync(Project.NameKey project, String refName) {
+    return blockingCall(() -> lockRef(project, refName));
+  }
+
+  /**
+   * Asynchronous version of {@link #exists(com.google.gerrit.entities.Project.NameKey, String)}.
+   *
+   * <p>The default implementation executes the blocking operation on the calling thread and returns
+   * an already completed future.
+   *
+   * @param project name of the project containing the ref
+   * @param refName the name of the ref to check existence for
+   * @return future completed with true if the ref exists on the project, false otherwise
+   */
+  default CompletableFuture<Boolean> existsAsync(Project.NameKey project, String refName) {
+    return blockingCall(() -> exists(project, refName));
+  }
+
+  /**
+   * Asynchronous version of {@link #get(com.google.gerrit.entities.Project.NameKey, String,
+   * Class)}.
+   *
+   * <p>The default implementation executes the blocking operation on the calling thread and returns
+   * an already completed future.
+   *
+   * @param project project name
+   * @param refName reference name
+   * @param clazz wanted Class of the returned value
+   * @param <T> Type of the object associate to project and ref
+   * @return future completed with the {@link java.util.Optional} of the value; or completed
+   *     exceptionally with {@link GlobalRefDbSystemError} if the value cannot be returned due to a
+   *     system error.
+   */
+  default <T> CompletableFuture<Optional<T>> getAsync(
+      Project.NameKey project, String refName, Class<T> clazz) {
+    return blockingCall(() -> get(project, refName, clazz));
+  }
+
+  private static <T> CompletableFuture<T> blockingCall(Callable<T> operation) {
+    try {
+      return CompletableFuture.completedFuture(operation.call());
+    } catch (Exception e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
 }
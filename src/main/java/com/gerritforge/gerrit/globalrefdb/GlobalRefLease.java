@@ -0,0 +1,50 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb;
+
+/**
+ * Lock on a ref which expires automatically unless renewed within its time-to-live, so that a node
+ * crashing or stalling whilst holding it does not block the ref across the cluster.
+ *
+ * <p>Each lease carries a fencing token, strictly greater than the ones of all the leases granted
+ * before on the same global-refdb. Updates performed under a lease pass its token to {@link
+ * GlobalRefDatabase#compareAndPut(com.google.gerrit.entities.Project.NameKey,
+ * org.eclipse.jgit.lib.Ref, org.eclipse.jgit.lib.ObjectId, long)}, which rejects them once the
+ * lease has expired, even if its holder has not noticed yet.
+ */
+public interface GlobalRefLease extends AutoCloseable {
+
+  /**
+   * Get the fencing token of the lease.
+   *
+   * @return the fencing token
+   */
+  long getFencingToken();
+
+  /**
+   * Extend the lease by its time-to-live.
+   *
+   * @throws GlobalRefDbLockException if the lease has expired or has been released
+   */
+  void renew() throws GlobalRefDbLockException;
+
+  /**
+   * Release the lease, unless it has already expired or been taken over.
+   *
+   * @throws GlobalRefDbLockException if the lease cannot be released
+   */
+  @Override
+  void close() throws GlobalRefDbLockException;
+}
@@ -0,0 +1,30 @@
+// Copyright (C) 2026 GerritForge Ltd
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb;
+
+/**
+ * State of a local ref compared to its value in the global-refdb, as returned by {@link
+ * GlobalRefDatabase#checkState(com.google.gerrit.entities.Project.NameKey, java.util.Collection)}.
+ */
+public enum GlobalRefState {
+  /** The local ref is up-to-date with the global-refdb. */
+  UP_TO_DATE,
+
+  /** The global-refdb contains a different value for the ref. */
+  OUT_OF_SYNC,
+
+  /** The local ref is not up-to-date and the global-refdb does not contain any value for it. */
+  MISSING;
+}
@@ -0,0 +1,114 @@
+// Copyright (C) 2026 GerritForge Ltd
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.base.MoreObjects;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+
+/**
+ * A single compare-and-put of a ref, submitted to the global-refdb as part of a {@link
+ * GlobalRefDatabase#compareAndPutAll(com.google.gerrit.entities.Project.NameKey, java.util.List)}
+ * batch.
+ */
+public class GlobalRefUpdate {
+  private static final long NO_FENCING_TOKEN = -1L;
+
+  private final Ref currRef;
+  private final ObjectId newRefValue;
+  private final long fencingToken;
+
+  /**
+   * Constructs a {@code GlobalRefUpdate} of a ref from its expected current value to a new one.
+   *
+   * @param currRef old value to compare to. If the reference is expected to not exist the old value
+   *     has a storage of {@link org.eclipse.jgit.lib.Ref.Storage#NEW} and an ObjectId value of
+   *     {@code null}.
+   * @param newRefValue new reference to store.
+   */
+  public GlobalRefUpdate(Ref currRef, ObjectId newRefValue) {
+    this(currRef, newRefValue, NO_FENCING_TOKEN);
+  }
+
+  /**
+   * Constructs a {@code GlobalRefUpdate} of a ref held with a {@link GlobalRefLease}, which must be
+   * rejected once the lease is not held anymore.
+   *
+   * @param currRef old value to compare to.
+   * @param newRefValue new reference to store.
+   * @param fencingToken the fencing token of the lease held on the ref
+   */
+  public GlobalRefUpdate(Ref currRef, ObjectId newRefValue, long fencingToken) {
+    this.currRef = requireNonNull(currRef, "currRef");
+    this.newRefValue = newRefValue;
+    this.fencingToken = fencingToken;
+  }
+
+  /**
+   * Get the name of the ref to update
+   *
+   * @return the ref name
+   */
+  public String getRefName() {
+    return currRef.getName();
+  }
+
+  /**
+   * Get the expected current value of the ref in the global-refdb
+   *
+   * @return the ref with its expected current value
+   */
+  public Ref getCurrRef() {
+    return currRef;
+  }
+
+  /**
+   * Get the new value to store for the ref
+   *
+   * @return the new value of the ref
+   */
+  public ObjectId getNewRefValue() {
+    return newRefValue;
+  }
+
+  /**
+   * Check whether the update is performed under a lease of the ref
+   *
+   * @return true when the update has a fencing token, false otherwise.
+   */
+  public boolean hasFencingToken() {
+    return fencingToken != NO_FENCING_TOKEN;
+  }
+
+  /**
+   * Get the fencing token of the lease held on the ref
+   *
+   * @return the fencing token, only meaningful when {@link #hasFencingToken()}
+   */
+  public long getFencingToken() {
+    return fencingToken;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("refName", currRef.getName())
+        .add("currValue", currRef.getObjectId() == null ? null : currRef.getObjectId().name())
+        .add("newValue", newRefValue == null ? null : newRefValue.name())
+        .toString();
+  }
+}
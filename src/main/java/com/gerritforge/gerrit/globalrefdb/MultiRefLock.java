@@ -0,0 +1,112 @@
+// Copyright (C) 2026 GerritForge Ltd
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+
+/**
+ * Lock on multiple refs, acquired one by one in the canonical order of their names and released in
+ * the reverse order.
+ *
+ * <p>Acquiring the locks always in the same order guarantees that two concurrent batches sharing
+ * some of their refs cannot deadlock each other.
+ */
+public class MultiRefLock implements AutoCloseable {
+
+  /**
+   * Function for locking a single ref.
+   *
+   * @param <E> Type of the exception thrown when the lock cannot be obtained
+   */
+  @FunctionalInterface
+  public interface RefLockFunction<E extends Exception> {
+    AutoCloseable lockRef(String refName) throws E;
+  }
+
+  private final List<AutoCloseable> locks;
+
+  private MultiRefLock(List<AutoCloseable> locks) {
+    this.locks = locks;
+  }
+
+  /**
+   * Lock all the refs, in the order of the set.
+   *
+   * <p>When one of the locks cannot be obtained, the ones already acquired are released before
+   * throwing the exception.
+   *
+   * @param refNames names of the refs to lock
+   * @param lockFunction function locking a single ref
+   * @param <E> Type of the exception thrown when the lock cannot be obtained
+   * @return the lock on all the refs
+   * @throws E if one of the locks cannot be obtained
+   */
+  public static <E extends Exception> MultiRefLock acquire(
+      SortedSet<String> refNames, RefLockFunction<E> lockFunction) throws E {
+    List<AutoCloseable> locks = new ArrayList<>(refNames.size());
+    try {
+      for (String refName : refNames) {
+        locks.add(lockFunction.lockRef(refName));
+      }
+    } catch (Exception e) {
+      try {
+        new MultiRefLock(locks).close();
+      } catch (IOException | RuntimeException releaseException) {
+        e.addSuppressed(releaseException);
+      }
+      throw e;
+    }
+    return new MultiRefLock(locks);
+  }
+
+  /**
+   * Release all the locks in the reverse order of their acquisition.
+   *
+   * <p>All the locks are released even when some of them fail to close.
+   *
+   * @throws IOException the first exception thrown when releasing the locks, wrapped in an {@link
+   *     IOException} unless it is already one, or an unchecked exception
+   */
+  @Override
+  public void close() throws IOException {
+    Exception closeException = null;
+    for (int i = locks.size() - 1; i >= 0; i--) {
+      try {
+        locks.get(i).close();
+      } catch (Exception e) {
+        if (closeException == null) {
+          closeException = e;
+        } else {
+          closeException.addSuppressed(e);
+        }
+      }
+    }
+    if (closeException instanceof IOException) {
+      throw (IOException) closeException;
+    }
+    if (closeException instanceof RuntimeException) {
+      throw (RuntimeException) closeException;
+    }
+    if (closeException != null) {
+      if (closeException instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+      }
+      throw new IOException("Unable to release the locks of the refs", closeException);
+    }
+  }
+}
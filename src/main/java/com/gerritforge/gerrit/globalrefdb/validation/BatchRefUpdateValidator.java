@@ -14,18 +14,31 @@
 
 package com.gerritforge.gerrit.globalrefdb.validation;
 
+import static com.google.common.flogger.LazyArgs.lazy;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefState;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefUpdate;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.OutOfSyncException;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedDbSplitBrainException;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement.Policy;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.entities.Project;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import org.eclipse.jgit.lib.BatchRefUpdate;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectIdRef;
@@ -47,6 +60,9 @@ public class BatchRefUpdateValidator extends RefUpdateValidator {
     void apply(BatchRefUpdate batchRefUpdate, NoParameterVoidFunction arg) throws IOException;
   }
 
+  private final int chunkSize;
+  private final int projectLockThreshold;
+
   /**
    * Constructs a {@code BatchRefUpdateValidator} able to check the validity of batch ref-updates
    * against global refdb before execution.
@@ -61,15 +77,74 @@ public class BatchRefUpdateValidator extends RefUpdateValidator {
    * @param ignoredRefs A set of refs for which updates should not be checked against the shared
    *     ref-db
    */
+  public BatchRefUpdateValidator(
+      SharedRefDatabaseWrapper sharedRefDb,
+      ValidationMetrics validationMetrics,
+      SharedRefEnforcement refEnforcement,
+      ProjectsFilter projectsFilter,
+      String projectName,
+      RefDatabase refDb,
+      ImmutableSet<String> ignoredRefs) {
+    this(
+        sharedRefDb,
+        validationMetrics,
+        refEnforcement,
+        projectsFilter,
+        projectName,
+        refDb,
+        ignoredRefs,
+        0,
+        0);
+  }
+
+  /**
+   * Constructs a {@code BatchRefUpdateValidator} able to check the validity of batch ref-updates
+   * against global refdb before execution, splitting the large non-atomic ones in chunks of the
+   * configured size and locking the whole project in the global refdb for the largest ones.
+   *
+   * @param sharedRefDb an instance of the global refdb to check for out-of-sync refs.
+   * @param validationMetrics to update validation results, such as split-brains.
+   * @param refEnforcement Specific ref enforcements for this project.
+   * @param projectsFilter filter to match whether the project being updated should be validated
+   *     against global refdb
+   * @param cfg configuration of the shared ref-db
+   * @param projectName the name of the project being updated.
+   * @param refDb for ref operations
+   * @param ignoredRefs A set of refs for which updates should not be checked against the shared
+   *     ref-db
+   */
   @Inject
   public BatchRefUpdateValidator(
       SharedRefDatabaseWrapper sharedRefDb,
       ValidationMetrics validationMetrics,
       SharedRefEnforcement refEnforcement,
       ProjectsFilter projectsFilter,
+      SharedRefDbConfiguration cfg,
       @Assisted String projectName,
       @Assisted RefDatabase refDb,
       @Assisted ImmutableSet<String> ignoredRefs) {
+    this(
+        sharedRefDb,
+        validationMetrics,
+        refEnforcement,
+        projectsFilter,
+        projectName,
+        refDb,
+        ignoredRefs,
+        cfg.getSharedRefDb().getBatchChunkSize(),
+        cfg.getSharedRefDb().getProjectLockThreshold());
+  }
+
+  private BatchRefUpdateValidator(
+      SharedRefDatabaseWrapper sharedRefDb,
+      ValidationMetrics validationMetrics,
+      SharedRefEnforcement refEnforcement,
+      ProjectsFilter projectsFilter,
+      String projectName,
+      RefDatabase refDb,
+      ImmutableSet<String> ignoredRefs,
+      int chunkSize,
+      int projectLockThreshold) {
     super(
         sharedRefDb,
         validationMetrics,
@@ -78,6 +153,8 @@ public class BatchRefUpdateValidator extends RefUpdateValidator {
         projectName,
         refDb,
         ignoredRefs);
+    this.chunkSize = chunkSize;
+    this.projectLockThreshold = projectLockThreshold;
   }
 
   /**
@@ -105,35 +182,122 @@ public class BatchRefUpdateValidator extends RefUpdateValidator {
       NoParameterVoidFunction batchRefUpdateFunction,
       OneParameterVoidFunction<List<ReceiveCommand>> batchRefUpdateRollbackFunction)
       throws IOException {
-    if (refEnforcement.getPolicy(projectName) == Policy.EXCLUDE || !isGlobalProject(projectName)) {
+    executeBatchUpdateWithValidation(
+        batchRefUpdate, batchRefUpdateFunction, null, batchRefUpdateRollbackFunction);
+  }
+
+  /**
+   * Same as {@link #executeBatchUpdateWithValidation(BatchRefUpdate, NoParameterVoidFunction,
+   * OneParameterVoidFunction)}, but a non-atomic batchRefUpdate with more commands than the
+   * configured {@code ref-database.batchChunkSize} is validated and applied in chunks: the refs of
+   * each chunk are locked, updated locally and in the global refdb, and then unlocked, before
+   * moving to the next chunk.
+   *
+   * @param batchRefUpdate batchRefUpdate object
+   * @param batchRefUpdateFunction batchRefUpdate function to execute upon validation
+   * @param batchRefUpdateChunkFunction function applying a chunk of the commands of the
+   *     batchRefUpdate, or null for never splitting it
+   * @param batchRefUpdateRollbackFunction function to invoke when the ref-update needs to be rolled
+   *     back
+   * @throws IOException batch update failed
+   */
+  public void executeBatchUpdateWithValidation(
+      BatchRefUpdate batchRefUpdate,
+      NoParameterVoidFunction batchRefUpdateFunction,
+      OneParameterVoidFunction<List<ReceiveCommand>> batchRefUpdateChunkFunction,
+      OneParameterVoidFunction<List<ReceiveCommand>> batchRefUpdateRollbackFunction)
+      throws IOException {
+    Policy projectPolicy = refEnforcement.getPolicy(projectName);
+    if (projectPolicy == Policy.EXCLUDE || !isGlobalProject(projectName)) {
       batchRefUpdateFunction.invoke();
       return;
     }
 
     try {
-      doExecuteBatchUpdate(batchRefUpdate, batchRefUpdateFunction, batchRefUpdateRollbackFunction);
+      if (batchRefUpdateChunkFunction != null && isToBeChunked(batchRefUpdate)) {
+        executeBatchUpdateInChunks(
+            batchRefUpdate, batchRefUpdateChunkFunction, batchRefUpdateRollbackFunction);
+      } else {
+        doExecuteBatchUpdate(
+            batchRefUpdate::getCommands,
+            batchRefUpdate.isAtomic(),
+            batchRefUpdateFunction,
+            batchRefUpdateRollbackFunction);
+      }
     } catch (IOException e) {
       logger.atWarning().withCause(e).log(
           "Failed to execute Batch Update on project %s", projectName);
-      if (refEnforcement.getPolicy(projectName) == Policy.INCLUDE) {
+      if (projectPolicy == Policy.INCLUDE) {
         throw e;
       }
     }
   }
 
-  private void doExecuteBatchUpdate(
+  /**
+   * Validates and applies the commands of the batchRefUpdate one chunk at a time. A chunk that
+   * fails does not prevent the next ones from being applied: its commands which have not been
+   * executed are rejected, and the first failure is thrown once all the chunks have been processed.
+   */
+  private void executeBatchUpdateInChunks(
       BatchRefUpdate batchRefUpdate,
+      OneParameterVoidFunction<List<ReceiveCommand>> batchRefUpdateChunkFunction,
+      OneParameterVoidFunction<List<ReceiveCommand>> batchRefUpdateRollbackFunction)
+      throws IOException {
+    IOException chunksFailure = null;
+    for (List<ReceiveCommand> chunk : Lists.partition(batchRefUpdate.getCommands(), chunkSize)) {
+      try {
+        doExecuteBatchUpdate(
+            () -> chunk,
+            false,
+            () -> batchRefUpdateChunkFunction.invoke(chunk),
+            batchRefUpdateRollbackFunction);
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log(
+            "Failed to execute a chunk of %d commands of Batch Update on project %s, moving to the"
+                + " next chunk",
+            chunk.size(), projectName);
+        rejectNotAttempted(chunk, e);
+        if (chunksFailure == null) {
+          chunksFailure = e;
+        } else {
+          chunksFailure.addSuppressed(e);
+        }
+      }
+    }
+    if (chunksFailure != null) {
+      throw chunksFailure;
+    }
+  }
+
+  private static void rejectNotAttempted(List<ReceiveCommand> commands, IOException failure) {
+    for (ReceiveCommand command : commands) {
+      if (command.getResult() == ReceiveCommand.Result.NOT_ATTEMPTED) {
+        command.setResult(
+            ReceiveCommand.Result.REJECTED_OTHER_REASON,
+            "global refdb validation failed: " + failure.getMessage());
+      }
+    }
+  }
+
+  private boolean isToBeChunked(BatchRefUpdate batchRefUpdate) {
+    return chunkSize > 0
+        && !batchRefUpdate.isAtomic()
+        && batchRefUpdate.getCommands().size() > chunkSize;
+  }
+
+  private void doExecuteBatchUpdate(
+      Supplier<List<ReceiveCommand>> batchCommands,
+      boolean atomic,
       NoParameterVoidFunction delegateUpdate,
       OneParameterVoidFunction<List<ReceiveCommand>> delegateUpdateRollback)
       throws IOException {
 
-    List<ReceiveCommand> commands = batchRefUpdate.getCommands();
+    List<ReceiveCommand> commands = batchCommands.get();
     if (commands.isEmpty()) {
       return;
     }
 
-    List<RefUpdateSnapshot> refsToUpdate =
-        getRefUpdateSnapshots(commands).collect(Collectors.toList());
+    List<RefUpdateSnapshot> refsToUpdate = getRefUpdateSnapshots(commands);
     List<RefUpdateSnapshot> refsFailures =
         refsToUpdate.stream().filter(RefUpdateSnapshot::hasFailed).collect(Collectors.toList());
     if (!refsFailures.isEmpty()) {
@@ -151,24 +315,31 @@ public class BatchRefUpdateValidator extends RefUpdateValidator {
       final List<RefUpdateSnapshot> finalRefsToUpdate =
           compareAndGetLatestLocalRefs(refsToUpdate, locks);
       delegateUpdate.invoke();
-      boolean sharedDbUpdateSucceeded = false;
+      SharedRefDbUpdateOutcome outcome = SharedRefDbUpdateOutcome.FAILED;
       try {
-        updateSharedRefDb(batchRefUpdate.getCommands().stream(), finalRefsToUpdate);
-        sharedDbUpdateSucceeded = true;
+        outcome = updateSharedRefDb(batchCommands.get(), finalRefsToUpdate, atomic);
       } catch (Exception e) {
         logger.atWarning().withCause(e).log(
             "Batch ref-update failed because of failure during the global refdb update.");
       } finally {
-        if (!sharedDbUpdateSucceeded) {
-          List<ReceiveCommand> receiveCommands = batchRefUpdate.getCommands();
+        if (outcome.allFailed) {
+          List<ReceiveCommand> receiveCommands = batchCommands.get();
           logger.atWarning().log(
               "Batch ref-update failed, set all commands Result to LOCK_FAILURE [%d]",
               commands.size());
           rollback(delegateUpdateRollback, finalRefsToUpdate, receiveCommands);
+        } else if (!outcome.failedRefs.isEmpty()) {
+          List<RefUpdateSnapshot> refsToRollback = outcome.failedRefs;
+          List<ReceiveCommand> receiveCommands = commandsOf(batchCommands.get(), refsToRollback);
+          logger.atWarning().log(
+              "Batch ref-update partially failed, set the Result of %d out of %d commands to"
+                  + " LOCK_FAILURE",
+              receiveCommands.size(), commands.size());
+          rollback(delegateUpdateRollback, refsToRollback, receiveCommands);
         }
       }
     } catch (OutOfSyncException e) {
-      List<ReceiveCommand> receiveCommands = batchRefUpdate.getCommands();
+      List<ReceiveCommand> receiveCommands = batchCommands.get();
       logger.atWarning().withCause(e).log(
           "Batch ref-update failing because node is out of sync with the shared ref-db. Set all"
               + " commands Result to LOCK_FAILURE [%d]",
@@ -195,54 +366,231 @@ public class BatchRefUpdateValidator extends RefUpdateValidator {
     receiveCommands.forEach(command -> command.setResult(ReceiveCommand.Result.LOCK_FAILURE));
   }
 
-  private void updateSharedRefDb(
-      Stream<ReceiveCommand> commandStream, List<RefUpdateSnapshot> refsToUpdate)
+  private static List<ReceiveCommand> commandsOf(
+      List<ReceiveCommand> commands, List<RefUpdateSnapshot> refUpdateSnapshots) {
+    Set<String> refNames =
+        refUpdateSnapshots.stream().map(RefUpdateSnapshot::getName).collect(Collectors.toSet());
+    return commands.stream()
+        .filter(command -> refNames.contains(command.getRefName()))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Persists in the global refdb the refs updated locally.
+   *
+   * <p>An atomic batch is persisted only when all of its commands succeeded locally, and any ref
+   * that cannot be persisted fails the whole batch. The refs of a non-atomic batch are persisted
+   * independently: only those which have been updated locally are persisted and only those which
+   * cannot be persisted need to be rolled back.
+   *
+   * @param commands the commands of the batch, after their local execution
+   * @param refsToUpdate the snapshots of the refs updated by the commands
+   * @param atomic whether the batch is atomic
+   * @return the outcome of the update, with the snapshots of the refs of a non-atomic batch that
+   *     need to be rolled back
+   * @throws IOException if a local ref does not have the expected value
+   * @throws SharedDbSplitBrainException if any ref of an atomic batch cannot be persisted
+   */
+  private SharedRefDbUpdateOutcome updateSharedRefDb(
+      List<ReceiveCommand> commands, List<RefUpdateSnapshot> refsToUpdate, boolean atomic)
       throws IOException {
-    if (commandStream.anyMatch(cmd -> cmd.getResult() != ReceiveCommand.Result.OK)) {
-      return;
+    Set<String> updatedRefNames = new HashSet<>();
+    for (ReceiveCommand command : commands) {
+      if (command.getResult() == ReceiveCommand.Result.OK) {
+        updatedRefNames.add(command.getRefName());
+      } else if (atomic) {
+        return SharedRefDbUpdateOutcome.SUCCEEDED;
+      }
     }
 
+    List<RefUpdateSnapshot> refsToPersist = new ArrayList<>(refsToUpdate.size());
     for (RefUpdateSnapshot refUpdateSnapshot : refsToUpdate) {
-      updateSharedDbOrThrowExceptionFor(refUpdateSnapshot);
+      if (getPolicy(refUpdateSnapshot) != Policy.EXCLUDE
+          && updatedRefNames.contains(refUpdateSnapshot.getName())) {
+        refsToPersist.add(refUpdateSnapshot);
+      }
+    }
+    if (refsToPersist.isEmpty()) {
+      return SharedRefDbUpdateOutcome.SUCCEEDED;
     }
-  }
 
-  private Stream<RefUpdateSnapshot> getRefUpdateSnapshots(List<ReceiveCommand> receivedCommands) {
-    return receivedCommands.stream().map(this::getRefUpdateSnapshotForCommand);
-  }
+    if (!sharedRefDb.isNoop()) {
+      String[] refNames = new String[refsToPersist.size()];
+      for (int i = 0; i < refNames.length; i++) {
+        refNames[i] = refsToPersist.get(i).getName();
+      }
+      Map<String, Ref> localRefs = refDb.exactRef(refNames);
+      for (RefUpdateSnapshot refUpdateSnapshot : refsToPersist) {
+        checkLocalRefIsUpdated(refUpdateSnapshot, localRefs.get(refUpdateSnapshot.getName()));
+      }
+    }
 
-  private RefUpdateSnapshot getRefUpdateSnapshotForCommand(ReceiveCommand command) {
+    List<GlobalRefUpdate> sharedRefUpdates = new ArrayList<>(refsToPersist.size());
+    for (RefUpdateSnapshot refUpdateSnapshot : refsToPersist) {
+      sharedRefUpdates.add(
+          new GlobalRefUpdate(refUpdateSnapshot.getRef(), refUpdateSnapshot.getNewValue()));
+    }
+
+    Map<String, Boolean> results;
     try {
-      switch (command.getType()) {
-        case CREATE:
-          return new RefUpdateSnapshot(nullRef(command.getRefName()), getNewValue(command));
+      results = sharedRefDb.compareAndPutAll(Project.nameKey(projectName), sharedRefUpdates);
+    } catch (GlobalRefDbSystemError e) {
+      logger.atWarning().withCause(e).log(
+          "Not able to persist the data in global-refdb for project '%s' and %d refs, message: %s",
+          projectName, sharedRefUpdates.size(), e.getMessage());
+      throw e;
+    }
+
+    List<RefUpdateSnapshot> refsNotPersisted = new ArrayList<>();
+    for (RefUpdateSnapshot refUpdateSnapshot : refsToPersist) {
+      if (!Boolean.TRUE.equals(results.get(refUpdateSnapshot.getName()))) {
+        if (atomic) {
+          throw newSplitBrainException(
+              refUpdateSnapshot.getName(), refUpdateSnapshot.getNewValue());
+        }
+        refsNotPersisted.add(refUpdateSnapshot);
+      }
+    }
+
+    if (refsNotPersisted.isEmpty()) {
+      return SharedRefDbUpdateOutcome.SUCCEEDED;
+    }
 
-        case UPDATE:
-        case UPDATE_NONFASTFORWARD:
-          return new RefUpdateSnapshot(getCurrentRef(command.getRefName()), getNewValue(command));
+    logger.atWarning().log(
+        "Not able to persist %d out of %d refs of project '%s' in global-refdb, they will be"
+            + " rolled back: %s",
+        refsNotPersisted.size(),
+        refsToPersist.size(),
+        projectName,
+        lazy(
+            () ->
+                refsNotPersisted.stream()
+                    .map(RefUpdateSnapshot::getName)
+                    .collect(Collectors.joining(", "))));
+    return SharedRefDbUpdateOutcome.partiallyFailed(refsNotPersisted);
+  }
 
-        case DELETE:
-          return new RefUpdateSnapshot(getCurrentRef(command.getRefName()), ObjectId.zeroId());
+  /**
+   * Takes the snapshots of the refs updated by the commands, reading all the current refs with one
+   * lookup of the local refdb.
+   */
+  private List<RefUpdateSnapshot> getRefUpdateSnapshots(List<ReceiveCommand> receivedCommands) {
+    List<String> existingRefNames = new ArrayList<>(receivedCommands.size());
+    for (ReceiveCommand command : receivedCommands) {
+      if (command.getType() != ReceiveCommand.Type.CREATE) {
+        existingRefNames.add(command.getRefName());
+      }
+    }
 
-        default:
-          return new RefUpdateSnapshot(
-              command.getRef(),
-              new IllegalArgumentException("Unsupported command type " + command.getType()));
+    Map<String, Ref> currentRefs = Map.of();
+    IOException readFailure = null;
+    if (!existingRefNames.isEmpty()) {
+      try {
+        currentRefs = refDb.exactRef(existingRefNames.toArray(new String[0]));
+      } catch (IOException e) {
+        readFailure = e;
       }
-    } catch (IOException e) {
-      return new RefUpdateSnapshot(command.getRef(), e);
+    }
+
+    List<RefUpdateSnapshot> snapshots = new ArrayList<>(receivedCommands.size());
+    for (ReceiveCommand command : receivedCommands) {
+      snapshots.add(getRefUpdateSnapshotForCommand(command, currentRefs, readFailure));
+    }
+    return snapshots;
+  }
+
+  private RefUpdateSnapshot getRefUpdateSnapshotForCommand(
+      ReceiveCommand command, Map<String, Ref> currentRefs, IOException readFailure) {
+    String refName = command.getRefName();
+    switch (command.getType()) {
+      case CREATE:
+        return new RefUpdateSnapshot(nullRef(refName), getNewValue(command), getPolicy(refName));
+
+      case UPDATE:
+      case UPDATE_NONFASTFORWARD:
+        if (readFailure != null) {
+          return new RefUpdateSnapshot(command.getRef(), readFailure);
+        }
+        return new RefUpdateSnapshot(
+            currentRef(refName, currentRefs), getNewValue(command), getPolicy(refName));
+
+      case DELETE:
+        if (readFailure != null) {
+          return new RefUpdateSnapshot(command.getRef(), readFailure);
+        }
+        return new RefUpdateSnapshot(
+            currentRef(refName, currentRefs), ObjectId.zeroId(), getPolicy(refName));
+
+      default:
+        return new RefUpdateSnapshot(
+            command.getRef(),
+            new IllegalArgumentException("Unsupported command type " + command.getType()));
     }
   }
 
+  private static Ref currentRef(String refName, Map<String, Ref> currentRefs) {
+    Ref currentRef = currentRefs.get(refName);
+    return currentRef == null ? nullRef(refName) : currentRef;
+  }
+
+  private Policy getPolicy(String refName) {
+    return refEnforcement.getPolicy(projectName, refName);
+  }
+
   private ObjectId getNewValue(ReceiveCommand command) {
     return command.getNewId();
   }
 
   private List<RefUpdateSnapshot> compareAndGetLatestLocalRefs(
       List<RefUpdateSnapshot> refsToUpdate, CloseableSet<AutoCloseable> locks) throws IOException {
-    List<RefUpdateSnapshot> latestRefsToUpdate = new ArrayList<>();
+    SortedSet<String> refNamesToLock = new TreeSet<>();
+    for (RefUpdateSnapshot refUpdateSnapshot : refsToUpdate) {
+      if (getPolicy(refUpdateSnapshot) != Policy.EXCLUDE) {
+        refNamesToLock.add(refUpdateSnapshot.getName());
+      }
+    }
+
+    if (projectLockThreshold > 0 && refNamesToLock.size() > projectLockThreshold) {
+      lockRefsWithProjectLock(refNamesToLock, locks);
+    } else if (!refNamesToLock.isEmpty()) {
+      lockRefs(refNamesToLock, locks);
+    }
+
+    // All the locked refs are read again with one lookup, now that they cannot change anymore
+    Map<String, Ref> latestRefs =
+        refNamesToLock.isEmpty() ? Map.of() : refDb.exactRef(refNamesToLock.toArray(new String[0]));
+    List<RefUpdateSnapshot> latestRefsToUpdate = new ArrayList<>(refsToUpdate.size());
+    List<RefUpdateSnapshot> latestRefsToCheck = new ArrayList<>(refNamesToLock.size());
     for (RefUpdateSnapshot refUpdateSnapshot : refsToUpdate) {
-      latestRefsToUpdate.add(compareAndGetLatestLocalRef(refUpdateSnapshot, locks));
+      if (getPolicy(refUpdateSnapshot) == Policy.EXCLUDE) {
+        latestRefsToUpdate.add(refUpdateSnapshot);
+        continue;
+      }
+
+      RefUpdateSnapshot latestRefUpdateSnapshot =
+          refUpdateSnapshot.withRef(currentRef(refUpdateSnapshot.getName(), latestRefs));
+      latestRefsToUpdate.add(latestRefUpdateSnapshot);
+      latestRefsToCheck.add(latestRefUpdateSnapshot);
+    }
+
+    if (latestRefsToCheck.isEmpty()) {
+      return latestRefsToUpdate;
+    }
+
+    Map<String, GlobalRefState> globalRefStates =
+        sharedRefDb.checkState(
+            Project.nameKey(projectName),
+            latestRefsToCheck.stream().map(RefUpdateSnapshot::getRef).collect(Collectors.toList()));
+    for (RefUpdateSnapshot latestRefUpdateSnapshot : latestRefsToCheck) {
+      GlobalRefState globalRefState = globalRefStates.get(latestRefUpdateSnapshot.getName());
+      if (globalRefState == GlobalRefState.UP_TO_DATE) {
+        continue;
+      }
+
+      // A ref without a state in the global-refdb cannot be trusted to be up-to-date
+      if (globalRefState != GlobalRefState.MISSING || isNullRef(latestRefUpdateSnapshot.getRef())) {
+        preventSplitBrain(latestRefUpdateSnapshot, getPolicy(latestRefUpdateSnapshot));
+      }
     }
     return latestRefsToUpdate;
   }
@@ -250,4 +598,26 @@ public class BatchRefUpdateValidator extends RefUpdateValidator {
   private static final Ref nullRef(String refName) {
     return new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, refName, ObjectId.zeroId());
   }
+
+  /** Outcome of persisting the refs of a batch in the global refdb. */
+  private static class SharedRefDbUpdateOutcome {
+    /** No ref needs to be rolled back. */
+    static final SharedRefDbUpdateOutcome SUCCEEDED =
+        new SharedRefDbUpdateOutcome(false, List.of());
+
+    /** The global refdb could not be updated: all the refs need to be rolled back. */
+    static final SharedRefDbUpdateOutcome FAILED = new SharedRefDbUpdateOutcome(true, List.of());
+
+    final boolean allFailed;
+    final List<RefUpdateSnapshot> failedRefs;
+
+    static SharedRefDbUpdateOutcome partiallyFailed(List<RefUpdateSnapshot> failedRefs) {
+      return new SharedRefDbUpdateOutcome(false, failedRefs);
+    }
+
+    private SharedRefDbUpdateOutcome(boolean allFailed, List<RefUpdateSnapshot> failedRefs) {
+      this.allFailed = allFailed;
+      this.failedRefs = failedRefs;
+    }
+  }
 }
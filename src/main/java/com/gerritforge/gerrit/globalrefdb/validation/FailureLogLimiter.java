@@ -0,0 +1,79 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDBMetrics.Operation;
+import com.google.common.base.Ticker;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Limits the logging of the failures of global-refdb operations to at most one for each type of
+ * operation within an interval, so that an unavailable global-refdb does not flood the logs.
+ *
+ * <p>The failures which are not logged are counted and reported along with the next one logged.
+ */
+class FailureLogLimiter {
+  static final long NOT_LOGGED = -1L;
+
+  private static final long NEVER = Long.MIN_VALUE;
+
+  private final long intervalNanos;
+  private final Ticker ticker;
+  private final AtomicLongArray lastLoggedNanos;
+  private final AtomicLongArray notLogged;
+
+  /**
+   * Constructs a {@code FailureLogLimiter}.
+   *
+   * @param interval minimum time between two logged failures of the same type of operation, or 0
+   *     for logging all failures
+   * @param unit unit of the interval
+   * @param ticker source of the time
+   */
+  FailureLogLimiter(long interval, TimeUnit unit, Ticker ticker) {
+    this.intervalNanos = unit.toNanos(interval);
+    this.ticker = ticker;
+    int operations = Operation.values().length;
+    this.lastLoggedNanos = new AtomicLongArray(operations);
+    this.notLogged = new AtomicLongArray(operations);
+    for (int i = 0; i < operations; i++) {
+      lastLoggedNanos.set(i, NEVER);
+    }
+  }
+
+  /**
+   * Check whether a failure of the operation should be logged.
+   *
+   * @param operation the operation that failed
+   * @return the number of failures of the operation not logged since the last one logged, or {@link
+   *     #NOT_LOGGED} when this failure should not be logged either
+   */
+  long tryLog(Operation operation) {
+    if (intervalNanos <= 0) {
+      return 0L;
+    }
+
+    int index = operation.ordinal();
+    long now = ticker.read();
+    long lastLogged = lastLoggedNanos.get(index);
+    if ((lastLogged != NEVER && now - lastLogged < intervalNanos)
+        || !lastLoggedNanos.compareAndSet(index, lastLogged, now)) {
+      notLogged.incrementAndGet(index);
+      return NOT_LOGGED;
+    }
+    return notLogged.getAndSet(index, 0L);
+  }
+}
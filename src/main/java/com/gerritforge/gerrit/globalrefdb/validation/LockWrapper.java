@@ -14,10 +14,13 @@
 
 package com.gerritforge.gerrit.globalrefdb.validation;
 
+import com.google.common.collect.ImmutableList;
+import java.util.Collection;
+
 /** Wrapper around an {@link AutoCloseable} lock to allow logging of resource releasing. */
 public class LockWrapper implements AutoCloseable {
   private final String project;
-  private final String refName;
+  private final Collection<String> refNames;
   private final AutoCloseable lock;
   private final SharedRefLogger sharedRefLogger;
   private final SharedRefLogger.Scope scope;
@@ -37,12 +40,32 @@ public class LockWrapper implements AutoCloseable {
       String refName,
       AutoCloseable lock,
       SharedRefLogger.Scope scope) {
+    this(sharedRefLogger, project, ImmutableList.of(refName), lock, scope);
+  }
+
+  /**
+   * Constructs a {@code LockWrapper} object for multiple refNames of a project, which wraps a held
+   * lock on all of them, so that their details can be logged upon closure.
+   *
+   * @param sharedRefLogger to log the releasing of the lock
+   * @param project the project the lock has been acquired for
+   * @param refNames the refNames the lock has been acquired for
+   * @param lock the acquired lock
+   */
+  public LockWrapper(
+      SharedRefLogger sharedRefLogger,
+      String project,
+      Collection<String> refNames,
+      AutoCloseable lock,
+      SharedRefLogger.Scope scope) {
     this.lock = lock;
     this.sharedRefLogger = sharedRefLogger;
     this.project = project;
-    this.refName = refName;
+    this.refNames = refNames;
     this.scope = scope;
-    sharedRefLogger.logLockAcquisition(project, refName, scope);
+    for (String refName : refNames) {
+      sharedRefLogger.logLockAcquisition(project, refName, scope);
+    }
   }
 
   /**
@@ -53,6 +76,8 @@ public class LockWrapper implements AutoCloseable {
   @Override
   public void close() throws Exception {
     lock.close();
-    sharedRefLogger.logLockRelease(project, refName, scope);
+    for (String refName : refNames) {
+      sharedRefLogger.logLockRelease(project, refName, scope);
+    }
   }
 }
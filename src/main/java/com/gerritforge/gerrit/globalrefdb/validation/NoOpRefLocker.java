@@ -17,6 +17,7 @@ package com.gerritforge.gerrit.globalrefdb.validation;
 import com.gerritforge.gerrit.globalrefdb.RefDbLockException;
 import com.google.gerrit.entities.Project;
 import com.google.inject.Singleton;
+import java.util.SortedSet;
 
 @Singleton
 class NoOpRefLocker implements RefLocker {
@@ -27,4 +28,10 @@ class NoOpRefLocker implements RefLocker {
   public AutoCloseable lockRef(Project.NameKey project, String refName) throws RefDbLockException {
     return () -> {};
   }
+
+  @Override
+  public AutoCloseable lockRefs(Project.NameKey project, SortedSet<String> refNames)
+      throws RefDbLockException {
+    return () -> {};
+  }
 }
@@ -0,0 +1,201 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDatabase;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefState;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefUpdate;
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.entities.Project;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import org.eclipse.jgit.lib.Ref;
+
+/**
+ * Executes the per-ref operations of the bulk global-refdb calls in parallel, on virtual threads.
+ * The number of operations executed at the same time is bounded across all the batch ref-updates
+ * sharing the instance. Virtual threads are not pooled, hence there is nothing to shut down.
+ *
+ * <p>It is meant for the {@link GlobalRefDatabase} implementations relying on the default {@link
+ * GlobalRefDatabase#checkState(Project.NameKey, Collection)} and {@link
+ * GlobalRefDatabase#compareAndPutAll(Project.NameKey, List)}, which otherwise wait for one round
+ * trip to the global refdb per ref. The results are aggregated in the same order of the refs.
+ */
+class ParallelRefOperations {
+  private static final ClassValue<Boolean> HAS_DEFAULT_BULK_OPERATIONS =
+      new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+          try {
+            return type.getMethod("checkState", Project.NameKey.class, Collection.class)
+                        .getDeclaringClass()
+                    == GlobalRefDatabase.class
+                && type.getMethod("compareAndPutAll", Project.NameKey.class, List.class)
+                        .getDeclaringClass()
+                    == GlobalRefDatabase.class;
+          } catch (NoSuchMethodException e) {
+            return false;
+          }
+        }
+      };
+
+  private final ExecutorService executor =
+      Executors.newThreadPerTaskExecutor(
+          Thread.ofVirtual().name("global-refdb-batch-", 0).factory());
+  private final Semaphore permits;
+
+  /**
+   * Constructs a {@code ParallelRefOperations}.
+   *
+   * @param parallelism maximum number of per-ref operations executed at the same time
+   */
+  ParallelRefOperations(int parallelism) {
+    this.permits = new Semaphore(parallelism);
+  }
+
+  /**
+   * Check whether the global refdb performs the bulk operations one ref at a time.
+   *
+   * @param globalRefDb the global refdb
+   * @return true when the global refdb does not implement its own bulk operations, false otherwise.
+   */
+  static boolean hasDefaultBulkOperations(GlobalRefDatabase globalRefDb) {
+    return HAS_DEFAULT_BULK_OPERATIONS.get(globalRefDb.getClass());
+  }
+
+  /**
+   * Same as {@link GlobalRefDatabase#checkState(Project.NameKey, Collection)}, checking the refs in
+   * parallel.
+   *
+   * @param globalRefDb the global refdb
+   * @param project project name of the refs
+   * @param refs the local refs to be checked against global ref-db
+   * @return the state of each ref, keyed by ref name and in the same order of the refs
+   * @throws GlobalRefDbLockException if the state of any ref cannot be checked
+   */
+  Map<String, GlobalRefState> checkState(
+      GlobalRefDatabase globalRefDb, Project.NameKey project, Collection<Ref> refs)
+      throws GlobalRefDbLockException {
+    List<String> refNames = new ArrayList<>(refs.size());
+    List<Callable<GlobalRefState>> tasks = new ArrayList<>(refs.size());
+    for (Ref ref : refs) {
+      refNames.add(ref.getName());
+      tasks.add(
+          () -> {
+            if (globalRefDb.isUpToDate(project, ref)) {
+              return GlobalRefState.UP_TO_DATE;
+            }
+            return globalRefDb.exists(project, ref.getName())
+                ? GlobalRefState.OUT_OF_SYNC
+                : GlobalRefState.MISSING;
+          });
+    }
+    return invokeAll(refNames, tasks);
+  }
+
+  /**
+   * Same as {@link GlobalRefDatabase#compareAndPutAll(Project.NameKey, List)}, executing the
+   * updates in parallel.
+   *
+   * @param globalRefDb the global refdb
+   * @param project project name of the refs
+   * @param updates the updates to perform
+   * @return the outcome of each update, keyed by ref name and in the same order of the updates
+   */
+  Map<String, Boolean> compareAndPutAll(
+      GlobalRefDatabase globalRefDb, Project.NameKey project, List<GlobalRefUpdate> updates) {
+    List<String> refNames = new ArrayList<>(updates.size());
+    List<Callable<Boolean>> tasks = new ArrayList<>(updates.size());
+    for (GlobalRefUpdate update : updates) {
+      refNames.add(update.getRefName());
+      tasks.add(
+          () ->
+              update.hasFencingToken()
+                  ? globalRefDb.compareAndPut(
+                      project,
+                      update.getCurrRef(),
+                      update.getNewRefValue(),
+                      update.getFencingToken())
+                  : globalRefDb.compareAndPut(
+                      project, update.getCurrRef(), update.getNewRefValue()));
+    }
+    try {
+      return invokeAll(refNames, tasks);
+    } catch (GlobalRefDbLockException e) {
+      throw new GlobalRefDbSystemError(e.getMessage(), e);
+    }
+  }
+
+  private <T> Map<String, T> invokeAll(List<String> refNames, List<Callable<T>> tasks)
+      throws GlobalRefDbLockException {
+    List<Callable<T>> boundedTasks = new ArrayList<>(tasks.size());
+    for (Callable<T> task : tasks) {
+      boundedTasks.add(
+          () -> {
+            permits.acquire();
+            try {
+              return task.call();
+            } finally {
+              permits.release();
+            }
+          });
+    }
+
+    List<Future<T>> futures;
+    try {
+      futures = executor.invokeAll(boundedTasks);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GlobalRefDbSystemError("Interrupted while waiting for the global refdb", e);
+    }
+
+    ImmutableMap.Builder<String, T> results = ImmutableMap.builderWithExpectedSize(tasks.size());
+    for (int i = 0; i < futures.size(); i++) {
+      results.put(refNames.get(i), getResult(futures.get(i)));
+    }
+    return results.buildOrThrow();
+  }
+
+  private static <T> T getResult(Future<T> future) throws GlobalRefDbLockException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GlobalRefDbSystemError("Interrupted while waiting for the global refdb", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof GlobalRefDbLockException) {
+        throw (GlobalRefDbLockException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new GlobalRefDbSystemError("Global refdb operation failed", (Exception) cause);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import com.gerritforge.gerrit.globalrefdb.RefDbLockException;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.gerrit.entities.Project;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locks the refs of this node with one fair lock per project and ref name, so that concurrent
+ * updates of the same ref queue locally before reaching the global refdb.
+ *
+ * <p>The locks are created when first needed and weakly referenced, so that they are discarded once
+ * neither held nor awaited: updates of different refs never share a lock, whatever the size of the
+ * batches. Locks are acquired within a configurable timeout and must be released by the same thread
+ * that acquired them. The locks of multiple refs are acquired in the canonical order of their
+ * names, so that two concurrent batches cannot deadlock each other.
+ */
+@Singleton
+public class PerRefLocker implements RefLocker {
+  private final LoadingCache<Map.Entry<Project.NameKey, String>, ReentrantLock> locks =
+      CacheBuilder.newBuilder().weakValues().build(CacheLoader.from(() -> new ReentrantLock(true)));
+  private final long lockTimeoutMsec;
+
+  /**
+   * Constructs a {@code PerRefLocker} with the timeout configured in {@code
+   * ref-database.localLockTimeout}.
+   *
+   * @param cfg configuration of the shared ref-db
+   */
+  @Inject
+  public PerRefLocker(SharedRefDbConfiguration cfg) {
+    this(cfg.getSharedRefDb().getLocalLockTimeoutMsec(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Constructs a {@code PerRefLocker}.
+   *
+   * @param lockTimeout maximum time to wait for acquiring the lock of a ref
+   * @param lockTimeoutUnit unit of the lock timeout
+   */
+  public PerRefLocker(long lockTimeout, TimeUnit lockTimeoutUnit) {
+    this.lockTimeoutMsec = lockTimeoutUnit.toMillis(lockTimeout);
+  }
+
+  @Override
+  public AutoCloseable lockRef(Project.NameKey project, String refName) throws RefDbLockException {
+    ReentrantLock lock = locks.getUnchecked(Map.entry(project, refName));
+    try {
+      if (!lock.tryLock(lockTimeoutMsec, TimeUnit.MILLISECONDS)) {
+        throw new RefDbLockException(
+            project.get(),
+            refName,
+            new TimeoutException(
+                String.format("Local lock not acquired within %d msec", lockTimeoutMsec)));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RefDbLockException(project.get(), refName, e);
+    }
+    return new RefLock(lock);
+  }
+
+  private static class RefLock implements AutoCloseable {
+    private final ReentrantLock lock;
+    private boolean released;
+
+    private RefLock(ReentrantLock lock) {
+      this.lock = lock;
+    }
+
+    @Override
+    public void close() {
+      if (!released) {
+        released = true;
+        lock.unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,154 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable set of prefixes, compiled into a trie for checking whether a string starts with any of
+ * them in a time proportional to the length of the string, regardless of the number of prefixes.
+ *
+ * <p>Instances are thread-safe and can be shared freely.
+ */
+public final class PrefixTrie {
+  private static final PrefixTrie EMPTY = new PrefixTrie(null);
+
+  // Keyed by identity: the same set instance is typically handed to all the repositories.
+  private static final LoadingCache<ImmutableSet<String>, PrefixTrie> SHARED_TRIES =
+      CacheBuilder.newBuilder().weakKeys().build(CacheLoader.from(PrefixTrie::of));
+
+  private final Node root;
+
+  private PrefixTrie(Node root) {
+    this.root = root;
+  }
+
+  /**
+   * Compile a set of prefixes into a trie.
+   *
+   * @param prefixes the prefixes to match
+   * @return the trie matching any of the prefixes
+   */
+  public static PrefixTrie of(Iterable<String> prefixes) {
+    NodeBuilder root = null;
+    for (String prefix : prefixes) {
+      if (root == null) {
+        root = new NodeBuilder();
+      }
+      root.add(prefix);
+    }
+    return root == null ? EMPTY : new PrefixTrie(root.build());
+  }
+
+  /**
+   * Get the trie of an immutable set of prefixes, compiling it only the first time the set instance
+   * is seen, so that all the callers sharing the same set share the same trie as well.
+   *
+   * @param prefixes the prefixes to match
+   * @return the trie matching any of the prefixes
+   */
+  public static PrefixTrie ofShared(ImmutableSet<String> prefixes) {
+    if (prefixes.isEmpty()) {
+      return EMPTY;
+    }
+    return SHARED_TRIES.getUnchecked(prefixes);
+  }
+
+  /**
+   * Check whether the trie does not contain any prefix.
+   *
+   * @return true when no prefix has been compiled, false otherwise.
+   */
+  public boolean isEmpty() {
+    return root == null;
+  }
+
+  /**
+   * Check whether the value starts with any of the prefixes of the trie.
+   *
+   * @param value the value to check
+   * @return true when at least one of the prefixes is a prefix of the value, false otherwise.
+   */
+  public boolean matchesPrefixOf(CharSequence value) {
+    Node node = root;
+    if (node == null) {
+      return false;
+    }
+    int length = value.length();
+    for (int i = 0; i < length && !node.terminal; i++) {
+      node = node.child(value.charAt(i));
+      if (node == null) {
+        return false;
+      }
+    }
+    return node.terminal;
+  }
+
+  private static final class Node {
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private final boolean terminal;
+    private final char[] keys;
+    private final Node[] children;
+
+    private Node(boolean terminal, char[] keys, Node[] children) {
+      this.terminal = terminal;
+      this.keys = keys;
+      this.children = children;
+    }
+
+    private Node child(char key) {
+      int index = Arrays.binarySearch(keys, key);
+      return index < 0 ? null : children[index];
+    }
+  }
+
+  private static final class NodeBuilder {
+    private final Map<Character, NodeBuilder> children = new TreeMap<>();
+    private boolean terminal;
+
+    private void add(String prefix) {
+      NodeBuilder node = this;
+      for (int i = 0; i < prefix.length(); i++) {
+        node = node.children.computeIfAbsent(prefix.charAt(i), c -> new NodeBuilder());
+      }
+      node.terminal = true;
+    }
+
+    private Node build() {
+      // Children of a terminal node are never visited, because all of their values already match.
+      if (terminal || children.isEmpty()) {
+        return new Node(terminal, Node.NO_KEYS, Node.NO_CHILDREN);
+      }
+
+      char[] keys = new char[children.size()];
+      Node[] nodes = new Node[children.size()];
+      int i = 0;
+      for (Map.Entry<Character, NodeBuilder> child : children.entrySet()) {
+        keys[i] = child.getKey();
+        nodes[i] = child.getValue().build();
+        i++;
+      }
+      return new Node(false, keys, nodes);
+    }
+  }
+}
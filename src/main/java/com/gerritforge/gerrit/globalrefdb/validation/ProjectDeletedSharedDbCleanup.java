@@ -28,18 +28,24 @@ public class ProjectDeletedSharedDbCleanup implements ProjectDeletedListener {
 
   private final ValidationMetrics validationMetrics;
 
+  private final ProjectsFilter projectsFilter;
+
   /**
-   * Constructs a {@code ProjectDeletedSharedDbCleanup} with the provided validation metrics and
-   * shared ref-database
+   * Constructs a {@code ProjectDeletedSharedDbCleanup} with the provided validation metrics, shared
+   * ref-database and projects filter
    *
    * @param sharedDb global refdb used to validate project deletion
    * @param validationMetrics to increase split-brain upon project failed validation
+   * @param projectsFilter filter whose cached match of the deleted project is discarded
    */
   @Inject
   public ProjectDeletedSharedDbCleanup(
-      SharedRefDatabaseWrapper sharedDb, ValidationMetrics validationMetrics) {
+      SharedRefDatabaseWrapper sharedDb,
+      ValidationMetrics validationMetrics,
+      ProjectsFilter projectsFilter) {
     this.sharedDb = sharedDb;
     this.validationMetrics = validationMetrics;
+    this.projectsFilter = projectsFilter;
   }
 
   /**
@@ -55,8 +61,10 @@ public class ProjectDeletedSharedDbCleanup implements ProjectDeletedListener {
     logger.atInfo().log(
         "Deleting project '%s'. Will perform a cleanup in Shared-Ref database.", projectName);
 
+    Project.NameKey projectNameKey = Project.nameKey(projectName);
+    projectsFilter.invalidate(projectNameKey);
     try {
-      sharedDb.remove(Project.nameKey(projectName));
+      sharedDb.remove(projectNameKey);
     } catch (GlobalRefDbSystemError e) {
       validationMetrics.incrementSplitBrain();
       logger.atSevere().withCause(e).log(
@@ -14,16 +14,27 @@
 
 package com.gerritforge.gerrit.globalrefdb.validation;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
-import com.google.common.collect.Sets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.gerrit.entities.Project;
 import com.google.gerrit.entities.Project.NameKey;
+import com.google.gerrit.metrics.DisabledMetricMaker;
 import com.google.gerrit.server.events.Event;
 import com.google.gerrit.server.events.ProjectEvent;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+import org.eclipse.jgit.errors.ConfigInvalidException;
 
 // import com.google.gerrit.entities.AccessSection;
 
@@ -31,7 +42,10 @@ import java.util.Set;
  * Filter to match against project names to indicate whether a project should be validated against a
  * global refdb.
  *
- * <p>Filters are computed by reading the configuration of the libModule consuming this library.
+ * <p>Filters are computed by reading the configuration of the libModule consuming this library. All
+ * the patterns are compiled once: exact names into a hash set, wildcards into a {@link PrefixTrie}
+ * and regular expressions into a single alternation, so that the cost of matching a project name
+ * does not grow with the number of patterns.
  */
 @Singleton
 public class ProjectsFilter {
@@ -71,18 +85,59 @@ public class ProjectsFilter {
     }
   }
 
-  private Set<NameKey> globalProjects = Sets.newConcurrentHashSet();
-  private Set<NameKey> localProjects = Sets.newConcurrentHashSet();
-  private final List<String> projectPatterns;
+  private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\(?:[1-9]|k<)");
+
+  private final SharedRefDBMetrics metrics;
+  private final AtomicReference<CompiledPatterns> compiledPatterns;
 
   /**
-   * Constructs a {@code ProjectsFilter} by providing the libModule configuration
+   * Constructs a {@code ProjectsFilter} by providing the libModule configuration, without exposing
+   * the metrics of its cache.
    *
    * @param cfg the libModule configuration
    */
-  @Inject
   public ProjectsFilter(SharedRefDbConfiguration cfg) {
-    projectPatterns = cfg.projects().getPatterns();
+    this(cfg, new SharedRefDBMetrics(new DisabledMetricMaker()));
+  }
+
+  /**
+   * Constructs a {@code ProjectsFilter} by providing the libModule configuration and the metrics
+   * for monitoring its cache.
+   *
+   * @param cfg the libModule configuration
+   * @param metrics metrics of the global refdb
+   */
+  @Inject
+  public ProjectsFilter(SharedRefDbConfiguration cfg, SharedRefDBMetrics metrics) {
+    this.metrics = metrics;
+    AtomicReference<CompiledPatterns> patterns =
+        new AtomicReference<>(new CompiledPatterns(cfg.projects()));
+    this.compiledPatterns = patterns;
+    cfg.addReloadListener(reloadedCfg -> prepareReload(reloadedCfg, patterns));
+  }
+
+  /**
+   * Compiles the patterns of the reloaded configuration, returning the action atomically replacing
+   * the current ones and discarding all the cached matches.
+   *
+   * @param cfg the reloaded libModule configuration
+   * @return the action applying the compiled patterns
+   * @throws ConfigInvalidException if a regular expression is invalid
+   */
+  Runnable prepareReload(SharedRefDbConfiguration cfg) throws ConfigInvalidException {
+    return prepareReload(cfg, compiledPatterns);
+  }
+
+  private static Runnable prepareReload(
+      SharedRefDbConfiguration cfg, AtomicReference<CompiledPatterns> compiledPatterns)
+      throws ConfigInvalidException {
+    CompiledPatterns newPatterns;
+    try {
+      newPatterns = new CompiledPatterns(cfg.projects());
+    } catch (PatternSyntaxException e) {
+      throw new ConfigInvalidException("Invalid project pattern: " + e.getMessage(), e);
+    }
+    return () -> compiledPatterns.set(newPatterns);
   }
 
   /**
@@ -125,38 +180,112 @@ public class ProjectsFilter {
       throw new IllegalArgumentException(
           String.format("Project name cannot be null or empty, but was %s", name));
     }
-    if (projectPatterns.isEmpty() || globalProjects.contains(name)) {
+    CompiledPatterns patterns = compiledPatterns.get();
+    if (patterns.matchAll) {
       return true;
     }
 
-    if (localProjects.contains(name)) {
-      return false;
+    Boolean matched = patterns.matchedProjects.getIfPresent(name);
+    if (matched != null) {
+      metrics.incrementProjectsFilterCacheHits();
+      return matched;
     }
 
-    String projectName = name.get();
+    metrics.incrementProjectsFilterCacheMisses();
+    boolean matches = patterns.matches(name.get());
+    patterns.matchedProjects.put(name, matches);
+    return matches;
+  }
+
+  /**
+   * Discards the cached match of a project, typically because the project has been deleted.
+   *
+   * @param name the name of the project
+   */
+  public void invalidate(Project.NameKey name) {
+    compiledPatterns.get().matchedProjects.invalidate(name);
+  }
+
+  @VisibleForTesting
+  long cacheSize() {
+    return compiledPatterns.get().matchedProjects.size();
+  }
+
+  /** Project patterns compiled from one version of the configuration, with their matches cache. */
+  private static class CompiledPatterns {
+    private final boolean matchAll;
+    private final Set<String> exactNames;
+    private final PrefixTrie wildcardPrefixes;
+    private final ImmutableList<Pattern> regexes;
+    private final Cache<NameKey, Boolean> matchedProjects;
 
-    for (String pattern : projectPatterns) {
-      if (matchesPattern(projectName, pattern)) {
-        globalProjects.add(name);
+    private CompiledPatterns(SharedRefDbConfiguration.Projects projects) {
+      List<String> projectPatterns = projects.getPatterns();
+      matchAll = projectPatterns.isEmpty();
+      exactNames =
+          projectPatterns.stream()
+              .filter(p -> PatternType.getPatternType(p) == PatternType.EXACT_MATCH)
+              .collect(ImmutableSet.toImmutableSet());
+      wildcardPrefixes =
+          PrefixTrie.of(
+              projectPatterns.stream()
+                  .filter(p -> PatternType.getPatternType(p) == PatternType.WILDCARD)
+                  .map(p -> p.substring(0, p.length() - 1))
+                  .collect(Collectors.toList()));
+      regexes =
+          compileRegexes(
+              projectPatterns.stream()
+                  .filter(p -> PatternType.getPatternType(p) == PatternType.REGEX)
+                  .collect(Collectors.toList()));
+      matchedProjects = CacheBuilder.newBuilder().maximumSize(projects.getCacheSize()).build();
+    }
+
+    private boolean matches(String projectName) {
+      if (exactNames.contains(projectName) || wildcardPrefixes.matchesPrefixOf(projectName)) {
         return true;
       }
+      for (Pattern regex : regexes) {
+        if (regex.matcher(projectName).matches()) {
+          return true;
+        }
+      }
+      return false;
     }
-    localProjects.add(name);
-    return false;
   }
 
-  private boolean matchesPattern(String projectName, String pattern) {
-    boolean match = false;
-    switch (PatternType.getPatternType(pattern)) {
-      case REGEX:
-        match = projectName.matches(pattern);
-        break;
-      case WILDCARD:
-        match = projectName.startsWith(pattern.substring(0, pattern.length() - 1));
-        break;
-      case EXACT_MATCH:
-        match = projectName.equals(pattern);
+  /**
+   * Compile the regular expressions into as few patterns as possible.
+   *
+   * <p>Expressions are joined into a single alternation, with the exception of the ones using
+   * back-references, whose group numbers would be shifted by the alternation. Expressions whose
+   * named groups clash with each other are compiled separately as well.
+   */
+  private static ImmutableList<Pattern> compileRegexes(List<String> patterns) {
+    ImmutableList.Builder<Pattern> regexes = ImmutableList.builder();
+    List<Pattern> combinable = new ArrayList<>(patterns.size());
+    for (String pattern : patterns) {
+      // Compiling every expression on its own reports the invalid ones with their own position.
+      Pattern regex = Pattern.compile(pattern);
+      if (BACK_REFERENCE.matcher(pattern).find()) {
+        regexes.add(regex);
+      } else {
+        combinable.add(regex);
+      }
+    }
+
+    if (combinable.size() == 1) {
+      regexes.add(combinable.get(0));
+    } else if (!combinable.isEmpty()) {
+      try {
+        regexes.add(
+            Pattern.compile(
+                combinable.stream()
+                    .map(p -> "(?:" + p.pattern() + ")")
+                    .collect(Collectors.joining("|"))));
+      } catch (PatternSyntaxException e) {
+        regexes.addAll(combinable);
+      }
     }
-    return match;
+    return regexes.build();
   }
 }
@@ -14,11 +14,18 @@
 
 package com.gerritforge.gerrit.globalrefdb.validation;
 
+import com.gerritforge.gerrit.globalrefdb.MultiRefLock;
 import com.gerritforge.gerrit.globalrefdb.RefDbLockException;
 import com.google.gerrit.entities.Project;
 import com.google.inject.ImplementedBy;
+import java.util.SortedSet;
 
-@ImplementedBy(NoOpRefLocker.class)
+@ImplementedBy(PerRefLocker.class)
 public interface RefLocker {
   AutoCloseable lockRef(Project.NameKey project, String refName) throws RefDbLockException;
+
+  default AutoCloseable lockRefs(Project.NameKey project, SortedSet<String> refNames)
+      throws RefDbLockException {
+    return MultiRefLock.acquire(refNames, refName -> lockRef(project, refName));
+  }
 }
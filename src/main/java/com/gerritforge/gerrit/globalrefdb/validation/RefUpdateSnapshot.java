@@ -14,6 +14,7 @@
 
 package com.gerritforge.gerrit.globalrefdb.validation;
 
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement.Policy;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 
@@ -22,11 +23,15 @@ import org.eclipse.jgit.lib.Ref;
  * Ref}. This is used to snapshot the current status of a ref update so that validations against the
  * global refdb are unaffected by changes on the underlying {@link
  * org.eclipse.jgit.lib.RefDatabase}.
+ *
+ * <p>The enforcement policy of the ref can be resolved once, when taking the snapshot, and carried
+ * along with it throughout the validation.
  */
 class RefUpdateSnapshot {
   private final Ref ref;
   private final ObjectId newValue;
   private final Exception exception;
+  private final Policy policy;
 
   /**
    * Constructs a {@code RefUpdateSnapshot} with the provided old and new values. The old value of
@@ -36,12 +41,26 @@ class RefUpdateSnapshot {
    * @param newRefValue the new (candidate) value for this ref.
    */
   RefUpdateSnapshot(Ref ref, ObjectId newRefValue) {
+    this(ref, newRefValue, null);
+  }
+
+  /**
+   * Constructs a {@code RefUpdateSnapshot} with the provided old and new values and the enforcement
+   * policy of the ref. The old value of this Ref must not be null, otherwise an {@link
+   * IllegalArgumentException} is thrown.
+   *
+   * @param ref the ref with its old value
+   * @param newRefValue the new (candidate) value for this ref.
+   * @param policy the enforcement policy of the ref, or null when not resolved yet.
+   */
+  RefUpdateSnapshot(Ref ref, ObjectId newRefValue, Policy policy) {
     if (ref == null) {
       throw new IllegalArgumentException("RefUpdateSnapshot cannot be created for null Ref");
     }
     this.ref = ref;
     this.newValue = newRefValue;
     this.exception = null;
+    this.policy = policy;
   }
 
   /**
@@ -55,6 +74,17 @@ class RefUpdateSnapshot {
     this.ref = ref;
     this.newValue = ObjectId.zeroId();
     this.exception = e;
+    this.policy = null;
+  }
+
+  /**
+   * Get a snapshot of the same update with a more recent old value of the ref.
+   *
+   * @param latestRef the ref with its latest old value
+   * @return the snapshot with the latest old value, the same new value and the same policy.
+   */
+  RefUpdateSnapshot withRef(Ref latestRef) {
+    return new RefUpdateSnapshot(latestRef, newValue, policy);
   }
 
   /**
@@ -102,6 +132,15 @@ class RefUpdateSnapshot {
     return exception;
   }
 
+  /**
+   * Get the enforcement policy of the ref resolved when taking the snapshot
+   *
+   * @return the enforcement policy of the ref, or null when it has not been resolved.
+   */
+  public Policy getPolicy() {
+    return policy;
+  }
+
   /**
    * Whether retrieving the new (candidate) value failed
    *
@@ -17,19 +17,24 @@ package com.gerritforge.gerrit.globalrefdb.validation;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
 import com.gerritforge.gerrit.globalrefdb.RefDbLockException;
+import com.gerritforge.gerrit.globalrefdb.validation.SharedRefLogger.Scope;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.OutOfSyncException;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedDbSplitBrainException;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement.Policy;
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.entities.Project;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Optional;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectIdRef;
 import org.eclipse.jgit.lib.Ref;
@@ -48,7 +53,7 @@ public class RefUpdateValidator {
   protected final RefDatabase refDb;
   protected final SharedRefEnforcement refEnforcement;
   protected final ProjectsFilter projectsFilter;
-  private final ImmutableSet<String> ignoredRefs;
+  private final PrefixTrie ignoredRefs;
 
   /** {@code RefUpdateValidator} Factory for Guice assisted injection. */
   public interface Factory {
@@ -107,7 +112,7 @@ public class RefUpdateValidator {
     this.sharedRefDb = sharedRefDb;
     this.validationMetrics = validationMetrics;
     this.refDb = refDb;
-    this.ignoredRefs = ignoredRefs;
+    this.ignoredRefs = PrefixTrie.ofShared(ignoredRefs);
     this.projectName = projectName;
     this.refEnforcement = refEnforcement;
     this.projectsFilter = projectsFilter;
@@ -151,9 +156,8 @@ public class RefUpdateValidator {
     return doExecuteRefUpdate(refUpdate, refUpdateFunction, rollbackFunction);
   }
 
-  private Boolean isRefToBeIgnored(String refName) {
-    Boolean isRefToBeIgnored =
-        ignoredRefs.stream().anyMatch(ignoredRefPrefix -> refName.startsWith(ignoredRefPrefix));
+  private boolean isRefToBeIgnored(String refName) {
+    boolean isRefToBeIgnored = ignoredRefs.matchesPrefixOf(refName);
     logger.atFine().log("Is project version update? %b", isRefToBeIgnored);
     return isRefToBeIgnored;
   }
@@ -192,9 +196,16 @@ public class RefUpdateValidator {
         if (isSuccessful(result)) {
           result = RefUpdate.Result.LOCK_FAILURE;
         }
-        logger.atSevere().withCause(e).log(
-            "Failed to update global refdb, the local refdb has been rolled back: %s",
-            e.getMessage());
+        if (e instanceof SharedDbSplitBrainException && isLockFree(refUpdateSnapshot.getName())) {
+          logger.atWarning().log(
+              "Concurrent update of lock-free ref %s:%s detected by the global refdb, the local"
+                  + " refdb has been rolled back",
+              projectName, refUpdateSnapshot.getName());
+        } else {
+          logger.atSevere().withCause(e).log(
+              "Failed to update global refdb, the local refdb has been rolled back: %s",
+              e.getMessage());
+        }
       }
       return result;
     } catch (RefDbLockException e) {
@@ -210,32 +221,13 @@ public class RefUpdateValidator {
   protected void updateSharedDbOrThrowExceptionFor(RefUpdateSnapshot refSnapshot)
       throws IOException {
     // We are not checking refs that should be ignored
-    final Policy refEnforcementPolicy =
-        refEnforcement.getPolicy(projectName, refSnapshot.getName());
-    if (refEnforcementPolicy == Policy.EXCLUDE) {
+    if (getPolicy(refSnapshot) == Policy.EXCLUDE) {
       return;
     }
 
     boolean succeeded;
     try {
-      if (!sharedRefDb.isNoop()) {
-        ObjectId localObjectId =
-            Optional.ofNullable(refDb.findRef(refSnapshot.getName()))
-                .map(Ref::getObjectId)
-                .orElse(ObjectId.zeroId());
-        if (!localObjectId.equals(refSnapshot.getNewValue())) {
-          String error =
-              String.format(
-                  "Aborting the global-refdb update of %s = %s: local ref value is %s instead of"
-                      + " the expected value %s",
-                  refSnapshot.getName(),
-                  refSnapshot.getNewValue(),
-                  localObjectId.name(),
-                  refSnapshot.getNewValue());
-          logger.atSevere().log("%s", error);
-          throw new IOException(error);
-        }
-      }
+      checkLocalRefIsUpdated(refSnapshot);
 
       succeeded =
           sharedRefDb.compareAndPut(
@@ -249,30 +241,75 @@ public class RefUpdateValidator {
     }
 
     if (!succeeded) {
-      String errorMessage =
+      throw newSplitBrainException(refSnapshot.getName(), refSnapshot.getNewValue());
+    }
+  }
+
+  /**
+   * Checks that the local ref has been updated to the new value of the snapshot, before propagating
+   * the update to the global refdb.
+   *
+   * @param refSnapshot the snapshot of the ref update
+   * @throws IOException if the local ref value is not the expected one
+   */
+  protected void checkLocalRefIsUpdated(RefUpdateSnapshot refSnapshot) throws IOException {
+    if (sharedRefDb.isNoop()) {
+      return;
+    }
+
+    checkLocalRefIsUpdated(refSnapshot, refDb.findRef(refSnapshot.getName()));
+  }
+
+  /**
+   * Checks that the local ref, already read from the local refdb, has been updated to the new value
+   * of the snapshot.
+   *
+   * @param refSnapshot the snapshot of the ref update
+   * @param localRef the local ref, or null when it does not exist
+   * @throws IOException if the local ref value is not the expected one
+   */
+  protected void checkLocalRefIsUpdated(RefUpdateSnapshot refSnapshot, Ref localRef)
+      throws IOException {
+    ObjectId localObjectId =
+        localRef == null || localRef.getObjectId() == null
+            ? ObjectId.zeroId()
+            : localRef.getObjectId();
+    if (!localObjectId.equals(refSnapshot.getNewValue())) {
+      String error =
           String.format(
-              "Not able to persist the data in SharedRef for project '%s' and ref '%s',"
-                  + "the cluster is now in Split Brain since the commit has been "
-                  + "persisted locally but not in global-refdb the value %s",
-              projectName, refSnapshot.getName(), refSnapshot.getNewValue());
-      throw new SharedDbSplitBrainException(errorMessage);
+              "Aborting the global-refdb update of %s = %s: local ref value is %s instead of"
+                  + " the expected value %s",
+              refSnapshot.getName(),
+              refSnapshot.getNewValue(),
+              localObjectId.name(),
+              refSnapshot.getNewValue());
+      logger.atSevere().log("%s", error);
+      throw new IOException(error);
     }
   }
 
+  protected SharedDbSplitBrainException newSplitBrainException(String refName, Object newValue) {
+    return new SharedDbSplitBrainException(
+        String.format(
+            "Not able to persist the data in SharedRef for project '%s' and ref '%s',"
+                + "the cluster is now in Split Brain since the commit has been "
+                + "persisted locally but not in global-refdb the value %s",
+            projectName, refName, newValue));
+  }
+
   protected RefUpdateSnapshot compareAndGetLatestLocalRef(
       RefUpdateSnapshot refUpdateSnapshot, CloseableSet<AutoCloseable> locks)
       throws GlobalRefDbLockException, OutOfSyncException, IOException {
     String refName = refUpdateSnapshot.getName();
-    Policy refEnforcementPolicy = refEnforcement.getPolicy(projectName, refName);
+    Policy refEnforcementPolicy = getPolicy(refUpdateSnapshot);
     if (refEnforcementPolicy == Policy.EXCLUDE) {
       return refUpdateSnapshot;
     }
 
-    String sharedLockKey = String.format("%s:%s", projectName, refName);
-    String localLockKey = String.format("%s:local", sharedLockKey);
     Project.NameKey projectKey = Project.nameKey(projectName);
-    locks.addResourceIfNotExist(localLockKey, () -> sharedRefDb.lockLocalRef(projectKey, refName));
-    locks.addResourceIfNotExist(sharedLockKey, () -> sharedRefDb.lockRef(projectKey, refName));
+    if (!isLockFree(refName)) {
+      lockRef(refName, locks);
+    }
 
     RefUpdateSnapshot latestRefUpdateSnapshot = getLatestLocalRef(refUpdateSnapshot);
     if (sharedRefDb.isUpToDate(projectKey, latestRefUpdateSnapshot.getRef())) {
@@ -280,26 +317,126 @@ public class RefUpdateValidator {
     }
 
     if (isNullRef(latestRefUpdateSnapshot.getRef()) || sharedRefDb.exists(projectKey, refName)) {
-      validationMetrics.incrementSplitBrainPrevention();
-
-      softFailBasedOnEnforcement(
-          new OutOfSyncException(projectName, latestRefUpdateSnapshot.getRef()),
-          refEnforcementPolicy);
+      preventSplitBrain(latestRefUpdateSnapshot, refEnforcementPolicy);
     }
 
     return latestRefUpdateSnapshot;
   }
 
-  private boolean isNullRef(Ref ref) {
+  /**
+   * Whether the ref is updated without acquiring its local and global locks. Conflicting updates
+   * are then detected by the final compare-and-put in the global refdb and rolled back.
+   *
+   * @param refName the name of the ref
+   * @return true when the ref is listed in {@code ref-database.lockFreeRefs}, false otherwise
+   */
+  protected boolean isLockFree(String refName) {
+    return refEnforcement.isLockFree(projectName, refName);
+  }
+
+  /**
+   * Acquires the local and global locks of a ref, unless they are already part of the set of locks
+   * held.
+   *
+   * @param refName the name of the ref to lock
+   * @param locks the set of locks held by the current update
+   * @throws RefDbLockException if any of the locks cannot be acquired
+   */
+  protected void lockRef(String refName, CloseableSet<AutoCloseable> locks)
+      throws RefDbLockException {
+    Project.NameKey projectKey = Project.nameKey(projectName);
+    locks.addResourceIfNotExist(
+        new LockKey(projectKey, refName, Scope.LOCAL),
+        () -> sharedRefDb.lockLocalRef(projectKey, refName));
+    locks.addResourceIfNotExist(
+        new LockKey(projectKey, refName, Scope.GLOBAL),
+        () -> sharedRefDb.lockRef(projectKey, refName));
+  }
+
+  /**
+   * Acquires the local and global locks of multiple refs, with one request for each scope, unless
+   * they are already part of the set of locks held.
+   *
+   * @param refNames the names of the refs to lock, in their canonical order
+   * @param locks the set of locks held by the current update
+   * @throws RefDbLockException if any of the locks cannot be acquired
+   */
+  protected void lockRefs(SortedSet<String> refNames, CloseableSet<AutoCloseable> locks)
+      throws RefDbLockException {
+    Project.NameKey projectKey = Project.nameKey(projectName);
+    locks.addResourceIfNotExist(
+        new LockKey(projectKey, refNames, Scope.LOCAL),
+        () -> sharedRefDb.lockLocalRefs(projectKey, refNames));
+    locks.addResourceIfNotExist(
+        new LockKey(projectKey, refNames, Scope.GLOBAL),
+        () -> sharedRefDb.lockRefs(projectKey, refNames));
+  }
+
+  /**
+   * Acquires the local locks of multiple refs and the global lock of their whole project, unless
+   * they are already part of the set of locks held. When the global refdb does not support project
+   * locks, the global locks of the refs are acquired instead.
+   *
+   * @param refNames the names of the refs to lock, in their canonical order
+   * @param locks the set of locks held by the current update
+   * @throws RefDbLockException if any of the locks cannot be acquired
+   */
+  protected void lockRefsWithProjectLock(
+      SortedSet<String> refNames, CloseableSet<AutoCloseable> locks) throws RefDbLockException {
+    Project.NameKey projectKey = Project.nameKey(projectName);
+    locks.addResourceIfNotExist(
+        new LockKey(projectKey, refNames, Scope.LOCAL),
+        () -> sharedRefDb.lockLocalRefs(projectKey, refNames));
+    locks.addResourceIfNotExist(
+        new LockKey(projectKey, refNames, Scope.GLOBAL),
+        () -> {
+          try {
+            return sharedRefDb.lockProject(projectKey);
+          } catch (UnsupportedOperationException e) {
+            return sharedRefDb.lockRefs(projectKey, refNames);
+          }
+        });
+  }
+
+  /**
+   * Records that a ref update was about to cause a split-brain and fails it, unless the enforcement
+   * policy allows the update to go ahead.
+   *
+   * @param refUpdateSnapshot the latest snapshot of the ref update
+   * @param refEnforcementPolicy the enforcement policy of the ref
+   * @throws OutOfSyncException if the enforcement policy is {@link Policy#INCLUDE}
+   */
+  protected void preventSplitBrain(RefUpdateSnapshot refUpdateSnapshot, Policy refEnforcementPolicy)
+      throws OutOfSyncException {
+    validationMetrics.incrementSplitBrainPrevention();
+
+    softFailBasedOnEnforcement(
+        new OutOfSyncException(projectName, refUpdateSnapshot.getRef()), refEnforcementPolicy);
+  }
+
+  protected boolean isNullRef(Ref ref) {
     return ref.getObjectId().equals(ObjectId.zeroId());
   }
 
-  private RefUpdateSnapshot getLatestLocalRef(RefUpdateSnapshot refUpdateSnapshot)
+  protected RefUpdateSnapshot getLatestLocalRef(RefUpdateSnapshot refUpdateSnapshot)
       throws IOException {
     Ref latestRef = refDb.exactRef(refUpdateSnapshot.getName());
-    return new RefUpdateSnapshot(
-        latestRef == null ? nullRef(refUpdateSnapshot.getName()) : latestRef,
-        refUpdateSnapshot.getNewValue());
+    return refUpdateSnapshot.withRef(
+        latestRef == null ? nullRef(refUpdateSnapshot.getName()) : latestRef);
+  }
+
+  /**
+   * Get the enforcement policy of the ref of a snapshot, resolving it only when the snapshot was
+   * taken without it.
+   *
+   * @param refUpdateSnapshot the snapshot of the ref update
+   * @return the enforcement policy of the ref
+   */
+  protected Policy getPolicy(RefUpdateSnapshot refUpdateSnapshot) {
+    Policy policy = refUpdateSnapshot.getPolicy();
+    return policy != null
+        ? policy
+        : refEnforcement.getPolicy(projectName, refUpdateSnapshot.getName());
   }
 
   private Ref nullRef(String name) {
@@ -328,47 +465,160 @@ public class RefUpdateValidator {
   }
 
   protected RefUpdateSnapshot newSnapshot(RefUpdate refUpdate) throws IOException {
-    return new RefUpdateSnapshot(getCurrentRef(refUpdate.getName()), refUpdate.getNewObjectId());
+    String refName = refUpdate.getName();
+    return new RefUpdateSnapshot(
+        getCurrentRef(refName),
+        refUpdate.getNewObjectId(),
+        refEnforcement.getPolicy(projectName, refName));
   }
 
   protected Ref getCurrentRef(String refName) throws IOException {
     return MoreObjects.firstNonNull(refDb.findRef(refName), nullRef(refName));
   }
 
+  /**
+   * Key of a lock held in a {@link CloseableSet}, identifying the locked refs of a project and the
+   * scope of the lock.
+   */
+  public static final class LockKey {
+    private final Project.NameKey project;
+    private final Object refs;
+    private final Scope scope;
+    private final int hashCode;
+
+    /**
+     * Constructs the key of the lock of a single ref.
+     *
+     * @param project the project of the ref
+     * @param refName the name of the ref
+     * @param scope whether the lock is local or global
+     */
+    public LockKey(Project.NameKey project, String refName, Scope scope) {
+      this(project, (Object) refName, scope);
+    }
+
+    /**
+     * Constructs the key of the lock of multiple refs acquired with one request.
+     *
+     * @param project the project of the refs
+     * @param refNames the names of the refs
+     * @param scope whether the lock is local or global
+     */
+    public LockKey(Project.NameKey project, SortedSet<String> refNames, Scope scope) {
+      this(project, (Object) refNames, scope);
+    }
+
+    private LockKey(Project.NameKey project, Object refs, Scope scope) {
+      this.project = project;
+      this.refs = refs;
+      this.scope = scope;
+      this.hashCode = 31 * (31 * project.hashCode() + refs.hashCode()) + scope.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof LockKey)) {
+        return false;
+      }
+      LockKey other = (LockKey) o;
+      return hashCode == other.hashCode
+          && scope == other.scope
+          && project.equals(other.project)
+          && refs.equals(other.refs);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public String toString() {
+      return project.get() + ":" + refs + ":" + scope;
+    }
+  }
+
+  /**
+   * Set of resources identified by a key, closed in the reverse order of their acquisition. The set
+   * is emptied when closed, so that closing it again does not release the resources twice.
+   */
   public static class CloseableSet<T extends AutoCloseable> implements AutoCloseable {
-    private final HashMap<String, AutoCloseable> elements;
+    private static final int DEFAULT_EXPECTED_SIZE = 4;
+
+    private final Map<Object, T> elements;
+    private final List<T> acquired;
 
     public CloseableSet() {
-      this(new HashMap<>());
+      this(DEFAULT_EXPECTED_SIZE);
     }
 
+    /**
+     * Constructs a {@code CloseableSet} sized for the expected number of resources.
+     *
+     * @param expectedSize the expected number of resources
+     */
+    public CloseableSet(int expectedSize) {
+      this.elements = Maps.newHashMapWithExpectedSize(expectedSize);
+      this.acquired = new ArrayList<>(expectedSize);
+    }
+
+    /**
+     * Constructs a {@code CloseableSet} holding the given resources, which are closed in the
+     * iteration order of the map, after the resources added afterwards.
+     *
+     * @param elements the resources already acquired, by key
+     * @deprecated use {@link #CloseableSet(int)} instead.
+     */
+    @Deprecated
+    @SuppressWarnings("unchecked")
     public CloseableSet(HashMap<String, AutoCloseable> elements) {
-      this.elements = elements;
+      this(Math.max(elements.size(), DEFAULT_EXPECTED_SIZE));
+      List<Map.Entry<String, AutoCloseable>> entries = new ArrayList<>(elements.entrySet());
+      for (int i = entries.size() - 1; i >= 0; i--) {
+        Map.Entry<String, AutoCloseable> entry = entries.get(i);
+        this.elements.put(entry.getKey(), (T) entry.getValue());
+        this.acquired.add((T) entry.getValue());
+      }
+    }
+
+    public void addResourceIfNotExist(
+        LockKey key, ExceptionThrowingSupplier<T, RefDbLockException> resourceFactory)
+        throws RefDbLockException {
+      addResource(key, resourceFactory);
     }
 
     public void addResourceIfNotExist(
         String key, ExceptionThrowingSupplier<T, RefDbLockException> resourceFactory)
         throws RefDbLockException {
+      addResource(key, resourceFactory);
+    }
+
+    private void addResource(
+        Object key, ExceptionThrowingSupplier<T, RefDbLockException> resourceFactory)
+        throws RefDbLockException {
       if (!elements.containsKey(key)) {
-        elements.put(key, resourceFactory.create());
+        T resource = resourceFactory.create();
+        elements.put(key, resource);
+        acquired.add(resource);
       }
     }
 
     @Override
     public void close() {
-      elements.values().stream()
-          .forEach(
-              closeable -> {
-                try {
-                  closeable.close();
-                } catch (Exception closingException) {
-                  logger.atSevere().withCause(closingException).log(
-                      "Exception trying to release resource %s, "
-                          + "the locked resources won't be accessible in all cluster unless"
-                          + " the lock is removed from global-refdb manually",
-                      closeable);
-                }
-              });
+      for (int i = acquired.size() - 1; i >= 0; i--) {
+        AutoCloseable closeable = acquired.get(i);
+        try {
+          closeable.close();
+        } catch (Exception closingException) {
+          logger.atSevere().withCause(closingException).log(
+              "Exception trying to release resource %s, "
+                  + "the locked resources won't be accessible in all cluster unless"
+                  + " the lock is removed from global-refdb manually or its lease expires",
+              closeable);
+        }
+      }
+      acquired.clear();
+      elements.clear();
     }
   }
 }
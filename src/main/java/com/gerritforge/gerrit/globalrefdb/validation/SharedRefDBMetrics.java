@@ -15,24 +15,50 @@
 package com.gerritforge.gerrit.globalrefdb.validation;
 
 import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Counter1;
 import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Field;
 import com.google.gerrit.metrics.MetricMaker;
 import com.google.gerrit.metrics.Timer0;
 import com.google.gerrit.metrics.Timer0.Context;
+import com.google.gerrit.server.logging.Metadata;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
 @Singleton
 public class SharedRefDBMetrics {
 
+  /** Operations on the global refdb, whose failures are also counted separately. */
+  public enum Operation {
+    COMPARE_AND_PUT,
+    COMPARE_AND_PUT_ALL,
+    SET,
+    GET,
+    LOCK_REF,
+    LOCK_REFS,
+    LOCK_PROJECT,
+    EXISTS,
+    REMOVE,
+    IS_UP_TO_DATE,
+    CHECK_STATE,
+    RENEW_LEASE
+  }
+
   private final Timer0 lockRefExecutionTime;
   private final Timer0 getOperationExecutionTime;
   private final Timer0 existsExecutionTime;
   private final Counter0 operationFailures;
+  private final Counter1<Operation> operationFailuresPerOperation;
+  private final Counter0 projectsFilterCacheHits;
+  private final Counter0 projectsFilterCacheMisses;
   private Timer0 compareAndPutExecutionTime;
+  private Timer0 compareAndPutAllExecutionTime;
   private Timer0 setExecutionTime;
   private Timer0 removeExecutionTime;
   private Timer0 isUpToDateExecutionTime;
+  private Timer0 checkStateExecutionTime;
+  private Timer0 lockRefsExecutionTime;
+  private Timer0 lockProjectExecutionTime;
 
   @Inject
   public SharedRefDBMetrics(MetricMaker metricMaker) {
@@ -42,6 +68,12 @@ public class SharedRefDBMetrics {
             new Description("Time spent on compareAndPut.")
                 .setCumulative()
                 .setUnit(Description.Units.MILLISECONDS));
+    compareAndPutAllExecutionTime =
+        metricMaker.newTimer(
+            "global_refdb/compare_and_put_all_latency",
+            new Description("Time spent on compareAndPutAll.")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS));
     setExecutionTime =
         metricMaker.newTimer(
             "global_refdb/set_latency",
@@ -61,6 +93,18 @@ public class SharedRefDBMetrics {
             new Description("Time spent on locking ref.")
                 .setCumulative()
                 .setUnit(Description.Units.MILLISECONDS));
+    lockRefsExecutionTime =
+        metricMaker.newTimer(
+            "global_refdb/lock_refs_latency",
+            new Description("Time spent on locking multiple refs.")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS));
+    lockProjectExecutionTime =
+        metricMaker.newTimer(
+            "global_refdb/lock_project_latency",
+            new Description("Time spent on locking all the refs of a project.")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS));
     existsExecutionTime =
         metricMaker.newTimer(
             "global_refdb/exists_latency",
@@ -79,6 +123,12 @@ public class SharedRefDBMetrics {
             new Description("Time spent on checking in global ref-db if ref is up-to-date.")
                 .setCumulative()
                 .setUnit(Description.Units.MILLISECONDS));
+    checkStateExecutionTime =
+        metricMaker.newTimer(
+            "global_refdb/check_state_latency",
+            new Description("Time spent on checking in global ref-db the state of multiple refs.")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS));
     operationFailures =
         metricMaker.newCounter(
             "global_refdb/operation_failures",
@@ -86,12 +136,37 @@ public class SharedRefDBMetrics {
                     "Number of failures when attempting to perform an operation on global-refdb.")
                 .setCumulative()
                 .setUnit("failures"));
+    operationFailuresPerOperation =
+        metricMaker.newCounter(
+            "global_refdb/operation_failures_per_operation",
+            new Description("Number of failures of each type of operation on global-refdb.")
+                .setCumulative()
+                .setUnit("failures"),
+            Field.ofEnum(Operation.class, "operation", Metadata.Builder::operationName)
+                .description("The operation on global-refdb that failed.")
+                .build());
+    projectsFilterCacheHits =
+        metricMaker.newCounter(
+            "global_refdb/projects_filter_cache_hits",
+            new Description("Number of project names matched using the projects filter cache.")
+                .setCumulative()
+                .setUnit("hits"));
+    projectsFilterCacheMisses =
+        metricMaker.newCounter(
+            "global_refdb/projects_filter_cache_misses",
+            new Description("Number of project names matched against the projects patterns.")
+                .setCumulative()
+                .setUnit("misses"));
   }
 
   public Context startCompareAndPutExecutionTime() {
     return compareAndPutExecutionTime.start();
   }
 
+  public Context startCompareAndPutAllExecutionTime() {
+    return compareAndPutAllExecutionTime.start();
+  }
+
   public Context startSetExecutionTime() {
     return setExecutionTime.start();
   }
@@ -104,6 +179,14 @@ public class SharedRefDBMetrics {
     return lockRefExecutionTime.start();
   }
 
+  public Context startLockRefsExecutionTime() {
+    return lockRefsExecutionTime.start();
+  }
+
+  public Context startLockProjectExecutionTime() {
+    return lockProjectExecutionTime.start();
+  }
+
   public Context startExistsExecutionTime() {
     return existsExecutionTime.start();
   }
@@ -116,7 +199,20 @@ public class SharedRefDBMetrics {
     return isUpToDateExecutionTime.start();
   }
 
-  public void incrementOperationFailures() {
+  public Context startCheckStateExecutionTime() {
+    return checkStateExecutionTime.start();
+  }
+
+  public void incrementOperationFailures(Operation operation) {
     operationFailures.increment();
+    operationFailuresPerOperation.increment(operation);
+  }
+
+  public void incrementProjectsFilterCacheHits() {
+    projectsFilterCacheHits.increment();
+  }
+
+  public void incrementProjectsFilterCacheMisses() {
+    projectsFilterCacheMisses.increment();
   }
 }
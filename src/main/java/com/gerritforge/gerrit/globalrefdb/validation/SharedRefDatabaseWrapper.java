@@ -18,19 +18,43 @@ import com.gerritforge.gerrit.globalrefdb.ExtendedGlobalRefDatabase;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDatabase;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefLease;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefState;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefUpdate;
+import com.gerritforge.gerrit.globalrefdb.MultiRefLock;
 import com.gerritforge.gerrit.globalrefdb.RefDbLockException;
+import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDBMetrics.Operation;
+import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDbConfiguration.SharedRefDatabase;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.NoopSharedRefDatabase;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Supplier;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.entities.Project;
 import com.google.gerrit.extensions.registration.DynamicItem;
 import com.google.gerrit.metrics.Timer0.Context;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
-import java.util.Arrays;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.SortedSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 
@@ -43,6 +67,7 @@ import org.eclipse.jgit.lib.Ref;
 public class SharedRefDatabaseWrapper implements ExtendedGlobalRefDatabase {
   private static final FluentLogger log = FluentLogger.forEnclosingClass();
   private static final GlobalRefDatabase NOOP_REFDB = new NoopSharedRefDatabase();
+  private static final String ALL_REFS = "refs/*";
 
   @Inject(optional = true)
   private DynamicItem<GlobalRefDatabase> sharedRefDbDynamicItem;
@@ -50,19 +75,110 @@ public class SharedRefDatabaseWrapper implements ExtendedGlobalRefDatabase {
   private final SharedRefLogger sharedRefLogger;
   private final SharedRefDBMetrics metrics;
   private final RefLocker localRefDbLocker;
+  private final Cache<RefKey, ObjectId> refValuesCache;
+  private final Cache<RefKey, Boolean> absentRefsCache;
+  private final ConcurrentMap<RefKey, Integer> heldGlobalLocks = new ConcurrentHashMap<>();
+  private final FailureLogLimiter failureLogLimiter;
+  private final ParallelRefOperations parallelRefOperations;
+  private final long lockLeaseTtlMsec;
+  private final ConcurrentMap<RefKey, GlobalRefLease> heldLeases = new ConcurrentHashMap<>();
+  private final ScheduledThreadPoolExecutor leaseRenewal;
 
   /**
    * Constructs a {@code SharedRefDatabaseWrapper} wrapping an optional {@link GlobalRefDatabase},
    * which might have been bound by consumers of this library.
    *
    * @param sharedRefLogger logger of shared ref-db operations.
+   * @param cfg configuration of the shared ref-db.
    */
   @Inject
+  public SharedRefDatabaseWrapper(
+      SharedRefLogger sharedRefLogger,
+      SharedRefDBMetrics metrics,
+      RefLocker localRefDbLocker,
+      SharedRefDbConfiguration cfg) {
+    this(
+        sharedRefLogger,
+        metrics,
+        localRefDbLocker,
+        cfg.getSharedRefDb().getRefValuesCacheSize(),
+        cfg.getSharedRefDb().getAbsentRefsCacheSize(),
+        cfg.getSharedRefDb().getAbsentRefsCacheExpiryMsec(),
+        cfg.getSharedRefDb().getFailureLogIntervalMsec(),
+        cfg.getSharedRefDb().getBatchParallelism(),
+        cfg.getSharedRefDb().getLockLeaseTtlMsec());
+  }
+
+  /**
+   * Constructs a {@code SharedRefDatabaseWrapper} wrapping an optional {@link GlobalRefDatabase},
+   * which might have been bound by consumers of this library, without caching ref values.
+   *
+   * @param sharedRefLogger logger of shared ref-db operations.
+   */
   public SharedRefDatabaseWrapper(
       SharedRefLogger sharedRefLogger, SharedRefDBMetrics metrics, RefLocker localRefDbLocker) {
+    this(
+        sharedRefLogger,
+        metrics,
+        localRefDbLocker,
+        0L,
+        0L,
+        0L,
+        SharedRefDatabase.DEFAULT_FAILURE_LOG_INTERVAL_MSEC,
+        0,
+        0L);
+  }
+
+  private SharedRefDatabaseWrapper(
+      SharedRefLogger sharedRefLogger,
+      SharedRefDBMetrics metrics,
+      RefLocker localRefDbLocker,
+      long refValuesCacheSize,
+      long absentRefsCacheSize,
+      long absentRefsCacheExpiryMsec,
+      long failureLogIntervalMsec,
+      int batchParallelism,
+      long lockLeaseTtlMsec) {
     this.sharedRefLogger = sharedRefLogger;
     this.metrics = metrics;
     this.localRefDbLocker = localRefDbLocker;
+    this.refValuesCache =
+        refValuesCacheSize > 0
+            ? CacheBuilder.newBuilder().maximumSize(refValuesCacheSize).build()
+            : null;
+    this.absentRefsCache =
+        absentRefsCacheSize > 0
+            ? CacheBuilder.newBuilder()
+                .maximumSize(absentRefsCacheSize)
+                .expireAfterWrite(absentRefsCacheExpiryMsec, TimeUnit.MILLISECONDS)
+                .build()
+            : null;
+    this.failureLogLimiter =
+        new FailureLogLimiter(failureLogIntervalMsec, TimeUnit.MILLISECONDS, Ticker.systemTicker());
+    this.parallelRefOperations =
+        batchParallelism > 0 ? new ParallelRefOperations(batchParallelism) : null;
+    this.lockLeaseTtlMsec = lockLeaseTtlMsec;
+    this.leaseRenewal = lockLeaseTtlMsec > 0 ? newLeaseRenewal(lockLeaseTtlMsec) : null;
+  }
+
+  /**
+   * Create the executor renewing the leases. Its thread is only started when a lease is held and
+   * terminates once no lease has been held for a time-to-live, so that the executor needs no
+   * shutdown.
+   */
+  private static ScheduledThreadPoolExecutor newLeaseRenewal(long lockLeaseTtlMsec) {
+    ScheduledThreadPoolExecutor leaseRenewal =
+        new ScheduledThreadPoolExecutor(
+            1,
+            r -> {
+              Thread thread = new Thread(r, "global-refdb-lease-renewal");
+              thread.setDaemon(true);
+              return thread;
+            });
+    leaseRenewal.setRemoveOnCancelPolicy(true);
+    leaseRenewal.setKeepAliveTime(lockLeaseTtlMsec, TimeUnit.MILLISECONDS);
+    leaseRenewal.allowCoreThreadTimeOut(true);
+    return leaseRenewal;
   }
 
   @VisibleForTesting
@@ -75,40 +191,224 @@ public class SharedRefDatabaseWrapper implements ExtendedGlobalRefDatabase {
     this.sharedRefDbDynamicItem = sharedRefDbDynamicItem;
   }
 
+  @VisibleForTesting
+  SharedRefDatabaseWrapper(
+      DynamicItem<GlobalRefDatabase> sharedRefDbDynamicItem,
+      SharedRefLogger sharedRefLogger,
+      SharedRefDBMetrics metrics,
+      RefLocker localRefDbLocker,
+      long refValuesCacheSize,
+      long absentRefsCacheSize,
+      long absentRefsCacheExpiryMsec) {
+    this(
+        sharedRefLogger,
+        metrics,
+        localRefDbLocker,
+        refValuesCacheSize,
+        absentRefsCacheSize,
+        absentRefsCacheExpiryMsec,
+        SharedRefDatabase.DEFAULT_FAILURE_LOG_INTERVAL_MSEC,
+        0,
+        0L);
+    this.sharedRefDbDynamicItem = sharedRefDbDynamicItem;
+  }
+
+  @VisibleForTesting
+  SharedRefDatabaseWrapper(
+      DynamicItem<GlobalRefDatabase> sharedRefDbDynamicItem,
+      SharedRefLogger sharedRefLogger,
+      SharedRefDBMetrics metrics,
+      RefLocker localRefDbLocker,
+      long lockLeaseTtlMsec) {
+    this(
+        sharedRefLogger,
+        metrics,
+        localRefDbLocker,
+        0L,
+        0L,
+        0L,
+        SharedRefDatabase.DEFAULT_FAILURE_LOG_INTERVAL_MSEC,
+        0,
+        lockLeaseTtlMsec);
+    this.sharedRefDbDynamicItem = sharedRefDbDynamicItem;
+  }
+
+  @VisibleForTesting
+  int leaseRenewalThreads() {
+    return leaseRenewal == null ? 0 : leaseRenewal.getPoolSize();
+  }
+
+  /**
+   * {@inheritDoc}. When the ref values cache is enabled and this node holds the global lock of the
+   * ref, the ref is up-to-date if its value is the last one written by this node, without querying
+   * the global refdb.
+   */
   @Override
   public boolean isUpToDate(Project.NameKey project, Ref ref) throws GlobalRefDbLockException {
-    return trackFailingOperation(
-        () -> sharedRefDb().isUpToDate(project, ref),
-        metrics::startIsUpToDateExecutionTime,
-        () ->
-            toString(project, project::get) + ":" + toString(ref, ref::getName) + " is up-to-date");
+    if (isUpToDateInRefValuesCache(project, ref)) {
+      return true;
+    }
+
+    try (Context ignore = metrics.startIsUpToDateExecutionTime()) {
+      return sharedRefDb().isUpToDate(project, ref);
+    } catch (Throwable e) {
+      trackFailure(
+          Operation.IS_UP_TO_DATE,
+          e,
+          () ->
+              toString(project, project::get)
+                  + ":"
+                  + toString(ref, ref::getName)
+                  + " is up-to-date");
+      throw e;
+    }
   }
 
-  /** {@inheritDoc}. The operation is logged upon success. */
+  /**
+   * {@inheritDoc}. When {@code ref-database.batchParallelism} is configured and the global refdb
+   * does not implement its own bulk operation, the refs are checked in parallel.
+   *
+   * <p>The refs are answered from the caches when possible, and only the others are checked in the
+   * global refdb: a ref is {@link GlobalRefState#UP_TO_DATE} if this node holds its global lock and
+   * its value is the last one written by this node, and {@link GlobalRefState#MISSING} if it exists
+   * locally and has recently been found absent from the global refdb. The refs reported as missing
+   * by the global refdb are then remembered as absent.
+   */
+  @Override
+  public Map<String, GlobalRefState> checkState(Project.NameKey project, Collection<Ref> refs)
+      throws GlobalRefDbLockException {
+    if (refValuesCache == null && absentRefsCache == null) {
+      return doCheckState(project, refs);
+    }
+
+    Map<String, GlobalRefState> cachedStates = new HashMap<>();
+    List<Ref> refsToCheck = new ArrayList<>(refs.size());
+    for (Ref ref : refs) {
+      GlobalRefState cachedState = cachedState(project, ref);
+      if (cachedState != null) {
+        cachedStates.put(ref.getName(), cachedState);
+      } else {
+        refsToCheck.add(ref);
+      }
+    }
+    if (cachedStates.isEmpty()) {
+      return cacheAbsentRefs(project, doCheckState(project, refs));
+    }
+
+    Map<String, GlobalRefState> checkedStates =
+        refsToCheck.isEmpty()
+            ? Map.of()
+            : cacheAbsentRefs(project, doCheckState(project, refsToCheck));
+    ImmutableMap.Builder<String, GlobalRefState> states =
+        ImmutableMap.builderWithExpectedSize(refs.size());
+    for (Ref ref : refs) {
+      GlobalRefState cachedState = cachedStates.get(ref.getName());
+      states.put(
+          ref.getName(), cachedState != null ? cachedState : checkedStates.get(ref.getName()));
+    }
+    return states.buildOrThrow();
+  }
+
+  private Map<String, GlobalRefState> doCheckState(Project.NameKey project, Collection<Ref> refs)
+      throws GlobalRefDbLockException {
+    try (Context ignore = metrics.startCheckStateExecutionTime()) {
+      GlobalRefDatabase globalRefDb = sharedRefDb();
+      if (isToBeParallelized(globalRefDb, refs.size())) {
+        return parallelRefOperations.checkState(globalRefDb, project, refs);
+      }
+      return globalRefDb.checkState(project, refs);
+    } catch (Throwable e) {
+      trackFailure(
+          Operation.CHECK_STATE,
+          e,
+          () -> "Check state of " + toString(project, project::get) + ":" + refs.size() + " refs");
+      throw e;
+    }
+  }
+
+  /**
+   * {@inheritDoc}. The operation is logged upon success. When this node holds the lease of the ref,
+   * the update is fenced with its token.
+   */
   @Override
   public boolean compareAndPut(Project.NameKey project, Ref currRef, ObjectId newRefValue)
       throws GlobalRefDbSystemError {
+    GlobalRefLease lease = heldLease(project, currRef.getName());
+    return lease != null
+        ? compareAndPut(project, currRef, newRefValue, lease.getFencingToken())
+        : doCompareAndPut(project, currRef, newRefValue, null);
+  }
 
-    return trackFailingOperation(
-        () -> {
-          boolean succeeded = sharedRefDb().compareAndPut(project, currRef, newRefValue);
-          if (succeeded) {
-            sharedRefLogger.logRefUpdate(project.get(), currRef, newRefValue);
-          }
-          return succeeded;
-        },
-        metrics::startCompareAndPutExecutionTime,
-        () ->
-            "compare "
-                + toString(project, project::get)
-                + ":"
-                + toString(currRef, currRef::getName)
-                + ":"
-                + toString(
-                    currRef,
-                    () -> toString(currRef.getObjectId(), () -> currRef.getObjectId().name()))
-                + " and put "
-                + toString(newRefValue, newRefValue::name));
+  /** {@inheritDoc}. The operation is logged upon success. */
+  @Override
+  public boolean compareAndPut(
+      Project.NameKey project, Ref currRef, ObjectId newRefValue, long fencingToken)
+      throws GlobalRefDbSystemError {
+    return doCompareAndPut(project, currRef, newRefValue, fencingToken);
+  }
+
+  private boolean doCompareAndPut(
+      Project.NameKey project, Ref currRef, ObjectId newRefValue, @Nullable Long fencingToken) {
+    try (Context ignore = metrics.startCompareAndPutExecutionTime()) {
+      boolean succeeded =
+          fencingToken != null
+              ? sharedRefDb().compareAndPut(project, currRef, newRefValue, fencingToken)
+              : sharedRefDb().compareAndPut(project, currRef, newRefValue);
+      if (succeeded) {
+        sharedRefLogger.logRefUpdate(project.get(), currRef, newRefValue);
+      }
+      updateRefCaches(project, currRef.getName(), succeeded, newRefValue);
+      return succeeded;
+    } catch (Throwable e) {
+      trackFailure(
+          Operation.COMPARE_AND_PUT,
+          e,
+          () ->
+              "compare "
+                  + toString(project, project::get)
+                  + ":"
+                  + toString(currRef, currRef::getName)
+                  + ":"
+                  + toString(
+                      currRef,
+                      () -> toString(currRef.getObjectId(), () -> currRef.getObjectId().name()))
+                  + " and put "
+                  + toString(newRefValue, newRefValue::name));
+      throw e;
+    }
+  }
+
+  /**
+   * {@inheritDoc}. Each successful update is logged. When {@code ref-database.batchParallelism} is
+   * configured and the global refdb does not implement its own bulk operation, the updates are
+   * executed in parallel. The updates of the refs leased by this node are fenced with their tokens.
+   */
+  @Override
+  public Map<String, Boolean> compareAndPutAll(
+      Project.NameKey project, List<GlobalRefUpdate> updates) throws GlobalRefDbSystemError {
+    List<GlobalRefUpdate> fencedUpdates =
+        heldLeases.isEmpty() ? updates : withFencingTokens(project, updates);
+    try (Context ignore = metrics.startCompareAndPutAllExecutionTime()) {
+      GlobalRefDatabase globalRefDb = sharedRefDb();
+      Map<String, Boolean> results =
+          isToBeParallelized(globalRefDb, fencedUpdates.size())
+              ? parallelRefOperations.compareAndPutAll(globalRefDb, project, fencedUpdates)
+              : globalRefDb.compareAndPutAll(project, fencedUpdates);
+      for (GlobalRefUpdate update : fencedUpdates) {
+        boolean succeeded = Boolean.TRUE.equals(results.get(update.getRefName()));
+        if (succeeded) {
+          sharedRefLogger.logRefUpdate(project.get(), update.getCurrRef(), update.getNewRefValue());
+        }
+        updateRefCaches(project, update.getRefName(), succeeded, update.getNewRefValue());
+      }
+      return results;
+    } catch (Throwable e) {
+      trackFailure(
+          Operation.COMPARE_AND_PUT_ALL,
+          e,
+          () -> "compare and put " + toString(project, project::get) + ":" + toString(updates));
+      throw e;
+    }
   }
 
   /** {@inheritDoc} the operation is logged upon success. */
@@ -116,24 +416,28 @@ public class SharedRefDatabaseWrapper implements ExtendedGlobalRefDatabase {
   public <T> boolean compareAndPut(Project.NameKey project, String refName, T currValue, T newValue)
       throws GlobalRefDbSystemError {
 
-    return trackFailingOperation(
-        () -> {
-          boolean succeeded = sharedRefDb().compareAndPut(project, refName, currValue, newValue);
-          if (succeeded) {
-            sharedRefLogger.logRefUpdate(project.get(), refName, currValue, newValue);
-          }
-          return succeeded;
-        },
-        metrics::startCompareAndPutExecutionTime,
-        () ->
-            "compare "
-                + toString(project, project::get)
-                + ":"
-                + toString(refName)
-                + ":"
-                + toString(currValue)
-                + " and put "
-                + toString(newValue));
+    try (Context ignore = metrics.startCompareAndPutExecutionTime()) {
+      boolean succeeded = sharedRefDb().compareAndPut(project, refName, currValue, newValue);
+      if (succeeded) {
+        sharedRefLogger.logRefUpdate(project.get(), refName, currValue, newValue);
+      }
+      invalidateAbsentRef(project, refName);
+      return succeeded;
+    } catch (Throwable e) {
+      trackFailure(
+          Operation.COMPARE_AND_PUT,
+          e,
+          () ->
+              "compare "
+                  + toString(project, project::get)
+                  + ":"
+                  + toString(refName)
+                  + ":"
+                  + toString(currValue)
+                  + " and put "
+                  + toString(newValue));
+      throw e;
+    }
   }
 
   @Override
@@ -144,20 +448,23 @@ public class SharedRefDatabaseWrapper implements ExtendedGlobalRefDatabase {
           "GlobalRefDb implementation doesn't support set operation");
     }
 
-    trackFailingOperation(
-        () -> {
-          ((ExtendedGlobalRefDatabase) sharedRefDb()).put(project, refName, newValue);
-          sharedRefLogger.logRefUpdate(project.get(), refName, newValue);
-          return null;
-        },
-        metrics::startSetExecutionTime,
-        () ->
-            "Put "
-                + toString(project, project::get)
-                + ":"
-                + toString(refName)
-                + " = "
-                + toString(newValue));
+    try (Context ignore = metrics.startSetExecutionTime()) {
+      ((ExtendedGlobalRefDatabase) sharedRefDb()).put(project, refName, newValue);
+      sharedRefLogger.logRefUpdate(project.get(), refName, newValue);
+      invalidateAbsentRef(project, refName);
+    } catch (Throwable e) {
+      trackFailure(
+          Operation.SET,
+          e,
+          () ->
+              "Put "
+                  + toString(project, project::get)
+                  + ":"
+                  + toString(refName)
+                  + " = "
+                  + toString(newValue));
+      throw e;
+    }
   }
 
   public boolean isSetOperationSupported() {
@@ -168,16 +475,92 @@ public class SharedRefDatabaseWrapper implements ExtendedGlobalRefDatabase {
   @Override
   public AutoCloseable lockRef(Project.NameKey project, String refName)
       throws GlobalRefDbLockException {
-    return trackFailingOperation(
-        () ->
-            new LockWrapper(
-                sharedRefLogger,
-                project.get(),
-                refName,
-                sharedRefDb().lockRef(project, refName),
-                SharedRefLogger.Scope.GLOBAL),
-        metrics::startLockRefExecutionTime,
-        () -> "Lock " + toString(project, project::get) + ":" + toString(refName));
+    try (Context ignore = metrics.startLockRefExecutionTime()) {
+      return new LockWrapper(
+          sharedRefLogger,
+          project.get(),
+          refName,
+          trackHeldGlobalLock(project, refName, lockOrLeaseRef(project, refName)),
+          SharedRefLogger.Scope.GLOBAL);
+    } catch (Throwable e) {
+      trackFailure(
+          Operation.LOCK_REF,
+          e,
+          () -> "Lock " + toString(project, project::get) + ":" + toString(refName));
+      throw e;
+    }
+  }
+
+  /** {@inheritDoc}. The operation is logged. */
+  @Override
+  public AutoCloseable lockRefs(Project.NameKey project, SortedSet<String> refNames)
+      throws GlobalRefDbLockException {
+    try (Context ignore = metrics.startLockRefsExecutionTime()) {
+      return new LockWrapper(
+          sharedRefLogger,
+          project.get(),
+          refNames,
+          trackHeldGlobalLocks(project, refNames, lockOrLeaseRefs(project, refNames)),
+          SharedRefLogger.Scope.GLOBAL);
+    } catch (Throwable e) {
+      trackFailure(
+          Operation.LOCK_REFS,
+          e,
+          () -> "Lock " + toString(project, project::get) + ":" + toString(refNames));
+      throw e;
+    }
+  }
+
+  /**
+   * {@inheritDoc}. The operation is logged. An {@link UnsupportedOperationException} is not tracked
+   * as a failure, because callers are expected to fall back to locking the refs individually.
+   */
+  @Override
+  public AutoCloseable lockProject(Project.NameKey project) throws GlobalRefDbLockException {
+    try (Context ignore = metrics.startLockProjectExecutionTime()) {
+      return new LockWrapper(
+          sharedRefLogger,
+          project.get(),
+          ALL_REFS,
+          sharedRefDb().lockProject(project),
+          SharedRefLogger.Scope.GLOBAL);
+    } catch (UnsupportedOperationException e) {
+      throw e;
+    } catch (Throwable e) {
+      trackFailure(
+          Operation.LOCK_PROJECT, e, () -> "Lock all refs of " + toString(project, project::get));
+      throw e;
+    }
+  }
+
+  /**
+   * {@inheritDoc}. An {@link UnsupportedOperationException} is not tracked as a failure, because
+   * callers are expected to fall back to locking the ref.
+   */
+  @Override
+  public GlobalRefLease leaseRef(Project.NameKey project, String refName, Duration ttl)
+      throws GlobalRefDbLockException {
+    try (Context ignore = metrics.startLockRefExecutionTime()) {
+      return sharedRefDb().leaseRef(project, refName, ttl);
+    } catch (UnsupportedOperationException e) {
+      throw e;
+    } catch (Throwable e) {
+      trackFailure(
+          Operation.LOCK_REF,
+          e,
+          () -> "Lease " + toString(project, project::get) + ":" + toString(refName));
+      throw e;
+    }
+  }
+
+  public AutoCloseable lockLocalRefs(Project.NameKey project, SortedSet<String> refNames)
+      throws RefDbLockException {
+    return new LockWrapper(
+        sharedRefLogger,
+        project.get(),
+        refNames,
+        localRefDbLocker.lockRefs(project, refNames),
+        SharedRefLogger.Scope.LOCAL);
   }
 
   public AutoCloseable lockLocalRef(Project.NameKey project, String refName)
@@ -190,87 +573,454 @@ public class SharedRefDatabaseWrapper implements ExtendedGlobalRefDatabase {
         SharedRefLogger.Scope.LOCAL);
   }
 
+  /**
+   * {@inheritDoc}. When the absent refs cache is enabled, refs recently found to be absent are not
+   * checked again against the global refdb, unless updated by this node in the meantime.
+   */
   @Override
   public boolean exists(Project.NameKey project, String refName) {
-    return trackFailingOperation(
-        () -> sharedRefDb().exists(project, refName),
-        metrics::startExistsExecutionTime,
-        () -> toString(project, project::get) + ":" + toString(refName) + " exists");
+    RefKey refKey = null;
+    if (absentRefsCache != null) {
+      refKey = new RefKey(project, refName);
+      if (absentRefsCache.getIfPresent(refKey) != null) {
+        return false;
+      }
+    }
+
+    boolean exists;
+    try (Context ignore = metrics.startExistsExecutionTime()) {
+      exists = sharedRefDb().exists(project, refName);
+    } catch (Throwable e) {
+      trackFailure(
+          Operation.EXISTS,
+          e,
+          () -> toString(project, project::get) + ":" + toString(refName) + " exists");
+      throw e;
+    }
+    if (!exists && refKey != null) {
+      absentRefsCache.put(refKey, Boolean.TRUE);
+    }
+    return exists;
   }
 
   /** {@inheritDoc}. The operation is logged. */
   @Override
   public void remove(Project.NameKey project) throws GlobalRefDbSystemError {
-    trackFailingOperation(
-        () -> {
-          sharedRefDb().remove(project);
-          sharedRefLogger.logProjectDelete(project.get());
-          return null;
-        },
-        metrics::startRemoveExecutionTime,
-        () -> "Remove " + toString(project, project::get));
+    try (Context ignore = metrics.startRemoveExecutionTime()) {
+      sharedRefDb().remove(project);
+      sharedRefLogger.logProjectDelete(project.get());
+      invalidateRefCaches(project);
+    } catch (Throwable e) {
+      trackFailure(Operation.REMOVE, e, () -> "Remove " + toString(project, project::get));
+      throw e;
+    }
   }
 
   @Override
   public <T> Optional<T> get(Project.NameKey nameKey, String s, Class<T> clazz)
       throws GlobalRefDbSystemError {
-    return trackFailingOperation(
-        () -> sharedRefDb().get(nameKey, s, clazz),
+    try (Context ignore = metrics.startGetExecutionTime()) {
+      return sharedRefDb().get(nameKey, s, clazz);
+    } catch (Throwable e) {
+      trackFailure(
+          Operation.GET,
+          e,
+          () ->
+              "Get "
+                  + toString(nameKey, nameKey::get)
+                  + ":"
+                  + toString(s)
+                  + " of type "
+                  + clazz.getSimpleName());
+      throw e;
+    }
+  }
+
+  @Override
+  public CompletableFuture<Boolean> isUpToDateAsync(Project.NameKey project, Ref ref) {
+    return trackFailingAsyncOperation(
+        Operation.IS_UP_TO_DATE,
+        () -> sharedRefDb().isUpToDateAsync(project, ref),
+        metrics::startIsUpToDateExecutionTime,
+        () ->
+            toString(project, project::get) + ":" + toString(ref, ref::getName) + " is up-to-date");
+  }
+
+  /** {@inheritDoc}. The operation is logged upon success. */
+  @Override
+  public CompletableFuture<Boolean> compareAndPutAsync(
+      Project.NameKey project, Ref currRef, ObjectId newRefValue) {
+    return trackFailingAsyncOperation(
+        Operation.COMPARE_AND_PUT,
+        () ->
+            sharedRefDb()
+                .compareAndPutAsync(project, currRef, newRefValue)
+                .thenApply(
+                    succeeded -> {
+                      if (succeeded) {
+                        sharedRefLogger.logRefUpdate(project.get(), currRef, newRefValue);
+                      }
+                      updateRefCaches(project, currRef.getName(), succeeded, newRefValue);
+                      return succeeded;
+                    }),
+        metrics::startCompareAndPutExecutionTime,
+        () ->
+            "compare "
+                + toString(project, project::get)
+                + ":"
+                + toString(currRef, currRef::getName)
+                + " and put "
+                + toString(newRefValue, newRefValue::name));
+  }
+
+  /**
+   * {@inheritDoc}. The ref is leased when {@code ref-database.lockLeaseTtl} is configured, as in
+   * {@link #lockRef(Project.NameKey, String)}. The operation is logged.
+   */
+  @Override
+  public CompletableFuture<AutoCloseable> lockRefAsync(Project.NameKey project, String refName) {
+    return trackFailingAsyncOperation(
+        Operation.LOCK_REF,
+        () ->
+            lockOrLeaseRefAsync(project, refName)
+                .thenApply(
+                    lock ->
+                        new LockWrapper(
+                            sharedRefLogger,
+                            project.get(),
+                            refName,
+                            trackHeldGlobalLock(project, refName, lock),
+                            SharedRefLogger.Scope.GLOBAL)),
+        metrics::startLockRefExecutionTime,
+        () -> "Lock " + toString(project, project::get) + ":" + toString(refName));
+  }
+
+  @Override
+  public CompletableFuture<Boolean> existsAsync(Project.NameKey project, String refName) {
+    return trackFailingAsyncOperation(
+        Operation.EXISTS,
+        () -> sharedRefDb().existsAsync(project, refName),
+        metrics::startExistsExecutionTime,
+        () -> toString(project, project::get) + ":" + toString(refName) + " exists");
+  }
+
+  @Override
+  public <T> CompletableFuture<Optional<T>> getAsync(
+      Project.NameKey project, String refName, Class<T> clazz) {
+    return trackFailingAsyncOperation(
+        Operation.GET,
+        () -> sharedRefDb().getAsync(project, refName, clazz),
         metrics::startGetExecutionTime,
         () ->
             "Get "
-                + toString(nameKey, nameKey::get)
+                + toString(project, project::get)
                 + ":"
-                + toString(s)
+                + toString(refName)
                 + " of type "
                 + clazz.getSimpleName());
   }
 
+  /**
+   * Lease the ref in the global refdb when {@code ref-database.lockLeaseTtl} is configured, falling
+   * back to locking it when the global refdb does not support leases.
+   */
+  private AutoCloseable lockOrLeaseRef(Project.NameKey project, String refName)
+      throws GlobalRefDbLockException {
+    if (leaseRenewal != null) {
+      try {
+        return holdLease(project, refName);
+      } catch (UnsupportedOperationException e) {
+        log.atFine().log("Global refdb does not support leases, locking %s instead", refName);
+      }
+    }
+    return sharedRefDb().lockRef(project, refName);
+  }
+
+  private CompletableFuture<AutoCloseable> lockOrLeaseRefAsync(
+      Project.NameKey project, String refName) {
+    if (leaseRenewal != null) {
+      try {
+        return CompletableFuture.completedFuture(holdLease(project, refName));
+      } catch (UnsupportedOperationException e) {
+        log.atFine().log("Global refdb does not support leases, locking %s instead", refName);
+      } catch (GlobalRefDbLockException e) {
+        return CompletableFuture.failedFuture(e);
+      }
+    }
+    return sharedRefDb().lockRefAsync(project, refName);
+  }
+
+  private AutoCloseable lockOrLeaseRefs(Project.NameKey project, SortedSet<String> refNames)
+      throws GlobalRefDbLockException {
+    if (leaseRenewal != null) {
+      try {
+        return MultiRefLock.acquire(refNames, refName -> holdLease(project, refName));
+      } catch (UnsupportedOperationException e) {
+        log.atFine().log("Global refdb does not support leases, locking %s instead", refNames);
+      }
+    }
+    return sharedRefDb().lockRefs(project, refNames);
+  }
+
+  /**
+   * Lease the ref and renew the lease every third of its time-to-live, until released. When the
+   * renewal fails the lease is kept, so that the updates of the ref are still fenced with its token
+   * and rejected by the global refdb.
+   */
+  private AutoCloseable holdLease(Project.NameKey project, String refName)
+      throws GlobalRefDbLockException {
+    GlobalRefLease lease =
+        sharedRefDb().leaseRef(project, refName, Duration.ofMillis(lockLeaseTtlMsec));
+    RefKey refKey = new RefKey(project, refName);
+    heldLeases.put(refKey, lease);
+    long renewalIntervalMsec = Math.max(1L, lockLeaseTtlMsec / 3);
+    ScheduledFuture<?> renewal =
+        leaseRenewal.scheduleWithFixedDelay(
+            () -> renewLease(project, refName, lease),
+            renewalIntervalMsec,
+            renewalIntervalMsec,
+            TimeUnit.MILLISECONDS);
+    return () -> {
+      renewal.cancel(false);
+      heldLeases.remove(refKey, lease);
+      lease.close();
+    };
+  }
+
+  private void renewLease(Project.NameKey project, String refName, GlobalRefLease lease) {
+    try {
+      lease.renew();
+    } catch (GlobalRefDbLockException | RuntimeException e) {
+      trackFailure(
+          Operation.RENEW_LEASE,
+          e,
+          () -> "Renew lease of " + toString(project, project::get) + ":" + toString(refName));
+      // Stops the periodic renewal of the lease
+      throw new IllegalStateException("Lease of " + refName + " lost", e);
+    }
+  }
+
+  private GlobalRefLease heldLease(Project.NameKey project, String refName) {
+    return heldLeases.isEmpty() ? null : heldLeases.get(new RefKey(project, refName));
+  }
+
+  private List<GlobalRefUpdate> withFencingTokens(
+      Project.NameKey project, List<GlobalRefUpdate> updates) {
+    List<GlobalRefUpdate> fencedUpdates = new ArrayList<>(updates.size());
+    for (GlobalRefUpdate update : updates) {
+      GlobalRefLease lease = heldLease(project, update.getRefName());
+      fencedUpdates.add(
+          lease != null && !update.hasFencingToken()
+              ? new GlobalRefUpdate(
+                  update.getCurrRef(), update.getNewRefValue(), lease.getFencingToken())
+              : update);
+    }
+    return fencedUpdates;
+  }
+
+  private boolean isToBeParallelized(GlobalRefDatabase globalRefDb, int refs) {
+    return parallelRefOperations != null
+        && refs > 1
+        && ParallelRefOperations.hasDefaultBulkOperations(globalRefDb);
+  }
+
+  /**
+   * State of the ref according to the caches, or null when it needs to be checked in the global
+   * refdb. A ref which does not exist locally is never answered from the absent refs cache, since
+   * its state decides whether its creation is allowed.
+   */
+  private GlobalRefState cachedState(Project.NameKey project, Ref ref) {
+    if (isUpToDateInRefValuesCache(project, ref)) {
+      return GlobalRefState.UP_TO_DATE;
+    }
+    if (absentRefsCache != null
+        && ref.getObjectId() != null
+        && !ObjectId.zeroId().equals(ref.getObjectId())
+        && absentRefsCache.getIfPresent(new RefKey(project, ref.getName())) != null) {
+      return GlobalRefState.MISSING;
+    }
+    return null;
+  }
+
+  private Map<String, GlobalRefState> cacheAbsentRefs(
+      Project.NameKey project, Map<String, GlobalRefState> states) {
+    if (absentRefsCache != null) {
+      states.forEach(
+          (refName, state) -> {
+            if (state == GlobalRefState.MISSING) {
+              absentRefsCache.put(new RefKey(project, refName), Boolean.TRUE);
+            }
+          });
+    }
+    return states;
+  }
+
+  private boolean isUpToDateInRefValuesCache(Project.NameKey project, Ref ref) {
+    if (refValuesCache == null) {
+      return false;
+    }
+
+    RefKey refKey = new RefKey(project, ref.getName());
+    if (!heldGlobalLocks.containsKey(refKey)) {
+      return false;
+    }
+    ObjectId cachedValue = refValuesCache.getIfPresent(refKey);
+    return cachedValue != null && cachedValue.equals(ref.getObjectId());
+  }
+
+  private void updateRefCaches(
+      Project.NameKey project, String refName, boolean succeeded, ObjectId newRefValue) {
+    invalidateAbsentRef(project, refName);
+    if (refValuesCache == null) {
+      return;
+    }
+
+    RefKey refKey = new RefKey(project, refName);
+    if (succeeded && newRefValue != null) {
+      refValuesCache.put(refKey, newRefValue);
+    } else {
+      refValuesCache.invalidate(refKey);
+    }
+  }
+
+  private void invalidateAbsentRef(Project.NameKey project, String refName) {
+    if (absentRefsCache != null) {
+      absentRefsCache.invalidate(new RefKey(project, refName));
+    }
+  }
+
+  private void invalidateRefCaches(Project.NameKey project) {
+    if (refValuesCache != null) {
+      refValuesCache.asMap().keySet().removeIf(refKey -> refKey.project.equals(project));
+    }
+    if (absentRefsCache != null) {
+      absentRefsCache.asMap().keySet().removeIf(refKey -> refKey.project.equals(project));
+    }
+  }
+
+  private AutoCloseable trackHeldGlobalLock(
+      Project.NameKey project, String refName, AutoCloseable lock) {
+    if (refValuesCache == null) {
+      return lock;
+    }
+
+    RefKey refKey = new RefKey(project, refName);
+    heldGlobalLocks.merge(refKey, 1, Integer::sum);
+    return () -> {
+      heldGlobalLocks.computeIfPresent(refKey, (key, holders) -> holders > 1 ? holders - 1 : null);
+      lock.close();
+    };
+  }
+
+  private AutoCloseable trackHeldGlobalLocks(
+      Project.NameKey project, SortedSet<String> refNames, AutoCloseable lock) {
+    AutoCloseable trackedLock = lock;
+    for (String refName : refNames) {
+      trackedLock = trackHeldGlobalLock(project, refName, trackedLock);
+    }
+    return trackedLock;
+  }
+
   boolean isNoop() {
     return sharedRefDbDynamicItem == null || sharedRefDbDynamicItem.get() == null;
   }
 
+  /**
+   * Returns the bound {@link GlobalRefDatabase}, or {@link #NOOP_REFDB} when none is bound.
+   *
+   * <p>The item is read on every call, because plugins can replace its binding at runtime and
+   * {@link DynamicItem} does not notify such changes; the read does not allocate.
+   */
   private GlobalRefDatabase sharedRefDb() {
-    if (sharedRefDbDynamicItem == null) {
-      log.atWarning().log("DynamicItem<GlobalRefDatabase> has not been injected");
+    DynamicItem<GlobalRefDatabase> dynamicItem = sharedRefDbDynamicItem;
+    GlobalRefDatabase sharedRefDb = dynamicItem == null ? null : dynamicItem.get();
+    if (sharedRefDb == null) {
+      log.atWarning().atMostEvery(1, TimeUnit.MINUTES).log(
+          "Using NOOP_REFDB: DynamicItem<GlobalRefDatabase> %s",
+          dynamicItem == null ? "has not been injected" : "is not bound");
+      return NOOP_REFDB;
     }
-
-    return Optional.ofNullable(sharedRefDbDynamicItem)
-        .map(di -> di.get())
-        .orElseGet(
-            () -> {
-              log.atWarning().log("Using NOOP_REFDB");
-              return NOOP_REFDB;
-            });
+    return sharedRefDb;
   }
 
-  @FunctionalInterface
-  private interface ThrowingSupplier<T, E extends Exception> {
-    T get() throws E;
+  /**
+   * Counts the failure of an operation and logs it, unless another failure of the same operation
+   * has been logged within the {@code ref-database.failureLogInterval}. Called only on the failure
+   * path, so that the successful operations do not pay for building their description.
+   *
+   * <p>The stack trace is logged only for unexpected failures: the global-refdb errors and lock
+   * failures are logged with their message only.
+   */
+  private void trackFailure(
+      Operation operation, Throwable failure, Supplier<String> operationDetails) {
+    metrics.incrementOperationFailures(operation);
+    long notLogged = failureLogLimiter.tryLog(operation);
+    if (notLogged == FailureLogLimiter.NOT_LOGGED) {
+      return;
+    }
+
+    if (failure instanceof CompletionException && failure.getCause() != null) {
+      failure = failure.getCause();
+    }
+    String notLoggedDetails =
+        notLogged > 0 ? String.format(" (%d similar failures not logged)", notLogged) : "";
+    if (failure instanceof GlobalRefDbSystemError || failure instanceof RefDbLockException) {
+      log.atWarning().log(
+          "Global-refdb operation '%s' failed: %s%s",
+          operationDetails.get(), failure.getMessage(), notLoggedDetails);
+    } else {
+      log.atWarning().withCause(failure).log(
+          "Global-refdb operation '%s' failed%s", operationDetails.get(), notLoggedDetails);
+    }
   }
 
-  private <T, E extends Exception> T trackFailingOperation(
-      ThrowingSupplier<T, E> operation,
+  /**
+   * Asynchronous counterpart of {@link #trackFailure}: the metric timer is stopped when the
+   * returned future completes and its failure, if any, is tracked.
+   */
+  private <T> CompletableFuture<T> trackFailingAsyncOperation(
+      Operation operation,
+      Supplier<CompletableFuture<T>> asyncOperation,
       Supplier<Context> metricTimer,
-      Supplier<String> operationDetails)
-      throws E {
-
-    boolean completedWithoutExceptions = false;
-    try (Context ignore = metricTimer.get()) {
-      T result = operation.get();
-      completedWithoutExceptions = true;
-      return result;
-    } finally {
-      if (!completedWithoutExceptions) {
-        String callStack =
-            Arrays.stream(Thread.currentThread().getStackTrace())
-                .skip(2) /* Skip the getStackTrace() and trackFailingOperation() call stacks */
-                .map(StackTraceElement::toString)
-                .collect(Collectors.joining("\n   at "));
-        log.atWarning().log(
-            "Global-refdb operation '%s' failed\n%s", operationDetails.get(), callStack);
-        metrics.incrementOperationFailures();
+      Supplier<String> operationDetails) {
+    Context timer = metricTimer.get();
+    CompletableFuture<T> future;
+    try {
+      future = asyncOperation.get();
+    } catch (RuntimeException e) {
+      future = CompletableFuture.failedFuture(e);
+    }
+
+    return future.whenComplete(
+        (result, error) -> {
+          timer.close();
+          if (error != null) {
+            trackFailure(operation, error, operationDetails);
+          }
+        });
+  }
+
+  private static class RefKey {
+    private final Project.NameKey project;
+    private final String refName;
+
+    RefKey(Project.NameKey project, String refName) {
+      this.project = project;
+      this.refName = refName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof RefKey)) {
+        return false;
       }
+      RefKey other = (RefKey) o;
+      return project.equals(other.project) && refName.equals(other.refName);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(project, refName);
     }
   }
 
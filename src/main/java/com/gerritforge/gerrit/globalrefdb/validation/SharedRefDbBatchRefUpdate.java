@@ -36,11 +36,12 @@ import org.eclipse.jgit.util.time.ProposedTimestamp;
 public class SharedRefDbBatchRefUpdate extends BatchRefUpdate {
 
   private final BatchRefUpdate batchRefUpdate;
-  private final BatchRefUpdate batchRefUpdateRollback;
   private final String project;
   private final BatchRefUpdateValidator.Factory batchRefValidatorFactory;
   private final RefDatabase refDb;
   private final ImmutableSet<String> ignoredRefs;
+  private boolean forceRefLog;
+  private PushCertificate pushCertificate;
 
   /** {@code SharedRefDbBatchRefUpdate} Factory for Guice assisted injection. */
   public interface Factory {
@@ -68,7 +69,6 @@ public class SharedRefDbBatchRefUpdate extends BatchRefUpdate {
     this.refDb = refDb;
     this.project = project;
     this.batchRefUpdate = refDb.newBatchUpdate();
-    this.batchRefUpdateRollback = refDb.newBatchUpdate();
     this.batchRefValidatorFactory = batchRefValidatorFactory;
     this.ignoredRefs = ignoredRefs;
   }
@@ -90,7 +90,6 @@ public class SharedRefDbBatchRefUpdate extends BatchRefUpdate {
 
   @Override
   public BatchRefUpdate setAllowNonFastForwards(boolean allow) {
-    batchRefUpdateRollback.setAllowNonFastForwards(allow);
     return batchRefUpdate.setAllowNonFastForwards(allow);
   }
 
@@ -101,7 +100,6 @@ public class SharedRefDbBatchRefUpdate extends BatchRefUpdate {
 
   @Override
   public BatchRefUpdate setRefLogIdent(PersonIdent pi) {
-    batchRefUpdateRollback.setRefLogIdent(pi);
     return batchRefUpdate.setRefLogIdent(pi);
   }
 
@@ -117,7 +115,6 @@ public class SharedRefDbBatchRefUpdate extends BatchRefUpdate {
 
   @Override
   public BatchRefUpdate setRefLogMessage(String msg, boolean appendStatus) {
-    batchRefUpdateRollback.setRefLogMessage(msg, appendStatus);
     return batchRefUpdate.setRefLogMessage(msg, appendStatus);
   }
 
@@ -128,7 +125,7 @@ public class SharedRefDbBatchRefUpdate extends BatchRefUpdate {
 
   @Override
   public BatchRefUpdate setForceRefLog(boolean force) {
-    batchRefUpdateRollback.setForceRefLog(force);
+    forceRefLog = force;
     return batchRefUpdate.setForceRefLog(force);
   }
 
@@ -149,6 +146,7 @@ public class SharedRefDbBatchRefUpdate extends BatchRefUpdate {
 
   @Override
   public void setPushCertificate(PushCertificate cert) {
+    pushCertificate = cert;
     batchRefUpdate.setPushCertificate(cert);
   }
 
@@ -209,8 +207,8 @@ public class SharedRefDbBatchRefUpdate extends BatchRefUpdate {
         .executeBatchUpdateWithValidation(
             batchRefUpdate,
             () -> batchRefUpdate.execute(walk, monitor, options),
-            (commands) ->
-                batchRefUpdateRollback.addCommand(commands).execute(walk, monitor, options));
+            (chunk) -> newChunkUpdate(chunk).execute(walk, monitor, options),
+            (commands) -> newRollbackUpdate(commands).execute(walk, monitor, options));
   }
 
   /**
@@ -233,7 +231,43 @@ public class SharedRefDbBatchRefUpdate extends BatchRefUpdate {
         .executeBatchUpdateWithValidation(
             batchRefUpdate,
             () -> batchRefUpdate.execute(walk, monitor),
-            (commands) -> batchRefUpdateRollback.addCommand(commands).execute(walk, monitor));
+            (chunk) -> newChunkUpdate(chunk).execute(walk, monitor),
+            (commands) -> newRollbackUpdate(commands).execute(walk, monitor));
+  }
+
+  /**
+   * Creates a non-atomic batch update applying a chunk of the commands of this batch, with the same
+   * settings.
+   */
+  private BatchRefUpdate newChunkUpdate(List<ReceiveCommand> chunk) {
+    BatchRefUpdate chunkUpdate = newBatchUpdateWithSameSettings();
+    chunkUpdate.setAtomic(false);
+    chunkUpdate.setPushCertificate(pushCertificate);
+    for (ProposedTimestamp ts : batchRefUpdate.getProposedTimestamps()) {
+      chunkUpdate.addProposedTimestamp(ts);
+    }
+    chunkUpdate.addCommand(chunk);
+    return chunkUpdate;
+  }
+
+  /**
+   * Creates a batch update rolling back commands of this batch, so that each rollback only includes
+   * its own commands, even when the batch is applied in chunks.
+   */
+  private BatchRefUpdate newRollbackUpdate(List<ReceiveCommand> commands) {
+    BatchRefUpdate rollbackUpdate = newBatchUpdateWithSameSettings();
+    rollbackUpdate.addCommand(commands);
+    return rollbackUpdate;
+  }
+
+  private BatchRefUpdate newBatchUpdateWithSameSettings() {
+    BatchRefUpdate update = refDb.newBatchUpdate();
+    update.setAllowNonFastForwards(batchRefUpdate.isAllowNonFastForwards());
+    update.setRefLogIdent(batchRefUpdate.getRefLogIdent());
+    update.setRefLogMessage(
+        batchRefUpdate.getRefLogMessage(), batchRefUpdate.isRefLogIncludingResult());
+    update.setForceRefLog(forceRefLog);
+    return update;
   }
 
   @Override
@@ -22,23 +22,50 @@ import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDbConfiguration.Sh
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.server.config.ConfigUtil;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.util.FS;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Represents a configuration for the shared ref-database. This configuration is retrieved from the
  * configuration file of the libModule is consuming the library.
+ *
+ * <p>The configuration can be reloaded at runtime through {@link #reload()}: the new settings are
+ * parsed, and the registered {@link ReloadListener}s compile their state from them, before anything
+ * is published. The settings are then published with a single swap, and the state compiled by the
+ * listeners applied right after.
  */
 public class SharedRefDbConfiguration {
   private static final Logger log = LoggerFactory.getLogger(SharedRefDbConfiguration.class);
 
-  private final Supplier<Projects> projects;
-  private final Supplier<SharedRefDatabase> sharedRefDb;
+  /** Listener recompiling its state when the configuration is reloaded. */
+  @FunctionalInterface
+  public interface ReloadListener {
+    /**
+     * Compiles the state of the listener from the reloaded configuration, without applying it yet.
+     * Invoked on the thread performing the reload, before the reloaded configuration is published.
+     *
+     * @param cfg the reloaded configuration, not published yet
+     * @return the action applying the compiled state, invoked only once the state of all the
+     *     listeners has been compiled successfully
+     * @throws ConfigInvalidException if the state cannot be compiled from the reloaded
+     *     configuration, in which case the reload is aborted
+     */
+    Runnable prepareReload(SharedRefDbConfiguration cfg) throws ConfigInvalidException;
+  }
+
+  private final Config config;
+  private final List<ReloadListener> reloadListeners;
+  private volatile Settings settings;
   private final String pluginName;
 
   /**
@@ -49,19 +76,31 @@ public class SharedRefDbConfiguration {
    * @param pluginName the name of the libModule consuming this library
    */
   public SharedRefDbConfiguration(Config config, String pluginName) {
+    this.config = config;
+    this.reloadListeners = new CopyOnWriteArrayList<>();
     Supplier<Config> lazyCfg = lazyLoad(config);
-    projects = memoize(() -> new Projects(lazyCfg));
-    sharedRefDb =
-        memoize(
-            () -> {
-              try {
-                return new SharedRefDatabase(lazyCfg);
-              } catch (ConfigInvalidException e) {
-                log.error("Invalid configuration for shared refdb", e);
-                throw new RuntimeException(
-                    "Failed to initialize SharedRefDatabase due to invalid configuration", e);
-              }
-            });
+    settings =
+        new Settings(
+            config,
+            memoize(() -> new Projects(lazyCfg)),
+            memoize(
+                () -> {
+                  try {
+                    return new SharedRefDatabase(lazyCfg);
+                  } catch (ConfigInvalidException e) {
+                    log.error("Invalid configuration for shared refdb", e);
+                    throw new RuntimeException(
+                        "Failed to initialize SharedRefDatabase due to invalid configuration", e);
+                  }
+                }));
+    this.pluginName = pluginName;
+  }
+
+  /** Reloaded configuration, handed over to the listeners before being published. */
+  private SharedRefDbConfiguration(Settings settings, String pluginName) {
+    this.config = settings.config;
+    this.reloadListeners = List.of();
+    this.settings = settings;
     this.pluginName = pluginName;
   }
 
@@ -70,14 +109,14 @@ public class SharedRefDbConfiguration {
    *     file
    */
   public SharedRefDatabase getSharedRefDb() {
-    return sharedRefDb.get();
+    return settings.sharedRefDb.get();
   }
 
   /**
    * @return Getter of projects checked against the global refdb
    */
   public Projects projects() {
-    return projects.get();
+    return settings.projects.get();
   }
 
   /**
@@ -87,6 +126,94 @@ public class SharedRefDbConfiguration {
     return pluginName;
   }
 
+  /**
+   * Register a listener to be notified after every reload of the configuration.
+   *
+   * @param listener the listener to notify
+   */
+  public void addReloadListener(ReloadListener listener) {
+    reloadListeners.add(listener);
+  }
+
+  /**
+   * Whether the configuration file has been modified since it was last loaded.
+   *
+   * @return true when the configuration is file-based and the file has changed, false otherwise
+   */
+  public boolean isOutdated() {
+    Config currentConfig = settings.config;
+    return currentConfig instanceof FileBasedConfig
+        && ((FileBasedConfig) currentConfig).isOutdated();
+  }
+
+  /**
+   * Reload the configuration file, when file-based, and publish the new settings.
+   *
+   * <p>The configuration is loaded into a new {@link Config}, from which the settings and the state
+   * of all the reload listeners are compiled first. They are published only when all of them are
+   * valid, otherwise the current ones are kept untouched. The settings are published with a single
+   * swap, and the state of the listeners applied right after, on the calling thread.
+   *
+   * <p>Only the projects filter and the storage rules are reloaded by the components of this
+   * library; other settings are read once at startup.
+   *
+   * @throws IOException if the configuration file cannot be read
+   * @throws ConfigInvalidException if the new configuration is invalid
+   */
+  public synchronized void reload() throws IOException, ConfigInvalidException {
+    Config newConfig = loadNewConfig();
+    Supplier<Config> cfg = ofInstance(newConfig);
+    Settings newSettings =
+        new Settings(
+            newConfig, ofInstance(new Projects(cfg)), ofInstance(new SharedRefDatabase(cfg)));
+
+    SharedRefDbConfiguration reloaded = new SharedRefDbConfiguration(newSettings, pluginName);
+    List<Runnable> reloadActions = new ArrayList<>(reloadListeners.size());
+    for (ReloadListener listener : reloadListeners) {
+      try {
+        reloadActions.add(listener.prepareReload(reloaded));
+      } catch (RuntimeException e) {
+        throw new ConfigInvalidException(
+            String.format("Unable to apply the reloaded configuration to %s", listener), e);
+      }
+    }
+
+    settings = newSettings;
+    reloadActions.forEach(Runnable::run);
+  }
+
+  /**
+   * Load the configuration into a new {@link Config}, leaving the current one untouched: the file
+   * is read again when file-based, otherwise the in-memory configuration is copied.
+   */
+  private Config loadNewConfig() throws IOException, ConfigInvalidException {
+    if (config instanceof FileBasedConfig) {
+      FileBasedConfig fileConfig = (FileBasedConfig) config;
+      log.info("Reloading configuration from {}", fileConfig.getFile().getPath());
+      FileBasedConfig newConfig = new FileBasedConfig(fileConfig.getFile(), FS.DETECTED);
+      newConfig.load();
+      return newConfig;
+    }
+
+    Config newConfig = new Config();
+    newConfig.fromText(config.toText());
+    return newConfig;
+  }
+
+  /** Settings parsed from one version of the configuration, published together. */
+  private static class Settings {
+    private final Config config;
+    private final Supplier<Projects> projects;
+    private final Supplier<SharedRefDatabase> sharedRefDb;
+
+    private Settings(
+        Config config, Supplier<Projects> projects, Supplier<SharedRefDatabase> sharedRefDb) {
+      this.config = config;
+      this.projects = projects;
+      this.sharedRefDb = sharedRefDb;
+    }
+  }
+
   private Supplier<Config> lazyLoad(Config config) {
     if (config instanceof FileBasedConfig) {
       return memoize(
@@ -119,12 +246,42 @@ public class SharedRefDbConfiguration {
     public static final String STORE_NO_REFS_KEY = "storeNoRefs";
     public static final String IGNORED_REFS_PREFIXES = "ignoredRefsPrefixes";
     public static final String PROJECT = "project";
+    public static final String REF = "ref";
+    public static final String REF_VALUES_CACHE_SIZE_KEY = "refValuesCacheSize";
+    public static final String ABSENT_REFS_CACHE_SIZE_KEY = "absentRefsCacheSize";
+    public static final String ABSENT_REFS_CACHE_EXPIRY_KEY = "absentRefsCacheExpiry";
+    public static final long DEFAULT_ABSENT_REFS_CACHE_EXPIRY_MSEC = TimeUnit.MINUTES.toMillis(1);
+    public static final String CONFIG_RELOAD_INTERVAL_KEY = "configReloadInterval";
+    public static final String FAILURE_LOG_INTERVAL_KEY = "failureLogInterval";
+    public static final String BATCH_CHUNK_SIZE_KEY = "batchChunkSize";
+    public static final String BATCH_PARALLELISM_KEY = "batchParallelism";
+    public static final String PROJECT_LOCK_THRESHOLD_KEY = "projectLockThreshold";
+    public static final String LOCAL_LOCK_TIMEOUT_KEY = "localLockTimeout";
+    public static final long DEFAULT_LOCAL_LOCK_TIMEOUT_MSEC = TimeUnit.SECONDS.toMillis(10);
+    public static final String LOCK_LEASE_TTL_KEY = "lockLeaseTtl";
+    public static final String LOCK_FREE_REFS_KEY = "lockFreeRefs";
+    public static final long DEFAULT_FAILURE_LOG_INTERVAL_MSEC = TimeUnit.SECONDS.toMillis(10);
 
     private final boolean enabled;
     private final ImmutableSet<String> ignoredRefsPrefixes;
     private final ImmutableSet<String> storeAllRefs;
     private final ImmutableSet<String> storeMutableRefs;
     private final ImmutableSet<String> storeNoRefs;
+    private final ImmutableSet<String> storeAllRefPatterns;
+    private final ImmutableSet<String> storeMutableRefPatterns;
+    private final ImmutableSet<String> storeNoRefPatterns;
+    private final long refValuesCacheSize;
+    private final long absentRefsCacheSize;
+    private final long absentRefsCacheExpiryMsec;
+    private final long configReloadIntervalMsec;
+    private final long failureLogIntervalMsec;
+    private final int batchChunkSize;
+    private final int batchParallelism;
+    private final int projectLockThreshold;
+    private final long localLockTimeoutMsec;
+    private final long lockLeaseTtlMsec;
+    private final ImmutableSet<String> lockFreeProjects;
+    private final ImmutableSet<String> lockFreeRefPatterns;
 
     private SharedRefDatabase(Supplier<Config> cfg) throws ConfigInvalidException {
       enabled = getBoolean(cfg, SECTION, null, ENABLE_KEY, false);
@@ -133,6 +290,47 @@ public class SharedRefDbConfiguration {
       storeMutableRefs = getSet(cfg, SECTION, STORE_MUTABLE_REFS_KEY, PROJECT);
       storeNoRefs = getSet(cfg, SECTION, STORE_NO_REFS_KEY, PROJECT);
       validateNoRefStorageOverlap(storeAllRefs, storeMutableRefs, storeNoRefs);
+      storeAllRefPatterns = getSet(cfg, SECTION, STORE_ALL_REFS_KEY, REF);
+      storeMutableRefPatterns = getSet(cfg, SECTION, STORE_MUTABLE_REFS_KEY, REF);
+      storeNoRefPatterns = getSet(cfg, SECTION, STORE_NO_REFS_KEY, REF);
+      validateNoRefPatternOverlap(storeAllRefPatterns, storeMutableRefPatterns, storeNoRefPatterns);
+      refValuesCacheSize = getLong(cfg, SECTION, null, REF_VALUES_CACHE_SIZE_KEY, 0L);
+      absentRefsCacheSize = getLong(cfg, SECTION, null, ABSENT_REFS_CACHE_SIZE_KEY, 0L);
+      absentRefsCacheExpiryMsec =
+          ConfigUtil.getTimeUnit(
+              cfg.get(),
+              SECTION,
+              null,
+              ABSENT_REFS_CACHE_EXPIRY_KEY,
+              DEFAULT_ABSENT_REFS_CACHE_EXPIRY_MSEC,
+              TimeUnit.MILLISECONDS);
+      configReloadIntervalMsec =
+          ConfigUtil.getTimeUnit(
+              cfg.get(), SECTION, null, CONFIG_RELOAD_INTERVAL_KEY, 0L, TimeUnit.MILLISECONDS);
+      failureLogIntervalMsec =
+          ConfigUtil.getTimeUnit(
+              cfg.get(),
+              SECTION,
+              null,
+              FAILURE_LOG_INTERVAL_KEY,
+              DEFAULT_FAILURE_LOG_INTERVAL_MSEC,
+              TimeUnit.MILLISECONDS);
+      batchChunkSize = cfg.get().getInt(SECTION, BATCH_CHUNK_SIZE_KEY, 0);
+      batchParallelism = cfg.get().getInt(SECTION, BATCH_PARALLELISM_KEY, 0);
+      projectLockThreshold = cfg.get().getInt(SECTION, PROJECT_LOCK_THRESHOLD_KEY, 0);
+      localLockTimeoutMsec =
+          ConfigUtil.getTimeUnit(
+              cfg.get(),
+              SECTION,
+              null,
+              LOCAL_LOCK_TIMEOUT_KEY,
+              DEFAULT_LOCAL_LOCK_TIMEOUT_MSEC,
+              TimeUnit.MILLISECONDS);
+      lockLeaseTtlMsec =
+          ConfigUtil.getTimeUnit(
+              cfg.get(), SECTION, null, LOCK_LEASE_TTL_KEY, 0L, TimeUnit.MILLISECONDS);
+      lockFreeProjects = getSet(cfg, SECTION, LOCK_FREE_REFS_KEY, PROJECT);
+      lockFreeRefPatterns = getSet(cfg, SECTION, LOCK_FREE_REFS_KEY, REF);
     }
 
     /**
@@ -171,6 +369,36 @@ public class SharedRefDbConfiguration {
       return storeNoRefs;
     }
 
+    /**
+     * Returns the set of ref patterns, optionally prefixed by a project name and a colon, whose
+     * refs are all stored in the global-refdb
+     *
+     * @return set of ref patterns to store
+     */
+    public ImmutableSet<String> getStoreAllRefPatterns() {
+      return storeAllRefPatterns;
+    }
+
+    /**
+     * Returns the set of ref patterns, optionally prefixed by a project name and a colon, whose
+     * mutable refs are stored in the global-refdb
+     *
+     * @return set of ref patterns to store only mutable refs for
+     */
+    public ImmutableSet<String> getStoreMutableRefPatterns() {
+      return storeMutableRefPatterns;
+    }
+
+    /**
+     * Returns the set of ref patterns, optionally prefixed by a project name and a colon, whose
+     * refs are not stored in the global-refdb
+     *
+     * @return set of ref patterns to not store
+     */
+    public ImmutableSet<String> getStoreNoRefPatterns() {
+      return storeNoRefPatterns;
+    }
+
     /**
      * Returns the set of refs prefixes that are ignored during the validation and enforcement of
      * the global refdb.
@@ -181,6 +409,129 @@ public class SharedRefDbConfiguration {
       return ignoredRefsPrefixes;
     }
 
+    /**
+     * Returns the maximum number of refs for which the last value written to the global refdb by
+     * this node is cached. Defaults to 0, which disables the cache.
+     *
+     * @return maximum number of cached ref values
+     */
+    public long getRefValuesCacheSize() {
+      return refValuesCacheSize;
+    }
+
+    /**
+     * Returns the maximum number of refs known to be absent from the global refdb which are cached.
+     * Defaults to 0, which disables the cache.
+     *
+     * @return maximum number of cached absent refs
+     */
+    public long getAbsentRefsCacheSize() {
+      return absentRefsCacheSize;
+    }
+
+    /**
+     * Returns for how long a ref is considered absent from the global refdb after having been
+     * checked. Defaults to 1 minute.
+     *
+     * @return expiry of the cached absent refs in milliseconds
+     */
+    public long getAbsentRefsCacheExpiryMsec() {
+      return absentRefsCacheExpiryMsec;
+    }
+
+    /**
+     * Returns how often the configuration file is checked for changes and reloaded. Defaults to 0,
+     * meaning that the configuration is never reloaded automatically.
+     *
+     * @return interval between the checks in milliseconds
+     */
+    public long getConfigReloadIntervalMsec() {
+      return configReloadIntervalMsec;
+    }
+
+    /**
+     * Returns the minimum time between two logged failures of the same type of global-refdb
+     * operation. Defaults to 10 seconds.
+     *
+     * @return interval between logged failures in milliseconds, 0 for logging all failures
+     */
+    public long getFailureLogIntervalMsec() {
+      return failureLogIntervalMsec;
+    }
+
+    /**
+     * Returns the maximum number of commands of a non-atomic batch ref-update validated and applied
+     * together. Defaults to 0, meaning that batches are never split.
+     *
+     * @return the size of the chunks of non-atomic batch ref-updates
+     */
+    public int getBatchChunkSize() {
+      return batchChunkSize;
+    }
+
+    /**
+     * Returns the maximum number of per-ref global-refdb operations of a batch ref-update executed
+     * in parallel, when the global refdb does not implement its own bulk operations. Defaults to 0,
+     * meaning that the refs are processed one after another.
+     *
+     * @return the parallelism of the global-refdb operations of batch ref-updates
+     */
+    public int getBatchParallelism() {
+      return batchParallelism;
+    }
+
+    /**
+     * Returns the number of refs of a batch ref-update above which the whole project is locked in
+     * the global refdb, instead of each ref. Defaults to 0, meaning that the refs are always locked
+     * individually.
+     *
+     * @return the threshold of refs for locking the project
+     */
+    public int getProjectLockThreshold() {
+      return projectLockThreshold;
+    }
+
+    /**
+     * Returns the maximum time to wait for acquiring the local lock of a ref. Defaults to 10
+     * seconds.
+     *
+     * @return the local lock timeout in milliseconds
+     */
+    public long getLocalLockTimeoutMsec() {
+      return localLockTimeoutMsec;
+    }
+
+    /**
+     * Returns the time-to-live of the leases taken in the global refdb instead of its locks, which
+     * are renewed in the background whilst held. Defaults to 0, meaning that the refs are locked
+     * without leases.
+     *
+     * @return the lock lease time-to-live in milliseconds
+     */
+    public long getLockLeaseTtlMsec() {
+      return lockLeaseTtlMsec;
+    }
+
+    /**
+     * Returns the set of projects whose refs are updated without locking them, relying on the
+     * compare-and-put of the global-refdb for detecting conflicting updates
+     *
+     * @return set of projects to update without locks
+     */
+    public ImmutableSet<String> getLockFreeProjects() {
+      return lockFreeProjects;
+    }
+
+    /**
+     * Returns the set of ref patterns, optionally prefixed by a project name and a colon, whose
+     * refs are updated without locking them
+     *
+     * @return set of ref patterns to update without locks
+     */
+    public ImmutableSet<String> getLockFreeRefPatterns() {
+      return lockFreeRefPatterns;
+    }
+
     private ImmutableList<String> getList(
         Supplier<Config> cfg, String section, String subsection, String name) {
       return ImmutableList.copyOf(cfg.get().getStringList(section, subsection, name));
@@ -191,6 +542,37 @@ public class SharedRefDbConfiguration {
       return ImmutableSet.copyOf(cfg.get().getStringList(section, subsection, name));
     }
 
+    /**
+     * Validates that no ref pattern is configured in more than one ref storage category.
+     *
+     * @throws ConfigInvalidException if any ref pattern appears in multiple categories
+     */
+    private void validateNoRefPatternOverlap(
+        ImmutableSet<String> storeAllRefPatterns,
+        ImmutableSet<String> storeMutableRefPatterns,
+        ImmutableSet<String> storeNoRefPatterns)
+        throws ConfigInvalidException {
+      for (String refPattern : storeNoRefPatterns) {
+        if (storeAllRefPatterns.contains(refPattern)
+            || storeMutableRefPatterns.contains(refPattern)) {
+          throw new ConfigInvalidException(
+              String.format(
+                  "Ref pattern '%s' appears in more than one ref storage category"
+                      + " (storeMutableRefs, storeAllRefs, or storeNoRefs).",
+                  refPattern));
+        }
+      }
+      for (String refPattern : storeMutableRefPatterns) {
+        if (storeAllRefPatterns.contains(refPattern)) {
+          throw new ConfigInvalidException(
+              String.format(
+                  "Ref pattern '%s' appears in more than one ref storage category"
+                      + " (storeMutableRefs, storeAllRefs, or storeNoRefs).",
+                  refPattern));
+        }
+      }
+    }
+
     /**
      * Validates that no project is configured in more than one ref storage category.
      *
@@ -242,16 +624,20 @@ public class SharedRefDbConfiguration {
   public static class Projects {
     public static final String SECTION = "projects";
     public static final String PATTERN_KEY = "pattern";
+    public static final String CACHE_SIZE_KEY = "cacheSize";
+    public static final long DEFAULT_CACHE_SIZE = 10000L;
     public List<String> patterns;
+    private final long cacheSize;
 
     /**
-     * Constructs a {@code Projects} object by reading the list of "projects.pattern" possibly
-     * specified in the consuming libModule's configuration file.
+     * Constructs a {@code Projects} object by reading the list of "projects.pattern" and the
+     * "projects.cacheSize" possibly specified in the consuming libModule's configuration file.
      *
      * @param cfg the libModule's configuration supplier
      */
     public Projects(Supplier<Config> cfg) {
       patterns = ImmutableList.copyOf(cfg.get().getStringList(SECTION, null, PATTERN_KEY));
+      cacheSize = getLong(cfg, SECTION, null, CACHE_SIZE_KEY, DEFAULT_CACHE_SIZE);
     }
 
     /**
@@ -262,6 +648,15 @@ public class SharedRefDbConfiguration {
     public List<String> getPatterns() {
       return patterns;
     }
+
+    /**
+     * The maximum number of project names whose match against the patterns is cached.
+     *
+     * @return the size of the cache, 0 when the cache is disabled.
+     */
+    public long getCacheSize() {
+      return cacheSize;
+    }
   }
 
   static boolean getBoolean(
@@ -274,4 +669,15 @@ public class SharedRefDbConfiguration {
       return defaultValue;
     }
   }
+
+  static long getLong(
+      Supplier<Config> cfg, String section, String subsection, String name, long defaultValue) {
+    try {
+      return cfg.get().getLong(section, subsection, name, defaultValue);
+    } catch (IllegalArgumentException e) {
+      log.error("invalid value for {}; using default value {}", name, defaultValue);
+      log.debug("Failed to retrieve long value: {}", e.getMessage(), e);
+      return defaultValue;
+    }
+  }
 }
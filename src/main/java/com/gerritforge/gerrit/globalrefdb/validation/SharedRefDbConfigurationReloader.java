@@ -0,0 +1,92 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+
+/**
+ * Lifecycle listener checking the configuration file every {@code
+ * ref-database.configReloadInterval} and reloading it when modified.
+ *
+ * <p>The reload runs on a dedicated background thread, so that it never delays the ref updates
+ * being validated, which keep on using the previous settings until the new ones are published.
+ */
+@Singleton
+public class SharedRefDbConfigurationReloader implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final SharedRefDbConfiguration cfg;
+  private ScheduledExecutorService executor;
+
+  /**
+   * Constructs a {@code SharedRefDbConfigurationReloader} for the given configuration.
+   *
+   * @param cfg the configuration to reload
+   */
+  @Inject
+  public SharedRefDbConfigurationReloader(SharedRefDbConfiguration cfg) {
+    this.cfg = cfg;
+  }
+
+  @Override
+  public synchronized void start() {
+    long intervalMsec = cfg.getSharedRefDb().getConfigReloadIntervalMsec();
+    if (intervalMsec <= 0 || executor != null) {
+      return;
+    }
+
+    executor =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "global-refdb-config-reloader");
+              thread.setDaemon(true);
+              return thread;
+            });
+    executor.scheduleWithFixedDelay(
+        this::reloadIfOutdated, intervalMsec, intervalMsec, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  @VisibleForTesting
+  void reloadIfOutdated() {
+    if (!cfg.isOutdated()) {
+      return;
+    }
+
+    try {
+      cfg.reload();
+    } catch (IOException | ConfigInvalidException | RuntimeException e) {
+      logger.atSevere().withCause(e).log(
+          "Unable to reload the configuration of %s, keeping the current settings",
+          cfg.pluginName());
+    }
+  }
+}
@@ -312,7 +312,10 @@ public class SharedRefDbRefUpdate extends RefUpdate {
   private Result rollback(ObjectId objectId, NoParameterFunction<Result> updateFunction)
       throws IOException {
     if (objectId == null || ObjectId.zeroId().equals(objectId)) {
-      return refDatabase.newUpdate(getRef().getName(), true).delete();
+      RefUpdate deleteUpdate = refDatabase.newUpdate(getRef().getName(), true);
+      deleteUpdate.setExpectedOldObjectId(refUpdateBase.getNewObjectId());
+      deleteUpdate.setForceUpdate(true);
+      return deleteUpdate.delete();
     }
     refUpdateBase.setExpectedOldObjectId(refUpdateBase.getNewObjectId());
     refUpdateBase.setNewObjectId(objectId);
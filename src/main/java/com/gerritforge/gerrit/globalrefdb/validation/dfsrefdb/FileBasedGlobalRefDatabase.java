@@ -0,0 +1,677 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.gerritforge.gerrit.globalrefdb.ExtendedGlobalRefDatabase;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefLease;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.io.CountingInputStream;
+import com.google.gerrit.entities.Project;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+
+/**
+ * Implementation of the {@link ExtendedGlobalRefDatabase} interface persisting refs and values on
+ * the local filesystem.
+ *
+ * <p>Every successful update is appended to a write-ahead log before being applied in memory and
+ * acknowledged, so that no reader can observe a value which is not durable yet. At startup the log
+ * is replayed into an {@link InMemoryGlobalRefDatabase}, which serves all the reads and the locking
+ * of refs, so that lookups and compare-and-put checks never touch the disk. Once the log contains
+ * more than the compaction threshold of records, and more than twice the number of live entries, it
+ * is rewritten in the background with only the current state of the refs and values. Updates keep
+ * on being appended to the current log until the compacted one, completed with the records appended
+ * in the meantime, atomically replaces it. A failed compaction leaves the current log in place.
+ *
+ * <p>A record only partially written, because of a crash, is discarded when replaying the log. When
+ * appending to the log fails, the update is rejected with a {@link GlobalRefDbSystemError} without
+ * being applied in memory, and all subsequent updates are rejected as well, since the end of the
+ * log may hold a partial record.
+ *
+ * <p>Updates are serialised, whilst reads and locks are concurrent. Generic values are limited to
+ * {@link String}, {@link Long}, {@link Integer}, {@link Boolean} and {@link ObjectId}, and names
+ * and strings to {@value #MAX_STRING_LENGTH} bytes once encoded.
+ *
+ * <p>The log must be owned by a single JVM, since locks are held in memory: ownership is enforced
+ * with an exclusive lock on a sibling file with the {@code .lock} suffix, held until closed. It is
+ * meant for durable single-node and CI environments and as a reference backend for benchmarks.
+ */
+public class FileBasedGlobalRefDatabase implements ExtendedGlobalRefDatabase, AutoCloseable {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  public static final long DEFAULT_COMPACTION_THRESHOLD = 100000L;
+
+  /** Maximum length of names and strings, in modified UTF-8, as written by {@code writeUTF}. */
+  public static final int MAX_STRING_LENGTH = 65535;
+
+  private static final byte REF_RECORD = 1;
+  private static final byte VALUE_RECORD = 2;
+  private static final byte REMOVE_PROJECT_RECORD = 3;
+
+  private static final byte NULL_VALUE = 0;
+  private static final byte STRING_VALUE = 1;
+  private static final byte LONG_VALUE = 2;
+  private static final byte INTEGER_VALUE = 3;
+  private static final byte BOOLEAN_VALUE = 4;
+  private static final byte OBJECT_ID_VALUE = 5;
+
+  private final Path logFile;
+  private final InMemoryGlobalRefDatabase index;
+  private final boolean syncOnWrite;
+  private final long compactionThreshold;
+  private final Object writeLock = new Object();
+  private final FileChannel ownerLock;
+  private final ExecutorService compactionExecutor;
+
+  private FileChannel log;
+  private long logRecords;
+  private IOException writeFailure;
+  private boolean compacting;
+  private Future<?> compaction;
+
+  /**
+   * Constructs a {@code FileBasedGlobalRefDatabase} persisting its state in the given log file,
+   * which is created if it does not exist yet.
+   *
+   * @param logFile file of the write-ahead log
+   * @throws IOException if the log cannot be read or opened for writing, or is owned by another
+   *     instance
+   */
+  public FileBasedGlobalRefDatabase(Path logFile) throws IOException {
+    this(logFile, new InMemoryGlobalRefDatabase(), true, DEFAULT_COMPACTION_THRESHOLD);
+  }
+
+  /**
+   * Constructs a {@code FileBasedGlobalRefDatabase} persisting its state in the given log file,
+   * which is created if it does not exist yet.
+   *
+   * @param logFile file of the write-ahead log
+   * @param index empty in-memory global-refdb where the log is replayed
+   * @param syncOnWrite whether every update is synced to the storage device before being
+   *     acknowledged
+   * @param compactionThreshold minimum number of records in the log before it is compacted
+   * @throws IOException if the log cannot be read or opened for writing, or is owned by another
+   *     instance
+   */
+  public FileBasedGlobalRefDatabase(
+      Path logFile, InMemoryGlobalRefDatabase index, boolean syncOnWrite, long compactionThreshold)
+      throws IOException {
+    checkArgument(index.size() == 0, "index must be empty");
+    checkArgument(compactionThreshold > 0, "compactionThreshold must be positive");
+    this.logFile = logFile;
+    this.index = index;
+    this.syncOnWrite = syncOnWrite;
+    this.compactionThreshold = compactionThreshold;
+
+    ownerLock = lockOwnership(logFile);
+    try {
+      long validLogLength = replay();
+      log =
+          FileChannel.open(
+              logFile,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE);
+      if (log.size() > validLogLength) {
+        logger.atWarning().log(
+            "Discarding %d bytes of incomplete records at the end of %s",
+            log.size() - validLogLength, logFile);
+        log.truncate(validLogLength);
+      }
+      log.position(validLogLength);
+    } catch (IOException | RuntimeException e) {
+      ownerLock.close();
+      throw e;
+    }
+
+    compactionExecutor =
+        Executors.newSingleThreadExecutor(
+            r -> {
+              Thread thread = new Thread(r, "global-refdb-log-compaction");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  @Override
+  public boolean isUpToDate(Project.NameKey project, Ref ref) throws GlobalRefDbLockException {
+    return index.isUpToDate(project, ref);
+  }
+
+  @Override
+  public boolean compareAndPut(Project.NameKey project, Ref currRef, ObjectId newRefValue)
+      throws GlobalRefDbSystemError {
+    checkSupportedValue(project, currRef.getName(), newRefValue);
+    ByteBuffer record = refRecord(project, currRef.getName(), newRefValue);
+    return update(
+        record,
+        () -> index.canCompareAndPut(project, currRef),
+        () -> index.putRef(project, currRef.getName(), newRefValue));
+  }
+
+  @Override
+  public boolean compareAndPut(
+      Project.NameKey project, Ref currRef, ObjectId newRefValue, long fencingToken)
+      throws GlobalRefDbSystemError {
+    checkSupportedValue(project, currRef.getName(), newRefValue);
+    ByteBuffer record = refRecord(project, currRef.getName(), newRefValue);
+    return update(
+        record,
+        () -> index.canCompareAndPut(project, currRef, fencingToken),
+        () -> index.putRef(project, currRef.getName(), newRefValue));
+  }
+
+  @Override
+  public <T> boolean compareAndPut(Project.NameKey project, String refName, T currValue, T newValue)
+      throws GlobalRefDbSystemError {
+    checkSupportedValue(project, refName, newValue);
+    ByteBuffer record = valueRecord(project, refName, newValue);
+    return update(
+        record,
+        () -> index.canCompareAndPut(project, refName, currValue),
+        () -> index.put(project, refName, newValue));
+  }
+
+  @Override
+  public <T> void put(Project.NameKey project, String refName, T newValue)
+      throws GlobalRefDbSystemError {
+    checkSupportedValue(project, refName, newValue);
+    ByteBuffer record = valueRecord(project, refName, newValue);
+    update(
+        record,
+        () -> {
+          index.checkCanPut(project, refName);
+          return true;
+        },
+        () -> index.put(project, refName, newValue));
+  }
+
+  @Override
+  public AutoCloseable lockRef(Project.NameKey project, String refName)
+      throws GlobalRefDbLockException {
+    return index.lockRef(project, refName);
+  }
+
+  @Override
+  public AutoCloseable lockRefs(Project.NameKey project, SortedSet<String> refNames)
+      throws GlobalRefDbLockException {
+    return index.lockRefs(project, refNames);
+  }
+
+  @Override
+  public AutoCloseable lockProject(Project.NameKey project) throws GlobalRefDbLockException {
+    return index.lockProject(project);
+  }
+
+  @Override
+  public GlobalRefLease leaseRef(Project.NameKey project, String refName, Duration ttl)
+      throws GlobalRefDbLockException {
+    return index.leaseRef(project, refName, ttl);
+  }
+
+  @Override
+  public boolean exists(Project.NameKey project, String refName) {
+    return index.exists(project, refName);
+  }
+
+  @Override
+  public void remove(Project.NameKey project) throws GlobalRefDbSystemError {
+    ByteBuffer record = removeProjectRecord(project);
+    update(record, () -> true, () -> index.remove(project));
+  }
+
+  @Override
+  public <T> Optional<T> get(Project.NameKey project, String refName, Class<T> clazz)
+      throws GlobalRefDbSystemError {
+    return index.get(project, refName, clazz);
+  }
+
+  /**
+   * Close the write-ahead log and release its ownership. A compaction in progress is abandoned and
+   * any subsequent update fails with a {@link GlobalRefDbSystemError}.
+   *
+   * @throws IOException if the log cannot be closed
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (writeLock) {
+      if (writeFailure == null) {
+        writeFailure = new IOException(logFile + " has been closed");
+      }
+    }
+    compactionExecutor.shutdownNow();
+    synchronized (writeLock) {
+      try {
+        log.close();
+      } finally {
+        ownerLock.close();
+      }
+    }
+  }
+
+  private static FileChannel lockOwnership(Path logFile) throws IOException {
+    Path lockFile = logFile.resolveSibling(logFile.getFileName() + ".lock");
+    FileChannel lockChannel =
+        FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    boolean locked = false;
+    try {
+      locked = lockChannel.tryLock() != null;
+    } catch (OverlappingFileLockException e) {
+      // Already locked by another instance in this JVM
+    } finally {
+      if (!locked) {
+        lockChannel.close();
+      }
+    }
+    if (!locked) {
+      throw new IOException(
+          String.format("Global-refdb log %s is owned by another instance", logFile));
+    }
+    return lockChannel;
+  }
+
+  private long replay() throws IOException {
+    if (!Files.exists(logFile)) {
+      return 0;
+    }
+
+    try (CountingInputStream counter =
+            new CountingInputStream(new BufferedInputStream(Files.newInputStream(logFile)));
+        DataInputStream in = new DataInputStream(counter)) {
+      long validLength = 0;
+      while (true) {
+        try {
+          replayRecord(in);
+        } catch (EOFException e) {
+          return validLength;
+        }
+        validLength = counter.getCount();
+        logRecords++;
+      }
+    }
+  }
+
+  private void replayRecord(DataInputStream in) throws IOException {
+    byte recordType = in.readByte();
+    Project.NameKey project = Project.nameKey(in.readUTF());
+    switch (recordType) {
+      case REF_RECORD:
+        index.putRef(project, in.readUTF(), readObjectId(in));
+        break;
+      case VALUE_RECORD:
+        index.put(project, in.readUTF(), readValue(in));
+        break;
+      case REMOVE_PROJECT_RECORD:
+        index.remove(project);
+        break;
+      default:
+        throw new IOException(
+            String.format("Unknown record type %d in %s", recordType, logFile.toString()));
+    }
+  }
+
+  private void checkWritable() {
+    if (writeFailure != null) {
+      throw new GlobalRefDbSystemError(
+          String.format("Global-refdb log %s is not writable", logFile), writeFailure);
+    }
+  }
+
+  /**
+   * Append the record of an update to the log and only then apply the update in memory. The
+   * precondition of the update is checked before appending and cannot change before it is applied,
+   * since all the updates are serialised: a lease which expires in between does not prevent an
+   * update already appended from being applied.
+   */
+  private boolean update(ByteBuffer record, BooleanSupplier precondition, Runnable apply) {
+    synchronized (writeLock) {
+      checkWritable();
+      if (!precondition.getAsBoolean()) {
+        return false;
+      }
+      append(record);
+      apply.run();
+      if (!compacting && logRecords > compactionThreshold && logRecords > 2 * index.size()) {
+        compacting = true;
+        compaction = compactionExecutor.submit(this::compact);
+      }
+      return true;
+    }
+  }
+
+  private void append(ByteBuffer record) {
+    try {
+      while (record.hasRemaining()) {
+        log.write(record);
+      }
+      if (syncOnWrite) {
+        log.force(false);
+      }
+      logRecords++;
+    } catch (IOException e) {
+      writeFailure = e;
+      throw new GlobalRefDbSystemError(
+          String.format("Unable to append to global-refdb log %s", logFile), e);
+    }
+  }
+
+  /**
+   * Write the current state of the index to a new log, whilst updates keep on being appended to the
+   * current one. The records appended since the state was read are then copied to the new log,
+   * which atomically replaces the current one, all under the write lock.
+   *
+   * <p>The state is read concurrently with the updates and may already include some of the records
+   * copied afterwards: replaying them again is harmless, since every record sets the latest value
+   * of its entries.
+   */
+  private void compact() {
+    Path compactedLogFile = logFile.resolveSibling(logFile.getFileName() + ".compacting");
+    FileChannel compactedLog = null;
+    try {
+      long snapshotPosition;
+      long snapshotRecords;
+      synchronized (writeLock) {
+        checkNotFailed();
+        snapshotPosition = log.size();
+        snapshotRecords = logRecords;
+      }
+
+      compactedLog =
+          FileChannel.open(
+              compactedLogFile,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.TRUNCATE_EXISTING);
+      RecordWriter writer = new RecordWriter(compactedLog);
+      index.forEachRef(
+          (project, refName, value) -> writer.write(refRecord(project, refName, value)));
+      index.forEachValue(
+          (project, refName, value) -> writer.write(valueRecord(project, refName, value)));
+
+      synchronized (writeLock) {
+        checkNotFailed();
+        long position = snapshotPosition;
+        long logSize = log.size();
+        while (position < logSize) {
+          position += log.transferTo(position, logSize - position, compactedLog);
+        }
+        compactedLog.force(true);
+        Files.move(
+            compactedLogFile,
+            logFile,
+            StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+
+        FileChannel previousLog = log;
+        long compactedRecords = writer.records + logRecords - snapshotRecords;
+        log = compactedLog;
+        compactedLog = null;
+        logger.atFine().log(
+            "Compacted %s from %d to %d records", logFile, logRecords, compactedRecords);
+        logRecords = compactedRecords;
+        closeQuietly(previousLog);
+        syncLogDirectory();
+      }
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log(
+          "Unable to compact global-refdb log %s: keeping the current log", logFile);
+    } finally {
+      if (compactedLog != null) {
+        closeQuietly(compactedLog);
+        try {
+          Files.deleteIfExists(compactedLogFile);
+        } catch (IOException e) {
+          logger.atWarning().withCause(e).log("Unable to delete %s", compactedLogFile);
+        }
+      }
+      synchronized (writeLock) {
+        compacting = false;
+      }
+    }
+  }
+
+  private void checkNotFailed() throws IOException {
+    if (writeFailure != null) {
+      throw new IOException(
+          String.format("Global-refdb log %s is not writable", logFile), writeFailure);
+    }
+  }
+
+  /**
+   * Sync the directory of the log, so that the replacement of the log survives a crash. Updates
+   * appended to the compacted log would otherwise be lost, hence they are rejected when the
+   * directory cannot be synced.
+   */
+  private void syncLogDirectory() {
+    try (FileChannel directory =
+        FileChannel.open(logFile.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+      directory.force(true);
+    } catch (IOException e) {
+      writeFailure = e;
+      logger.atSevere().withCause(e).log(
+          "Unable to sync the directory of global-refdb log %s", logFile);
+    }
+  }
+
+  private static void closeQuietly(FileChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Unable to close global-refdb log");
+    }
+  }
+
+  /**
+   * Wait for the completion of the last compaction started, if any.
+   *
+   * @throws Exception if the compaction cannot be waited for
+   */
+  @VisibleForTesting
+  void awaitCompaction() throws Exception {
+    Future<?> lastCompaction;
+    synchronized (writeLock) {
+      lastCompaction = compaction;
+    }
+    if (lastCompaction != null) {
+      lastCompaction.get();
+    }
+  }
+
+  private static class RecordWriter {
+    private final FileChannel channel;
+    private long records;
+
+    RecordWriter(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    void write(ByteBuffer record) throws IOException {
+      while (record.hasRemaining()) {
+        channel.write(record);
+      }
+      records++;
+    }
+  }
+
+  private static ByteBuffer refRecord(Project.NameKey project, String refName, ObjectId value) {
+    return record(
+        REF_RECORD,
+        project,
+        out -> {
+          out.writeUTF(refName);
+          byte[] rawValue = new byte[Constants.OBJECT_ID_LENGTH];
+          (value == null ? ObjectId.zeroId() : value).copyRawTo(rawValue, 0);
+          out.write(rawValue);
+        });
+  }
+
+  private static ByteBuffer valueRecord(Project.NameKey project, String refName, Object value) {
+    return record(
+        VALUE_RECORD,
+        project,
+        out -> {
+          out.writeUTF(refName);
+          writeValue(out, value);
+        });
+  }
+
+  private static ByteBuffer removeProjectRecord(Project.NameKey project) {
+    return record(REMOVE_PROJECT_RECORD, project, out -> {});
+  }
+
+  @FunctionalInterface
+  private interface RecordBody {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  private static ByteBuffer record(byte recordType, Project.NameKey project, RecordBody body) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(recordType);
+      out.writeUTF(project.get());
+      body.write(out);
+    } catch (IOException e) {
+      throw new GlobalRefDbSystemError(
+          String.format("Unable to serialise record of project %s", project.get()), e);
+    }
+    return ByteBuffer.wrap(bytes.toByteArray());
+  }
+
+  private static void writeValue(DataOutputStream out, Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(NULL_VALUE);
+    } else if (value instanceof String) {
+      out.writeByte(STRING_VALUE);
+      out.writeUTF((String) value);
+    } else if (value instanceof Long) {
+      out.writeByte(LONG_VALUE);
+      out.writeLong((Long) value);
+    } else if (value instanceof Integer) {
+      out.writeByte(INTEGER_VALUE);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Boolean) {
+      out.writeByte(BOOLEAN_VALUE);
+      out.writeBoolean((Boolean) value);
+    } else if (value instanceof ObjectId) {
+      out.writeByte(OBJECT_ID_VALUE);
+      byte[] rawValue = new byte[Constants.OBJECT_ID_LENGTH];
+      ((ObjectId) value).copyRawTo(rawValue, 0);
+      out.write(rawValue);
+    } else {
+      throw new IOException("Unsupported value type " + value.getClass().getName());
+    }
+  }
+
+  private Object readValue(DataInputStream in) throws IOException {
+    byte valueType = in.readByte();
+    switch (valueType) {
+      case NULL_VALUE:
+        return null;
+      case STRING_VALUE:
+        return in.readUTF();
+      case LONG_VALUE:
+        return in.readLong();
+      case INTEGER_VALUE:
+        return in.readInt();
+      case BOOLEAN_VALUE:
+        return in.readBoolean();
+      case OBJECT_ID_VALUE:
+        return readObjectId(in);
+      default:
+        throw new IOException(
+            String.format("Unknown value type %d in %s", valueType, logFile.toString()));
+    }
+  }
+
+  private static ObjectId readObjectId(DataInputStream in) throws IOException {
+    byte[] rawValue = new byte[Constants.OBJECT_ID_LENGTH];
+    in.readFully(rawValue);
+    return ObjectId.fromRaw(rawValue);
+  }
+
+  private static void checkSupportedValue(Project.NameKey project, String refName, Object value) {
+    if (exceedsMaxStringLength(project.get())
+        || exceedsMaxStringLength(refName)
+        || (value instanceof String && exceedsMaxStringLength((String) value))) {
+      throw new GlobalRefDbSystemError(
+          String.format(
+              "Unable to store %s on project %s: names and strings cannot exceed %d bytes",
+              abbreviate(refName), abbreviate(project.get()), MAX_STRING_LENGTH),
+          null);
+    }
+    if (value != null
+        && !(value instanceof String
+            || value instanceof Long
+            || value instanceof Integer
+            || value instanceof Boolean
+            || value instanceof ObjectId)) {
+      throw new GlobalRefDbSystemError(
+          String.format(
+              "Unable to store %s on project %s: unsupported value type %s",
+              refName, project.get(), value.getClass().getName()),
+          null);
+    }
+  }
+
+  private static boolean exceedsMaxStringLength(String value) {
+    if (value.length() <= MAX_STRING_LENGTH / 3) {
+      return false;
+    }
+
+    long utfLength = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c >= 0x0001 && c <= 0x007F) {
+        utfLength++;
+      } else if (c > 0x07FF) {
+        utfLength += 3;
+      } else {
+        utfLength += 2;
+      }
+    }
+    return utfLength > MAX_STRING_LENGTH;
+  }
+
+  private static String abbreviate(String name) {
+    return name.length() > 100 ? name.substring(0, 100) + "..." : name;
+  }
+}
@@ -0,0 +1,641 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.gerritforge.gerrit.globalrefdb.ExtendedGlobalRefDatabase;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefLease;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.gerrit.entities.Project;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+
+/**
+ * Implementation of the {@link ExtendedGlobalRefDatabase} interface keeping all the refs and values
+ * in the memory of the JVM.
+ *
+ * <p>It is meant for single-node installations, staging environments and as a baseline for
+ * benchmarking other implementations: the state is not shared with other nodes and it is lost upon
+ * restart.
+ *
+ * <p>Refs are locked through a fixed number of fair lock stripes, so that the memory used for
+ * locking does not grow with the number of refs. Projects are locked through the same number of
+ * fair read-write lock stripes: ref locks hold the read lock of their project, whilst project locks
+ * hold the write lock. Locks are acquired within a configurable timeout and, being reentrant, are
+ * owned by the thread that acquired them: they must be closed by the same thread, including the
+ * ones obtained through {@link #lockRefAsync(Project.NameKey, String)}, which are acquired by the
+ * calling thread. Closing them from another thread fails with an {@link
+ * IllegalMonitorStateException}.
+ *
+ * <p>Refs can also be leased: leases are independent from locks, expire unless renewed within their
+ * time-to-live and can be released by any thread.
+ *
+ * <p>The total number of refs and values stored can be bounded: once the limit is reached, the
+ * creation of new entries fails with a {@link GlobalRefDbSystemError}, whilst the updates of
+ * existing ones keep on succeeding.
+ */
+public class InMemoryGlobalRefDatabase implements ExtendedGlobalRefDatabase {
+  public static final int DEFAULT_LOCK_STRIPES = 1024;
+  public static final long DEFAULT_LOCK_TIMEOUT_MSEC = 10000L;
+  public static final long UNBOUNDED = Long.MAX_VALUE;
+
+  private static final long LEASE_POLL_INTERVAL_MSEC = 10L;
+
+  private final ConcurrentMap<Project.NameKey, ConcurrentMap<String, ObjectId>> refs =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<Project.NameKey, ConcurrentMap<String, Optional<Object>>> values =
+      new ConcurrentHashMap<>();
+  private final ReentrantLock[] lockStripes;
+  private final ReentrantReadWriteLock[] projectLockStripes;
+  private final long lockTimeoutMsec;
+  private final long maxEntries;
+  private final AtomicLong entries = new AtomicLong();
+  private final ConcurrentMap<Project.NameKey, ConcurrentMap<String, LeaseState>> leases =
+      new ConcurrentHashMap<>();
+  private final AtomicLong lastFencingToken = new AtomicLong();
+  private final Ticker ticker;
+
+  /**
+   * Constructs an unbounded {@code InMemoryGlobalRefDatabase} with {@link #DEFAULT_LOCK_STRIPES}
+   * lock stripes and a lock timeout of {@link #DEFAULT_LOCK_TIMEOUT_MSEC} milliseconds.
+   */
+  public InMemoryGlobalRefDatabase() {
+    this(DEFAULT_LOCK_STRIPES, DEFAULT_LOCK_TIMEOUT_MSEC, TimeUnit.MILLISECONDS, UNBOUNDED);
+  }
+
+  /**
+   * Constructs an {@code InMemoryGlobalRefDatabase}.
+   *
+   * @param lockStripes number of locks shared by all the refs of all the projects
+   * @param lockTimeout maximum time to wait for acquiring the lock of a ref
+   * @param lockTimeoutUnit unit of the lock timeout
+   * @param maxEntries maximum number of refs and values stored, or {@link #UNBOUNDED}
+   */
+  public InMemoryGlobalRefDatabase(
+      int lockStripes, long lockTimeout, TimeUnit lockTimeoutUnit, long maxEntries) {
+    this(lockStripes, lockTimeout, lockTimeoutUnit, maxEntries, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  InMemoryGlobalRefDatabase(
+      int lockStripes, long lockTimeout, TimeUnit lockTimeoutUnit, long maxEntries, Ticker ticker) {
+    checkArgument(lockStripes > 0, "lockStripes must be positive");
+    checkArgument(maxEntries > 0, "maxEntries must be positive");
+    this.lockStripes = new ReentrantLock[lockStripes];
+    this.projectLockStripes = new ReentrantReadWriteLock[lockStripes];
+    for (int i = 0; i < lockStripes; i++) {
+      this.lockStripes[i] = new ReentrantLock(true);
+      this.projectLockStripes[i] = new ReentrantReadWriteLock(true);
+    }
+    this.lockTimeoutMsec = lockTimeoutUnit.toMillis(lockTimeout);
+    this.maxEntries = maxEntries;
+    this.ticker = ticker;
+  }
+
+  @Override
+  public boolean isUpToDate(Project.NameKey project, Ref ref) throws GlobalRefDbLockException {
+    ObjectId value = projectRefs(project).get(ref.getName());
+    if (value == null) {
+      return true;
+    }
+    return value.equals(valueOf(ref.getObjectId()));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>A ref which is not stored yet is always created.
+   */
+  @Override
+  public boolean compareAndPut(Project.NameKey project, Ref currRef, ObjectId newRefValue)
+      throws GlobalRefDbSystemError {
+    String refName = currRef.getName();
+    ObjectId newValue = valueOf(newRefValue);
+    return updateProjectEntries(
+        refs,
+        project,
+        projectRefs -> {
+          if (!projectRefs.containsKey(refName)) {
+            return putIfAbsent(project, refName, projectRefs, newValue);
+          }
+          return projectRefs.replace(refName, valueOf(currRef.getObjectId()), newValue);
+        });
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The lease is checked and the ref is put atomically with respect to the expiry and the
+   * takeover of the lease.
+   */
+  @Override
+  public boolean compareAndPut(
+      Project.NameKey project, Ref currRef, ObjectId newRefValue, long fencingToken)
+      throws GlobalRefDbSystemError {
+    AtomicBoolean succeeded = new AtomicBoolean();
+    projectLeases(project)
+        .computeIfPresent(
+            currRef.getName(),
+            (refName, lease) -> {
+              if (lease.fencingToken == fencingToken && !lease.isExpired(ticker.read())) {
+                succeeded.set(compareAndPut(project, currRef, newRefValue));
+              }
+              return lease;
+            });
+    return succeeded.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>A value which is not stored yet is always created.
+   */
+  @Override
+  public <T> boolean compareAndPut(Project.NameKey project, String refName, T currValue, T newValue)
+      throws GlobalRefDbSystemError {
+    Optional<Object> newStoredValue = Optional.ofNullable(newValue);
+    return updateProjectEntries(
+        values,
+        project,
+        projectValues -> {
+          if (!projectValues.containsKey(refName)) {
+            return putIfAbsent(project, refName, projectValues, newStoredValue);
+          }
+          return projectValues.replace(refName, Optional.ofNullable(currValue), newStoredValue);
+        });
+  }
+
+  @Override
+  public <T> void put(Project.NameKey project, String refName, T newValue)
+      throws GlobalRefDbSystemError {
+    Optional<Object> newStoredValue = Optional.ofNullable(newValue);
+    updateProjectEntries(
+        values,
+        project,
+        projectValues ->
+            projectValues.replace(refName, newStoredValue) != null
+                || putIfAbsent(project, refName, projectValues, newStoredValue));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The returned lock must be closed by the thread that acquired it.
+   */
+  @Override
+  public AutoCloseable lockRef(Project.NameKey project, String refName)
+      throws GlobalRefDbLockException {
+    Lock projectLock = projectLockStripe(project).readLock();
+    tryLock(projectLock, project, refName);
+    ReentrantLock lock = lockStripes[lockStripe(project, refName)];
+    try {
+      tryLock(lock, project, refName);
+    } catch (GlobalRefDbLockException e) {
+      projectLock.unlock();
+      throw e;
+    }
+    return () -> {
+      lock.unlock();
+      projectLock.unlock();
+    };
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The lock stripes of the refs are acquired in the order of the stripes, so that concurrent
+   * requests on overlapping refs cannot deadlock, even when their refs share the same stripes. The
+   * returned lock must be closed by the thread that acquired it.
+   */
+  @Override
+  public AutoCloseable lockRefs(Project.NameKey project, SortedSet<String> refNames)
+      throws GlobalRefDbLockException {
+    SortedSet<Integer> stripes = new TreeSet<>();
+    for (String refName : refNames) {
+      stripes.add(lockStripe(project, refName));
+    }
+
+    Lock[] locks = new Lock[stripes.size() + 1];
+    locks[0] = projectLockStripe(project).readLock();
+    int locked = 0;
+    try {
+      tryLock(locks[0], project, refNames.toString());
+      locked++;
+      for (int stripe : stripes) {
+        locks[locked] = lockStripes[stripe];
+        tryLock(locks[locked], project, refNames.toString());
+        locked++;
+      }
+    } catch (GlobalRefDbLockException e) {
+      unlock(locks, locked);
+      throw e;
+    }
+
+    int lockedStripes = locked;
+    return () -> unlock(locks, lockedStripes);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>A lease held by someone else is checked again periodically, until it is released or expires,
+   * for at most the lock timeout.
+   */
+  @Override
+  public GlobalRefLease leaseRef(Project.NameKey project, String refName, Duration ttl)
+      throws GlobalRefDbLockException {
+    checkArgument(!ttl.isNegative() && !ttl.isZero(), "ttl must be positive");
+    ConcurrentMap<String, LeaseState> projectLeases = projectLeases(project);
+    long ttlNanos = ttl.toNanos();
+    long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lockTimeoutMsec);
+    Object holder = new Object();
+    while (true) {
+      long now = ticker.read();
+      LeaseState lease =
+          projectLeases.compute(
+              refName,
+              (name, current) ->
+                  current == null || current.isExpired(now)
+                      ? new LeaseState(holder, lastFencingToken.incrementAndGet(), now + ttlNanos)
+                      : current);
+      if (lease.holder == holder) {
+        return new Lease(projectLeases, project, refName, lease.fencingToken, ttlNanos);
+      }
+
+      long remainingMsec = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+      if (remainingMsec <= 0) {
+        throw new GlobalRefDbLockException(
+            project.get(),
+            refName,
+            new TimeoutException(
+                String.format("Lease not acquired within %d msec", lockTimeoutMsec)));
+      }
+      try {
+        Thread.sleep(Math.min(remainingMsec, LEASE_POLL_INTERVAL_MSEC));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new GlobalRefDbLockException(project.get(), refName, e);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The project lock waits for the locks of the refs of the project already held and blocks the
+   * new ones until released. Projects sharing the same stripe are locked together. The returned
+   * lock must be closed by the thread that acquired it.
+   */
+  @Override
+  public AutoCloseable lockProject(Project.NameKey project) throws GlobalRefDbLockException {
+    Lock lock = projectLockStripe(project).writeLock();
+    tryLock(lock, project, "*");
+    return lock::unlock;
+  }
+
+  @Override
+  public boolean exists(Project.NameKey project, String refName) {
+    return projectRefs(project).containsKey(refName);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Both the refs and the values of the project are removed, and its leases are released. Locks
+   * are striped across all projects, hence there is no lock state specific to the project left
+   * behind. The removal is exclusive with respect to the updates of the project, so that no update
+   * can be lost in the removed entries.
+   */
+  @Override
+  public void remove(Project.NameKey project) throws GlobalRefDbSystemError {
+    refs.compute(
+        project,
+        (p, projectRefs) -> {
+          removeEntries(projectRefs);
+          return null;
+        });
+    values.compute(
+        project,
+        (p, projectValues) -> {
+          removeEntries(projectValues);
+          return null;
+        });
+    leases.remove(project);
+  }
+
+  @Override
+  public <T> Optional<T> get(Project.NameKey project, String refName, Class<T> clazz)
+      throws GlobalRefDbSystemError {
+    Optional<Object> value = projectValues(project).get(refName);
+    if (value == null) {
+      return Optional.empty();
+    }
+    return value.map(clazz::cast);
+  }
+
+  /**
+   * Get the number of refs and values stored.
+   *
+   * @return the number of entries
+   */
+  long size() {
+    return entries.get();
+  }
+
+  /**
+   * Check whether {@link #compareAndPut(Project.NameKey, Ref, ObjectId)} would succeed, without
+   * updating the ref.
+   *
+   * @return true if the ref would be updated
+   * @throws GlobalRefDbSystemError if the ref would be created but no more entries can be stored
+   */
+  boolean canCompareAndPut(Project.NameKey project, Ref currRef) {
+    ObjectId value = projectRefs(project).get(currRef.getName());
+    if (value == null) {
+      checkCapacity(project, currRef.getName());
+      return true;
+    }
+    return value.equals(valueOf(currRef.getObjectId()));
+  }
+
+  /**
+   * Check whether {@link #compareAndPut(Project.NameKey, Ref, ObjectId, long)} would succeed, when
+   * checked at the current time, without updating the ref.
+   *
+   * @return true if the ref would be updated
+   * @throws GlobalRefDbSystemError if the ref would be created but no more entries can be stored
+   */
+  boolean canCompareAndPut(Project.NameKey project, Ref currRef, long fencingToken) {
+    LeaseState lease = projectLeases(project).get(currRef.getName());
+    return lease != null
+        && lease.fencingToken == fencingToken
+        && !lease.isExpired(ticker.read())
+        && canCompareAndPut(project, currRef);
+  }
+
+  /**
+   * Check whether {@link #compareAndPut(Project.NameKey, String, Object, Object)} would succeed,
+   * without updating the value.
+   *
+   * @return true if the value would be updated
+   * @throws GlobalRefDbSystemError if the value would be created but no more entries can be stored
+   */
+  <T> boolean canCompareAndPut(Project.NameKey project, String refName, T currValue) {
+    Optional<Object> value = projectValues(project).get(refName);
+    if (value == null) {
+      checkCapacity(project, refName);
+      return true;
+    }
+    return value.equals(Optional.ofNullable(currValue));
+  }
+
+  /**
+   * Check whether {@link #put(Project.NameKey, String, Object)} would succeed, without updating the
+   * value.
+   *
+   * @throws GlobalRefDbSystemError if the value would be created but no more entries can be stored
+   */
+  void checkCanPut(Project.NameKey project, String refName) {
+    if (!projectValues(project).containsKey(refName)) {
+      checkCapacity(project, refName);
+    }
+  }
+
+  void putRef(Project.NameKey project, String refName, ObjectId value) {
+    ObjectId storedValue = valueOf(value);
+    updateProjectEntries(
+        refs,
+        project,
+        projectRefs ->
+            projectRefs.replace(refName, storedValue) != null
+                || putIfAbsent(project, refName, projectRefs, storedValue));
+  }
+
+  void forEachRef(EntryConsumer<ObjectId> consumer) throws IOException {
+    forEach(refs, consumer);
+  }
+
+  void forEachValue(EntryConsumer<Object> consumer) throws IOException {
+    for (Map.Entry<Project.NameKey, ConcurrentMap<String, Optional<Object>>> projectValues :
+        values.entrySet()) {
+      for (Map.Entry<String, Optional<Object>> value : projectValues.getValue().entrySet()) {
+        consumer.accept(projectValues.getKey(), value.getKey(), value.getValue().orElse(null));
+      }
+    }
+  }
+
+  @FunctionalInterface
+  interface EntryConsumer<V> {
+    void accept(Project.NameKey project, String refName, V value) throws IOException;
+  }
+
+  private static <V> void forEach(
+      Map<Project.NameKey, ConcurrentMap<String, V>> entries, EntryConsumer<V> consumer)
+      throws IOException {
+    for (Map.Entry<Project.NameKey, ConcurrentMap<String, V>> projectEntries : entries.entrySet()) {
+      for (Map.Entry<String, V> entry : projectEntries.getValue().entrySet()) {
+        consumer.accept(projectEntries.getKey(), entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  private ConcurrentMap<String, ObjectId> projectRefs(Project.NameKey project) {
+    return refs.computeIfAbsent(project, p -> new ConcurrentHashMap<>());
+  }
+
+  private ConcurrentMap<String, Optional<Object>> projectValues(Project.NameKey project) {
+    return values.computeIfAbsent(project, p -> new ConcurrentHashMap<>());
+  }
+
+  private ConcurrentMap<String, LeaseState> projectLeases(Project.NameKey project) {
+    return leases.computeIfAbsent(project, p -> new ConcurrentHashMap<>());
+  }
+
+  private <V> boolean putIfAbsent(
+      Project.NameKey project, String refName, ConcurrentMap<String, V> projectMap, V value) {
+    if (entries.incrementAndGet() > maxEntries) {
+      entries.decrementAndGet();
+      throw fullError(project, refName);
+    }
+
+    if (projectMap.putIfAbsent(refName, value) != null) {
+      entries.decrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  private void checkCapacity(Project.NameKey project, String refName) {
+    if (entries.get() >= maxEntries) {
+      throw fullError(project, refName);
+    }
+  }
+
+  private GlobalRefDbSystemError fullError(Project.NameKey project, String refName) {
+    return new GlobalRefDbSystemError(
+        String.format(
+            "Unable to store %s on project %s: in-memory global-refdb is full (%d entries)",
+            refName, project.get(), maxEntries),
+        null);
+  }
+
+  /**
+   * Apply an update to the entries of a project, exclusively with respect to the other updates and
+   * the removal of the project.
+   */
+  private static <V> boolean updateProjectEntries(
+      ConcurrentMap<Project.NameKey, ConcurrentMap<String, V>> entries,
+      Project.NameKey project,
+      Predicate<ConcurrentMap<String, V>> update) {
+    AtomicBoolean updated = new AtomicBoolean();
+    entries.compute(
+        project,
+        (p, projectEntries) -> {
+          ConcurrentMap<String, V> currentEntries =
+              projectEntries != null ? projectEntries : new ConcurrentHashMap<>();
+          updated.set(update.test(currentEntries));
+          return currentEntries;
+        });
+    return updated.get();
+  }
+
+  private void removeEntries(Map<String, ?> projectMap) {
+    if (projectMap != null) {
+      entries.addAndGet(-projectMap.size());
+    }
+  }
+
+  private int lockStripe(Project.NameKey project, String refName) {
+    return Math.floorMod(31 * project.hashCode() + refName.hashCode(), lockStripes.length);
+  }
+
+  private ReentrantReadWriteLock projectLockStripe(Project.NameKey project) {
+    return projectLockStripes[Math.floorMod(project.hashCode(), projectLockStripes.length)];
+  }
+
+  private void tryLock(Lock lock, Project.NameKey project, String refName)
+      throws GlobalRefDbLockException {
+    try {
+      if (!lock.tryLock(lockTimeoutMsec, TimeUnit.MILLISECONDS)) {
+        throw new GlobalRefDbLockException(
+            project.get(),
+            refName,
+            new TimeoutException(
+                String.format("Lock not acquired within %d msec", lockTimeoutMsec)));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GlobalRefDbLockException(project.get(), refName, e);
+    }
+  }
+
+  private static void unlock(Lock[] locks, int count) {
+    for (int i = count - 1; i >= 0; i--) {
+      locks[i].unlock();
+    }
+  }
+
+  private static ObjectId valueOf(ObjectId objectId) {
+    return objectId == null ? ObjectId.zeroId() : objectId;
+  }
+
+  private static final class LeaseState {
+    private final Object holder;
+    private final long fencingToken;
+    private final long expiresAtNanos;
+
+    private LeaseState(Object holder, long fencingToken, long expiresAtNanos) {
+      this.holder = holder;
+      this.fencingToken = fencingToken;
+      this.expiresAtNanos = expiresAtNanos;
+    }
+
+    private boolean isExpired(long nowNanos) {
+      return nowNanos - expiresAtNanos >= 0;
+    }
+  }
+
+  private class Lease implements GlobalRefLease {
+    private final ConcurrentMap<String, LeaseState> projectLeases;
+    private final Project.NameKey project;
+    private final String refName;
+    private final long fencingToken;
+    private final long ttlNanos;
+
+    private Lease(
+        ConcurrentMap<String, LeaseState> projectLeases,
+        Project.NameKey project,
+        String refName,
+        long fencingToken,
+        long ttlNanos) {
+      this.projectLeases = projectLeases;
+      this.project = project;
+      this.refName = refName;
+      this.fencingToken = fencingToken;
+      this.ttlNanos = ttlNanos;
+    }
+
+    @Override
+    public long getFencingToken() {
+      return fencingToken;
+    }
+
+    @Override
+    public void renew() throws GlobalRefDbLockException {
+      long now = ticker.read();
+      LeaseState lease =
+          projectLeases.computeIfPresent(
+              refName,
+              (name, current) ->
+                  isHeld(current, now)
+                      ? new LeaseState(current.holder, fencingToken, now + ttlNanos)
+                      : current);
+      if (lease == null || !isHeld(lease, now)) {
+        throw new GlobalRefDbLockException(
+            project.get(), refName, new TimeoutException("Lease expired or released"));
+      }
+    }
+
+    @Override
+    public void close() {
+      projectLeases.computeIfPresent(
+          refName, (name, current) -> current.fencingToken == fencingToken ? null : current);
+    }
+
+    private boolean isHeld(LeaseState lease, long nowNanos) {
+      return lease.fencingToken == fencingToken && !lease.isExpired(nowNanos);
+    }
+  }
+}
@@ -18,7 +18,9 @@ import com.gerritforge.gerrit.globalrefdb.ExtendedGlobalRefDatabase;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDatabase;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefLease;
 import com.google.gerrit.entities.Project;
+import java.time.Duration;
 import java.util.Optional;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
@@ -60,6 +62,23 @@ public class NoopSharedRefDatabase implements ExtendedGlobalRefDatabase {
     return true;
   }
 
+  /**
+   * Put is always considered successful
+   *
+   * @param project project name of the ref
+   * @param currRef old value to compare to.
+   * @param newRefValue new reference to store.
+   * @param fencingToken fencing token of the lease held on the ref.
+   * @return true
+   * @throws GlobalRefDbSystemError Never thrown by this implementation
+   */
+  @Override
+  public boolean compareAndPut(
+      Project.NameKey project, Ref currRef, ObjectId newRefValue, long fencingToken)
+      throws GlobalRefDbSystemError {
+    return true;
+  }
+
   /**
    * Put is always considered successful
    *
@@ -91,6 +110,26 @@ public class NoopSharedRefDatabase implements ExtendedGlobalRefDatabase {
     return () -> {};
   }
 
+  @Override
+  public AutoCloseable lockProject(Project.NameKey project) throws GlobalRefDbLockException {
+    return () -> {};
+  }
+
+  /**
+   * Leasing the ref does nothing, but return a dummy {@link GlobalRefLease}.
+   *
+   * @param project project name
+   * @param refName ref to lease
+   * @param ttl time-to-live of the lease
+   * @return a dummy {@link GlobalRefLease}.
+   * @throws GlobalRefDbLockException Never thrown by this implementation
+   */
+  @Override
+  public GlobalRefLease leaseRef(Project.NameKey project, String refName, Duration ttl)
+      throws GlobalRefDbLockException {
+    return NoopLease.INSTANCE;
+  }
+
   /**
    * project/refs are always assumed to be new as to never be considered out-of-sync
    *
@@ -133,4 +172,19 @@ public class NoopSharedRefDatabase implements ExtendedGlobalRefDatabase {
       throws GlobalRefDbSystemError {
     // do nothing
   }
+
+  private enum NoopLease implements GlobalRefLease {
+    INSTANCE;
+
+    @Override
+    public long getFencingToken() {
+      return 0L;
+    }
+
+    @Override
+    public void renew() {}
+
+    @Override
+    public void close() {}
+  }
 }
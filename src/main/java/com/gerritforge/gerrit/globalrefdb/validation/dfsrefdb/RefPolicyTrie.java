@@ -0,0 +1,170 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb;
+
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement.Policy;
+import com.google.common.collect.ImmutableMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Enforcement policies of ref name patterns, compiled into a trie of ref name segments.
+ *
+ * <p>Patterns are ref names whose segments are either literal or {@code *}, matching one or more
+ * segments. For example {@code refs/changes/*}{@code /meta} matches {@code refs/changes/01/1/meta},
+ * and {@code refs/users/*} matches all the refs under {@code refs/users/}.
+ *
+ * <p>The trie is evaluated as an automaton over the segments of a ref name, in a time proportional
+ * to the length of the name. When multiple patterns match, the one with the most literal segments
+ * wins; ties are broken in favour of {@link Policy#EXCLUDE}, then {@link Policy#INCLUDE_MUTABLE}.
+ */
+final class RefPolicyTrie {
+  static final RefPolicyTrie EMPTY = new RefPolicyTrie(new Node(false));
+
+  private static final String WILDCARD = "*";
+
+  private final Node root;
+
+  private RefPolicyTrie(Node root) {
+    this.root = root;
+  }
+
+  /**
+   * Get the policy of the most specific pattern matching the ref name.
+   *
+   * @param refName the name of the ref
+   * @return the policy of the matching pattern, or null when no pattern matches.
+   */
+  Policy getPolicy(String refName) {
+    if (root.literals.isEmpty() && root.wildcard == null) {
+      return null;
+    }
+
+    List<Node> states = new ArrayList<>();
+    List<Node> nextStates = new ArrayList<>();
+    states.add(root);
+    int start = 0;
+    while (start <= refName.length() && !states.isEmpty()) {
+      int end = refName.indexOf('/', start);
+      if (end < 0) {
+        end = refName.length();
+      }
+      String segment = refName.substring(start, end);
+      for (Node state : states) {
+        addState(nextStates, state.literals.get(segment));
+        addState(nextStates, state.wildcard);
+        if (state.repeatable) {
+          addState(nextStates, state);
+        }
+      }
+
+      List<Node> swap = states;
+      states = nextStates;
+      nextStates = swap;
+      nextStates.clear();
+      start = end + 1;
+    }
+
+    Node best = null;
+    for (Node state : states) {
+      if (state.policy != null && (best == null || state.isMoreSpecificThan(best))) {
+        best = state;
+      }
+    }
+    return best == null ? null : best.policy;
+  }
+
+  private static void addState(List<Node> states, Node state) {
+    if (state != null && !states.contains(state)) {
+      states.add(state);
+    }
+  }
+
+  /** Builder of a {@link RefPolicyTrie}. */
+  static class Builder {
+    private final Node root = new Node(false);
+    private final Map<String, Policy> policies = new HashMap<>();
+
+    /**
+     * Add the policy of a ref name pattern.
+     *
+     * @param pattern the ref name pattern
+     * @param policy the policy of the refs matching the pattern
+     * @return this builder
+     * @throws IllegalArgumentException if the pattern has already been added with another policy
+     */
+    Builder add(String pattern, Policy policy) {
+      Policy existingPolicy = policies.putIfAbsent(pattern, policy);
+      if (existingPolicy != null && existingPolicy != policy) {
+        throw new IllegalArgumentException(
+            String.format(
+                "Ref pattern '%s' is configured with both %s and %s policies",
+                pattern, existingPolicy, policy));
+      }
+
+      Node node = root;
+      int literalSegments = 0;
+      for (String segment : pattern.split("/", -1)) {
+        if (segment.equals(WILDCARD)) {
+          if (node.wildcard == null) {
+            node.wildcard = new Node(true);
+          }
+          node = node.wildcard;
+        } else {
+          literalSegments++;
+          node = node.literals.computeIfAbsent(segment, s -> new Node(false));
+        }
+      }
+      node.policy = policy;
+      node.literalSegments = literalSegments;
+      return this;
+    }
+
+    RefPolicyTrie build() {
+      return policies.isEmpty() ? EMPTY : new RefPolicyTrie(root.freeze());
+    }
+  }
+
+  private static final class Node {
+    private final boolean repeatable;
+    private Map<String, Node> literals = new HashMap<>();
+    private Node wildcard;
+    private Policy policy;
+    private int literalSegments;
+
+    private Node(boolean repeatable) {
+      this.repeatable = repeatable;
+    }
+
+    private boolean isMoreSpecificThan(Node other) {
+      if (literalSegments != other.literalSegments) {
+        return literalSegments > other.literalSegments;
+      }
+      return policy.ordinal() < other.policy.ordinal();
+    }
+
+    private Node freeze() {
+      ImmutableMap.Builder<String, Node> frozenLiterals = ImmutableMap.builder();
+      literals.forEach((segment, child) -> frozenLiterals.put(segment, child.freeze()));
+      literals = frozenLiterals.build();
+      if (wildcard != null) {
+        wildcard.freeze();
+      }
+      return this;
+    }
+  }
+}
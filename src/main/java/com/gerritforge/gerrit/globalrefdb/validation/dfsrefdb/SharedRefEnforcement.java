@@ -17,11 +17,28 @@ package com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb;
 import com.gerritforge.gerrit.globalrefdb.DraftCommentEventsEnabledProvider;
 import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDbConfiguration;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.gerrit.entities.RefNames;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
-/** Type of enforcement to implement between the local and shared RefDb. */
+/**
+ * Type of enforcement to implement between the local and shared RefDb.
+ *
+ * <p>The configured policies are compiled upon construction into a single map from project name to
+ * policy, and the policies of ref name patterns into a {@link RefPolicyTrie} per project, so that
+ * resolving the policy of a ref costs a couple of lookups and a scan of the ref name.
+ *
+ * <p>The projects and ref name patterns whose refs are updated without locks are compiled in the
+ * same way.
+ *
+ * <p>The compiled policies are replaced atomically when the configuration is reloaded.
+ */
+@Singleton
 public class SharedRefEnforcement {
   public enum Policy {
     EXCLUDE,
@@ -29,20 +46,66 @@ public class SharedRefEnforcement {
     INCLUDE;
   }
 
-  private final ImmutableSet<String> storeAllRefs;
-  private final ImmutableSet<String> storeMutableRefs;
-  private final ImmutableSet<String> storeNoRefs;
+  private static final String ALL = "*";
+  private static final String REFS_PREFIX = "refs/";
+  private static final int REFS_PREFIX_LENGTH = REFS_PREFIX.length();
+
+  private final AtomicReference<CompiledPolicies> policies;
   private final Boolean enableDraftCommentEvents;
-  private final String ALL = "*";
 
   @Inject
   public SharedRefEnforcement(
       SharedRefDbConfiguration config,
       DraftCommentEventsEnabledProvider draftCommentEventsEnabledProvider) {
-    this.storeAllRefs = config.getSharedRefDb().getStoreAllRefs();
-    this.storeMutableRefs = config.getSharedRefDb().getStoreMutableRefs();
-    this.storeNoRefs = config.getSharedRefDb().getStoreNoRefs();
-    this.enableDraftCommentEvents = draftCommentEventsEnabledProvider.get();
+    this(
+        config.getSharedRefDb().getStoreAllRefs(),
+        config.getSharedRefDb().getStoreMutableRefs(),
+        config.getSharedRefDb().getStoreNoRefs(),
+        config.getSharedRefDb().getStoreAllRefPatterns(),
+        config.getSharedRefDb().getStoreMutableRefPatterns(),
+        config.getSharedRefDb().getStoreNoRefPatterns(),
+        config.getSharedRefDb().getLockFreeProjects(),
+        config.getSharedRefDb().getLockFreeRefPatterns(),
+        draftCommentEventsEnabledProvider.get());
+    AtomicReference<CompiledPolicies> currentPolicies = policies;
+    config.addReloadListener(reloadedConfig -> prepareReload(reloadedConfig, currentPolicies));
+  }
+
+  @VisibleForTesting
+  public SharedRefEnforcement(
+      ImmutableSet<String> storeAllRefs,
+      ImmutableSet<String> storeMutableRefs,
+      ImmutableSet<String> storeNoRefs,
+      boolean enableDraftCommentEvents) {
+    this(
+        storeAllRefs,
+        storeMutableRefs,
+        storeNoRefs,
+        ImmutableSet.of(),
+        ImmutableSet.of(),
+        ImmutableSet.of(),
+        enableDraftCommentEvents);
+  }
+
+  @VisibleForTesting
+  public SharedRefEnforcement(
+      ImmutableSet<String> storeAllRefs,
+      ImmutableSet<String> storeMutableRefs,
+      ImmutableSet<String> storeNoRefs,
+      ImmutableSet<String> storeAllRefPatterns,
+      ImmutableSet<String> storeMutableRefPatterns,
+      ImmutableSet<String> storeNoRefPatterns,
+      boolean enableDraftCommentEvents) {
+    this(
+        storeAllRefs,
+        storeMutableRefs,
+        storeNoRefs,
+        storeAllRefPatterns,
+        storeMutableRefPatterns,
+        storeNoRefPatterns,
+        ImmutableSet.of(),
+        ImmutableSet.of(),
+        enableDraftCommentEvents);
   }
 
   @VisibleForTesting
@@ -50,19 +113,29 @@ public class SharedRefEnforcement {
       ImmutableSet<String> storeAllRefs,
       ImmutableSet<String> storeMutableRefs,
       ImmutableSet<String> storeNoRefs,
+      ImmutableSet<String> storeAllRefPatterns,
+      ImmutableSet<String> storeMutableRefPatterns,
+      ImmutableSet<String> storeNoRefPatterns,
+      ImmutableSet<String> lockFreeProjects,
+      ImmutableSet<String> lockFreeRefPatterns,
       boolean enableDraftCommentEvents) {
-    this.storeAllRefs = storeAllRefs;
-    this.storeMutableRefs = storeMutableRefs;
-    this.storeNoRefs = storeNoRefs;
+    this.policies =
+        new AtomicReference<>(
+            new CompiledPolicies(
+                storeAllRefs,
+                storeMutableRefs,
+                storeNoRefs,
+                storeAllRefPatterns,
+                storeMutableRefPatterns,
+                storeNoRefPatterns,
+                lockFreeProjects,
+                lockFreeRefPatterns));
     this.enableDraftCommentEvents = enableDraftCommentEvents;
   }
 
   @VisibleForTesting
   public SharedRefEnforcement() {
-    this.storeAllRefs = ImmutableSet.of();
-    this.storeMutableRefs = ImmutableSet.of();
-    this.storeNoRefs = ImmutableSet.of();
-    this.enableDraftCommentEvents = false;
+    this(ImmutableSet.of(), ImmutableSet.of(), ImmutableSet.of(), false);
   }
 
   /**
@@ -73,7 +146,16 @@ public class SharedRefEnforcement {
    * @return the enforcement policy for this project/ref
    */
   public Policy getPolicy(String projectName, String refName) {
-    Policy configuredPolicy = getPolicy(projectName);
+    CompiledPolicies currentPolicies = policies.get();
+    Policy configuredPolicy = currentPolicies.getPolicy(projectName);
+    if (configuredPolicy == Policy.EXCLUDE) {
+      return configuredPolicy;
+    }
+
+    Policy refPolicy = currentPolicies.getRefPolicy(projectName, refName);
+    if (refPolicy != null) {
+      configuredPolicy = refPolicy;
+    }
     if (configuredPolicy == Policy.INCLUDE_MUTABLE) {
       return isRefToBeIgnoredBySharedRefDb(refName) ? Policy.EXCLUDE : Policy.INCLUDE;
     }
@@ -91,26 +173,44 @@ public class SharedRefEnforcement {
    * @return the enforcement policy for the project
    */
   public Policy getPolicy(String projectName) {
-    if (storeNoRefs.contains(projectName)) {
-      return Policy.EXCLUDE;
-    }
-    if (storeMutableRefs.contains(projectName)) {
-      return Policy.INCLUDE_MUTABLE;
-    }
-    if (storeAllRefs.contains(projectName)) {
-      return Policy.INCLUDE;
-    }
+    return policies.get().getPolicy(projectName);
+  }
 
-    if (storeNoRefs.contains(ALL)) {
-      return Policy.EXCLUDE;
-    }
-    if (storeMutableRefs.contains(ALL)) {
-      return Policy.INCLUDE_MUTABLE;
-    }
-    if (storeAllRefs.contains(ALL)) {
-      return Policy.INCLUDE;
-    }
-    return Policy.INCLUDE_MUTABLE;
+  /**
+   * Whether the updates of 'refName' in 'projectName' are performed without locking the ref, either
+   * because its project or a pattern matching its name is listed in {@code
+   * ref-database.lockFreeRefs}.
+   *
+   * @param projectName project of the ref
+   * @param refName name of the ref
+   * @return true when the ref is updated without locks, false otherwise
+   */
+  public boolean isLockFree(String projectName, String refName) {
+    return policies.get().isLockFree(projectName, refName);
+  }
+
+  /**
+   * Compiles the storage rules of the reloaded configuration, returning the action atomically
+   * replacing the current ones.
+   *
+   * @param config the reloaded configuration
+   * @param policies the holder of the current storage rules
+   * @return the action applying the compiled storage rules
+   */
+  private static Runnable prepareReload(
+      SharedRefDbConfiguration config, AtomicReference<CompiledPolicies> policies) {
+    SharedRefDbConfiguration.SharedRefDatabase sharedRefDb = config.getSharedRefDb();
+    CompiledPolicies newPolicies =
+        new CompiledPolicies(
+            sharedRefDb.getStoreAllRefs(),
+            sharedRefDb.getStoreMutableRefs(),
+            sharedRefDb.getStoreNoRefs(),
+            sharedRefDb.getStoreAllRefPatterns(),
+            sharedRefDb.getStoreMutableRefPatterns(),
+            sharedRefDb.getStoreNoRefPatterns(),
+            sharedRefDb.getLockFreeProjects(),
+            sharedRefDb.getLockFreeRefPatterns());
+    return () -> policies.set(newPolicies);
   }
 
   /**
@@ -137,11 +237,153 @@ public class SharedRefEnforcement {
    * @return true if ref should be ignored; false otherwise
    */
   boolean isRefToBeIgnoredBySharedRefDb(String refName) {
-    return refName == null
-        || (refName.startsWith("refs/draft-comments") && !enableDraftCommentEvents)
-        || (refName.startsWith("refs/changes")
-            && !refName.endsWith("/meta")
-            && !refName.endsWith(RefNames.ROBOT_COMMENTS_SUFFIX))
-        || refName.startsWith("refs/cache-automerge");
+    if (refName == null) {
+      return true;
+    }
+    if (refName.length() <= REFS_PREFIX_LENGTH || !refName.startsWith(REFS_PREFIX)) {
+      return false;
+    }
+
+    switch (refName.charAt(REFS_PREFIX_LENGTH)) {
+      case 'c':
+        if (refName.startsWith("changes", REFS_PREFIX_LENGTH)) {
+          return !refName.endsWith("/meta") && !refName.endsWith(RefNames.ROBOT_COMMENTS_SUFFIX);
+        }
+        return refName.startsWith("cache-automerge", REFS_PREFIX_LENGTH);
+      case 'd':
+        return !enableDraftCommentEvents
+            && refName.startsWith("draft-comments", REFS_PREFIX_LENGTH);
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Add the ref patterns of a storage rule to the trie of all the projects, or to the trie of a
+   * single project when the pattern is prefixed by the project name and a colon. Ref names cannot
+   * contain colons, hence the project name ends at the last colon.
+   */
+  private static void addRefPolicies(
+      ImmutableSet<String> refPatterns,
+      Policy policy,
+      RefPolicyTrie.Builder globalRefPolicies,
+      Map<String, RefPolicyTrie.Builder> projectRefPolicies) {
+    for (String refPattern : refPatterns) {
+      int projectEnd = refPattern.lastIndexOf(':');
+      String project = projectEnd < 0 ? ALL : refPattern.substring(0, projectEnd);
+      String pattern = refPattern.substring(projectEnd + 1);
+      if (project.equals(ALL)) {
+        globalRefPolicies.add(pattern, policy);
+      } else {
+        projectRefPolicies
+            .computeIfAbsent(project, p -> new RefPolicyTrie.Builder())
+            .add(pattern, policy);
+      }
+    }
+  }
+
+  private static ImmutableMap<String, RefPolicyTrie> build(
+      Map<String, RefPolicyTrie.Builder> projectRefPolicies) {
+    return projectRefPolicies.entrySet().stream()
+        .collect(ImmutableMap.toImmutableMap(Map.Entry::getKey, e -> e.getValue().build()));
+  }
+
+  /**
+   * Compile the projects listed by the storage rules into their policy. Priority order is
+   * storeNoRefs over storeMutableRefs and storeAllRefs, hence the rules are applied in the reverse
+   * order, each overriding the previous ones. The policy of all the other projects is stored under
+   * the {@code *} key, when configured.
+   */
+  private static ImmutableMap<String, Policy> compileProjectPolicies(
+      ImmutableSet<String> storeAllRefs,
+      ImmutableSet<String> storeMutableRefs,
+      ImmutableSet<String> storeNoRefs) {
+    Map<String, Policy> policies = new HashMap<>();
+    storeAllRefs.forEach(project -> policies.put(project, Policy.INCLUDE));
+    storeMutableRefs.forEach(project -> policies.put(project, Policy.INCLUDE_MUTABLE));
+    storeNoRefs.forEach(project -> policies.put(project, Policy.EXCLUDE));
+    return ImmutableMap.copyOf(policies);
+  }
+
+  /** Storage rules compiled from one version of the configuration. */
+  private static class CompiledPolicies {
+    private final ImmutableMap<String, Policy> projectPolicies;
+    private final Policy defaultPolicy;
+    private final RefPolicyTrie globalRefPolicies;
+    private final ImmutableMap<String, RefPolicyTrie> projectRefPolicies;
+    private final ImmutableSet<String> lockFreeProjects;
+    private final RefPolicyTrie globalLockFreeRefs;
+    private final ImmutableMap<String, RefPolicyTrie> projectLockFreeRefs;
+
+    private CompiledPolicies(
+        ImmutableSet<String> storeAllRefs,
+        ImmutableSet<String> storeMutableRefs,
+        ImmutableSet<String> storeNoRefs,
+        ImmutableSet<String> storeAllRefPatterns,
+        ImmutableSet<String> storeMutableRefPatterns,
+        ImmutableSet<String> storeNoRefPatterns,
+        ImmutableSet<String> lockFreeProjects,
+        ImmutableSet<String> lockFreeRefPatterns) {
+      projectPolicies = compileProjectPolicies(storeAllRefs, storeMutableRefs, storeNoRefs);
+      defaultPolicy = projectPolicies.getOrDefault(ALL, Policy.INCLUDE_MUTABLE);
+
+      RefPolicyTrie.Builder globalRefPoliciesBuilder = new RefPolicyTrie.Builder();
+      Map<String, RefPolicyTrie.Builder> projectRefPoliciesBuilders = new HashMap<>();
+      addRefPolicies(
+          storeAllRefPatterns,
+          Policy.INCLUDE,
+          globalRefPoliciesBuilder,
+          projectRefPoliciesBuilders);
+      addRefPolicies(
+          storeMutableRefPatterns,
+          Policy.INCLUDE_MUTABLE,
+          globalRefPoliciesBuilder,
+          projectRefPoliciesBuilders);
+      addRefPolicies(
+          storeNoRefPatterns, Policy.EXCLUDE, globalRefPoliciesBuilder, projectRefPoliciesBuilders);
+      globalRefPolicies = globalRefPoliciesBuilder.build();
+      projectRefPolicies = build(projectRefPoliciesBuilders);
+
+      this.lockFreeProjects = lockFreeProjects;
+      RefPolicyTrie.Builder globalLockFreeRefsBuilder = new RefPolicyTrie.Builder();
+      Map<String, RefPolicyTrie.Builder> projectLockFreeRefsBuilders = new HashMap<>();
+      // Only whether a lock-free pattern matches the ref is relevant, not its policy
+      addRefPolicies(
+          lockFreeRefPatterns,
+          Policy.INCLUDE,
+          globalLockFreeRefsBuilder,
+          projectLockFreeRefsBuilders);
+      globalLockFreeRefs = globalLockFreeRefsBuilder.build();
+      projectLockFreeRefs = build(projectLockFreeRefsBuilders);
+    }
+
+    private Policy getPolicy(String projectName) {
+      return projectPolicies.getOrDefault(projectName, defaultPolicy);
+    }
+
+    /**
+     * Returns the policy of the most specific ref pattern matching the ref, looking first at the
+     * patterns of the project and then at the ones of all projects.
+     */
+    private Policy getRefPolicy(String projectName, String refName) {
+      if (refName == null) {
+        return null;
+      }
+      RefPolicyTrie projectPolicies = projectRefPolicies.get(projectName);
+      Policy refPolicy = projectPolicies == null ? null : projectPolicies.getPolicy(refName);
+      return refPolicy != null ? refPolicy : globalRefPolicies.getPolicy(refName);
+    }
+
+    private boolean isLockFree(String projectName, String refName) {
+      if (lockFreeProjects.contains(projectName) || lockFreeProjects.contains(ALL)) {
+        return true;
+      }
+      if (refName == null) {
+        return false;
+      }
+      RefPolicyTrie projectLockFree = projectLockFreeRefs.get(projectName);
+      return (projectLockFree != null && projectLockFree.getPolicy(refName) != null)
+          || globalLockFreeRefs.getPolicy(refName) != null;
+    }
   }
 }
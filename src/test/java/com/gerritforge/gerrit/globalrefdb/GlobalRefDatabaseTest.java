@@ -15,11 +15,20 @@
 package com.gerritforge.gerrit.globalrefdb;
 
 import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
 import static org.junit.Assert.fail;
 
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.InMemoryGlobalRefDatabase;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.NoopSharedRefDatabase;
 import com.google.gerrit.acceptance.AbstractDaemonTest;
+import com.google.gerrit.entities.Project;
 import com.google.gerrit.entities.RefNames;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import org.eclipse.jgit.lib.ObjectId;
@@ -48,7 +57,7 @@ public class GlobalRefDatabaseTest extends AbstractDaemonTest {
 
   @Before
   public void setup() throws Exception {
-    this.objectUnderTest = new FakeGlobalRefDatabase();
+    this.objectUnderTest = new InMemoryGlobalRefDatabase();
 
     try (Repository repo = repoManager.openRepository(project)) {
       createChange(refName);
@@ -94,6 +103,58 @@ public class GlobalRefDatabaseTest extends AbstractDaemonTest {
     assertThat(objectUnderTest.compareAndPut(project, ref2, objectId3)).isFalse();
   }
 
+  @Test
+  public void shouldCompareAndPutAllRefsAndReportTheOutcomeOfEachOne() {
+    String otherRefName = RefNames.REFS_HEADS + "other-branch";
+    objectUnderTest.compareAndPut(project, nullRef, objectId1);
+
+    Map<String, Boolean> results =
+        objectUnderTest.compareAndPutAll(
+            project,
+            List.of(
+                new GlobalRefUpdate(ref2, objectId3),
+                new GlobalRefUpdate(zerosRef(otherRefName), objectId1)));
+
+    assertThat(results).containsExactly(refName, false, otherRefName, true).inOrder();
+  }
+
+  @Test
+  public void shouldCheckTheStateOfAllRefs() throws GlobalRefDbLockException {
+    String otherRefName = RefNames.REFS_HEADS + "other-branch";
+    objectUnderTest.compareAndPut(project, nullRef, objectId1);
+
+    Map<String, GlobalRefState> states =
+        objectUnderTest.checkState(project, List.of(ref2, ref(otherRefName, objectId1)));
+
+    assertThat(states)
+        .containsExactly(
+            refName, GlobalRefState.OUT_OF_SYNC, otherRefName, GlobalRefState.UP_TO_DATE)
+        .inOrder();
+  }
+
+  @Test
+  public void shouldCompareAndPutAsynchronously() throws Exception {
+    assertThat(objectUnderTest.compareAndPutAsync(project, nullRef, objectId1).get()).isTrue();
+
+    assertThat(objectUnderTest.isUpToDateAsync(project, ref1).get()).isTrue();
+    assertThat(objectUnderTest.existsAsync(project, refName).get()).isTrue();
+    assertThat(objectUnderTest.compareAndPutAsync(project, ref2, objectId3).get()).isFalse();
+  }
+
+  @Test
+  public void shouldCompleteExceptionallyWhenAsyncOperationFails() {
+    CompletableFuture<Boolean> result =
+        new InMemoryGlobalRefDatabase() {
+          @Override
+          public boolean compareAndPut(Project.NameKey project, Ref currRef, ObjectId newRefValue)
+              throws GlobalRefDbSystemError {
+            throw new GlobalRefDbSystemError("Could not connect", new Exception());
+          }
+        }.compareAndPutAsync(project, nullRef, objectId1);
+
+    assertThat(result.isCompletedExceptionally()).isTrue();
+  }
+
   @Test
   public void shouldReturnIsUpToDateWhenProjectDoesNotExistsInTheGlobalRefDB()
       throws GlobalRefDbLockException {
@@ -155,6 +216,50 @@ public class GlobalRefDatabaseTest extends AbstractDaemonTest {
     }
   }
 
+  @Test
+  public void shouldLockRefsInOrderAndReleaseThemInReverseOrder() throws Exception {
+    List<String> lockEvents = new ArrayList<>();
+    GlobalRefDatabase globalRefDb = lockEventsRecorder(lockEvents, null);
+
+    try (AutoCloseable refsLock =
+        globalRefDb.lockRefs(project, new TreeSet<>(List.of("refs/heads/b", "refs/heads/a")))) {
+      assertThat(lockEvents).containsExactly("lock refs/heads/a", "lock refs/heads/b").inOrder();
+    }
+
+    assertThat(lockEvents)
+        .containsExactly(
+            "lock refs/heads/a", "lock refs/heads/b", "unlock refs/heads/b", "unlock refs/heads/a")
+        .inOrder();
+  }
+
+  @Test
+  public void shouldReleaseTheAcquiredLocksWhenOneOfTheRefsCannotBeLocked() {
+    List<String> lockEvents = new ArrayList<>();
+    GlobalRefDatabase globalRefDb = lockEventsRecorder(lockEvents, "refs/heads/b");
+
+    assertThrows(
+        GlobalRefDbLockException.class,
+        () ->
+            globalRefDb.lockRefs(
+                project, new TreeSet<>(List.of("refs/heads/a", "refs/heads/b", "refs/heads/c"))));
+
+    assertThat(lockEvents).containsExactly("lock refs/heads/a", "unlock refs/heads/a").inOrder();
+  }
+
+  private GlobalRefDatabase lockEventsRecorder(List<String> lockEvents, String failingRefName) {
+    return new NoopSharedRefDatabase() {
+      @Override
+      public AutoCloseable lockRef(Project.NameKey project, String refName)
+          throws GlobalRefDbLockException {
+        if (refName.equals(failingRefName)) {
+          throw new GlobalRefDbLockException(project.get(), refName, new Exception("Lock timeout"));
+        }
+        lockEvents.add("lock " + refName);
+        return () -> lockEvents.add("unlock " + refName);
+      }
+    };
+  }
+
   @Test
   public void shouldReturnObjectValueInTheGlobalRefDB() {
     Object object = new Object();
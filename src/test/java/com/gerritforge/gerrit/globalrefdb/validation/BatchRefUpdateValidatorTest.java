@@ -22,23 +22,38 @@ import static org.eclipse.jgit.transport.ReceiveCommand.Type.UPDATE;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.gerritforge.gerrit.globalrefdb.DraftCommentEventsEnabledProvider;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDatabase;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefState;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefUpdate;
 import com.gerritforge.gerrit.globalrefdb.validation.RefUpdateValidator.OneParameterVoidFunction;
+import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDbConfiguration.SharedRefDatabase;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.InMemoryGlobalRefDatabase;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.RefFixture;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement;
 import com.google.common.collect.ImmutableSet;
 import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.registration.DynamicItem;
 import com.google.gerrit.metrics.DisabledMetricMaker;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 import org.eclipse.jgit.internal.storage.file.RefDirectory;
 import org.eclipse.jgit.junit.LocalDiskRepositoryTestCase;
 import org.eclipse.jgit.junit.TestRepository;
@@ -47,6 +62,7 @@ import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
@@ -58,8 +74,11 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TestName;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 @RunWith(MockitoJUnitRunner.class)
 public class BatchRefUpdateValidatorTest extends LocalDiskRepositoryTestCase implements RefFixture {
@@ -79,11 +98,15 @@ public class BatchRefUpdateValidatorTest extends LocalDiskRepositoryTestCase imp
   @Mock SharedRefEnforcement tmpRefEnforcement;
   @Mock ProjectsFilter projectsFilter;
   @Mock OneParameterVoidFunction<List<ReceiveCommand>> rollbackFunction;
+  @Captor ArgumentCaptor<List<ReceiveCommand>> rolledBackCommands;
 
   @Before
   public void setup() throws Exception {
     super.setUp();
-    lenient().doReturn(false).when(sharedRefDatabase).isUpToDate(any(), any());
+    lenient()
+        .doAnswer(globalRefStates(GlobalRefState.MISSING))
+        .when(sharedRefDatabase)
+        .checkState(any(), any());
     when(projectsFilter.matches(anyString())).thenReturn(true);
     gitRepoSetup();
   }
@@ -111,14 +134,31 @@ public class BatchRefUpdateValidatorTest extends LocalDiskRepositoryTestCase imp
     doReturn(SharedRefEnforcement.Policy.INCLUDE)
         .when(batchRefUpdateValidator.refEnforcement)
         .getPolicy(A_TEST_PROJECT_NAME, A_REF_NAME_1);
+    doReturn(SharedRefEnforcement.Policy.INCLUDE)
+        .when(batchRefUpdateValidator.refEnforcement)
+        .getPolicy(A_TEST_PROJECT_NAME, A_REF_NAME_2);
 
-    doReturn(true).when(sharedRefDatabase).isUpToDate(any(), any());
-    doReturn(true).when(sharedRefDatabase).compareAndPut(any(), any(), any());
+    doAnswer(globalRefStates(GlobalRefState.UP_TO_DATE))
+        .when(sharedRefDatabase)
+        .checkState(any(), any());
+    doReturn(Map.of(A_REF_NAME_1, true, A_REF_NAME_2, true))
+        .when(sharedRefDatabase)
+        .compareAndPutAll(any(), any());
 
     batchRefUpdateValidator.executeBatchUpdateWithValidation(
         batchRefUpdate, () -> execute(batchRefUpdate), rollbackFunction);
 
     verify(rollbackFunction, never()).invoke(any());
+    verify(sharedRefDatabase).compareAndPutAll(eq(A_TEST_PROJECT_NAME_KEY), any());
+    verify(sharedRefDatabase, never())
+        .compareAndPut(any(Project.NameKey.class), any(Ref.class), any(ObjectId.class));
+    verify(sharedRefDatabase)
+        .lockLocalRefs(A_TEST_PROJECT_NAME_KEY, new TreeSet<>(List.of(A_REF_NAME_1, A_REF_NAME_2)));
+    verify(sharedRefDatabase)
+        .lockRefs(A_TEST_PROJECT_NAME_KEY, new TreeSet<>(List.of(A_REF_NAME_1, A_REF_NAME_2)));
+    verify(sharedRefDatabase, never()).lockRef(any(), any());
+    verify(tmpRefEnforcement).getPolicy(A_TEST_PROJECT_NAME, A_REF_NAME_1);
+    verify(tmpRefEnforcement).getPolicy(A_TEST_PROJECT_NAME, A_REF_NAME_2);
 
     List<ReceiveCommand> commands = batchRefUpdate.getCommands();
     assertThat(commands.size()).isEqualTo(2);
@@ -126,6 +166,165 @@ public class BatchRefUpdateValidatorTest extends LocalDiskRepositoryTestCase imp
         (command) -> assertThat(command.getResult()).isEqualTo(ReceiveCommand.Result.OK));
   }
 
+  @Test
+  public void shouldReadTheLocalRefsInBulk() throws IOException {
+    BatchRefUpdate batchRefUpdate =
+        newBatchUpdate(
+            List.of(
+                new ReceiveCommand(A, B, A_REF_NAME_1, UPDATE),
+                new ReceiveCommand(A, B, A_REF_NAME_2, UPDATE)));
+    RefDatabase localRefDb = spy(diskRepo.getRefDatabase());
+    BatchRefUpdateValidator batchRefUpdateValidator =
+        new BatchRefUpdateValidator(
+            sharedRefDatabase,
+            new ValidationMetrics(
+                new DisabledMetricMaker(),
+                new SharedRefDbConfiguration(new Config(), "testplugin")),
+            new SharedRefEnforcement(
+                new SharedRefDbConfiguration(new Config(), "testplugin"),
+                new DraftCommentEventsEnabledProvider(new Config())),
+            projectsFilter,
+            RefFixture.A_TEST_PROJECT_NAME,
+            localRefDb,
+            ImmutableSet.of());
+    doReturn(Map.of(A_REF_NAME_1, true, A_REF_NAME_2, true))
+        .when(sharedRefDatabase)
+        .compareAndPutAll(any(), any());
+
+    batchRefUpdateValidator.executeBatchUpdateWithValidation(
+        batchRefUpdate, () -> execute(batchRefUpdate), rollbackFunction);
+
+    // Before locking, after locking and after the local update
+    verify(localRefDb, times(3)).exactRef(A_REF_NAME_1, A_REF_NAME_2);
+    verify(localRefDb, never()).findRef(anyString());
+  }
+
+  @Test
+  public void shouldValidateAndApplyLargeNonAtomicBatchesInChunks() throws IOException {
+    BatchRefUpdate batchRefUpdate =
+        newBatchUpdate(
+            List.of(
+                new ReceiveCommand(A, B, A_REF_NAME_1, UPDATE),
+                new ReceiveCommand(A, B, A_REF_NAME_2, UPDATE)));
+    batchRefUpdate.setAtomic(false);
+    Config cfg = new Config();
+    cfg.setInt(SharedRefDatabase.SECTION, null, SharedRefDatabase.BATCH_CHUNK_SIZE_KEY, 1);
+    BatchRefUpdateValidator batchRefUpdateValidator = newValidatorForConfig(cfg);
+    doAnswer(
+            invocation -> {
+              List<GlobalRefUpdate> updates = invocation.getArgument(1);
+              return updates.stream()
+                  .collect(Collectors.toMap(GlobalRefUpdate::getRefName, update -> true));
+            })
+        .when(sharedRefDatabase)
+        .compareAndPutAll(any(), any());
+
+    batchRefUpdateValidator.executeBatchUpdateWithValidation(
+        batchRefUpdate,
+        () -> execute(batchRefUpdate),
+        chunk -> {
+          BatchRefUpdate chunkUpdate = refdir.newBatchUpdate();
+          chunkUpdate.setAtomic(false);
+          chunkUpdate.addCommand(chunk);
+          execute(chunkUpdate);
+        },
+        rollbackFunction);
+
+    verify(sharedRefDatabase)
+        .lockRefs(A_TEST_PROJECT_NAME_KEY, new TreeSet<>(List.of(A_REF_NAME_1)));
+    verify(sharedRefDatabase)
+        .lockRefs(A_TEST_PROJECT_NAME_KEY, new TreeSet<>(List.of(A_REF_NAME_2)));
+    verify(sharedRefDatabase, times(2)).compareAndPutAll(eq(A_TEST_PROJECT_NAME_KEY), any());
+    verify(rollbackFunction, never()).invoke(any());
+    batchRefUpdate
+        .getCommands()
+        .forEach(command -> assertThat(command.getResult()).isEqualTo(ReceiveCommand.Result.OK));
+    assertThat(diskRepo.exactRef(A_REF_NAME_1).getObjectId()).isEqualTo(B.getId());
+    assertThat(diskRepo.exactRef(A_REF_NAME_2).getObjectId()).isEqualTo(B.getId());
+  }
+
+  @Test
+  public void shouldApplyTheNextChunksWhenAChunkFails() throws IOException {
+    BatchRefUpdate batchRefUpdate =
+        newBatchUpdate(
+            List.of(
+                new ReceiveCommand(A, B, A_REF_NAME_1, UPDATE),
+                new ReceiveCommand(A, B, A_REF_NAME_2, UPDATE)));
+    batchRefUpdate.setAtomic(false);
+    Config cfg = new Config();
+    cfg.setInt(SharedRefDatabase.SECTION, null, SharedRefDatabase.BATCH_CHUNK_SIZE_KEY, 1);
+    BatchRefUpdateValidator batchRefUpdateValidator = newValidatorForConfig(cfg);
+    doReturn(Map.of(A_REF_NAME_2, true)).when(sharedRefDatabase).compareAndPutAll(any(), any());
+
+    batchRefUpdateValidator.executeBatchUpdateWithValidation(
+        batchRefUpdate,
+        () -> execute(batchRefUpdate),
+        chunk -> {
+          if (chunk.get(0).getRefName().equals(A_REF_NAME_1)) {
+            throw new IOException("local refdb failure");
+          }
+          BatchRefUpdate chunkUpdate = refdir.newBatchUpdate();
+          chunkUpdate.setAtomic(false);
+          chunkUpdate.addCommand(chunk);
+          execute(chunkUpdate);
+        },
+        rollbackFunction);
+
+    List<ReceiveCommand> commands = batchRefUpdate.getCommands();
+    assertThat(commands.get(0).getResult()).isEqualTo(ReceiveCommand.Result.REJECTED_OTHER_REASON);
+    assertThat(commands.get(0).getMessage()).contains("local refdb failure");
+    assertThatReceiveCommandIsSuccessful(commands.get(1));
+    assertThat(diskRepo.exactRef(A_REF_NAME_1).getObjectId()).isEqualTo(A.getId());
+    assertThat(diskRepo.exactRef(A_REF_NAME_2).getObjectId()).isEqualTo(B.getId());
+  }
+
+  @Test
+  public void shouldLockTheProjectForBatchesAboveTheProjectLockThreshold() throws IOException {
+    BatchRefUpdate batchRefUpdate =
+        newBatchUpdate(
+            List.of(
+                new ReceiveCommand(A, B, A_REF_NAME_1, UPDATE),
+                new ReceiveCommand(A, B, A_REF_NAME_2, UPDATE)));
+    Config cfg = new Config();
+    cfg.setInt(SharedRefDatabase.SECTION, null, SharedRefDatabase.PROJECT_LOCK_THRESHOLD_KEY, 1);
+    BatchRefUpdateValidator batchRefUpdateValidator = newValidatorForConfig(cfg);
+    doReturn(Map.of(A_REF_NAME_1, true, A_REF_NAME_2, true))
+        .when(sharedRefDatabase)
+        .compareAndPutAll(any(), any());
+
+    batchRefUpdateValidator.executeBatchUpdateWithValidation(
+        batchRefUpdate, () -> execute(batchRefUpdate), rollbackFunction);
+
+    verify(sharedRefDatabase).lockProject(A_TEST_PROJECT_NAME_KEY);
+    verify(sharedRefDatabase, never()).lockRefs(any(), any());
+    verify(sharedRefDatabase)
+        .lockLocalRefs(A_TEST_PROJECT_NAME_KEY, new TreeSet<>(List.of(A_REF_NAME_1, A_REF_NAME_2)));
+    batchRefUpdate.getCommands().forEach(command -> assertThatReceiveCommandIsSuccessful(command));
+  }
+
+  @Test
+  public void shouldLockEachRefWhenProjectLockIsNotSupported() throws Exception {
+    BatchRefUpdate batchRefUpdate =
+        newBatchUpdate(
+            List.of(
+                new ReceiveCommand(A, B, A_REF_NAME_1, UPDATE),
+                new ReceiveCommand(A, B, A_REF_NAME_2, UPDATE)));
+    Config cfg = new Config();
+    cfg.setInt(SharedRefDatabase.SECTION, null, SharedRefDatabase.PROJECT_LOCK_THRESHOLD_KEY, 1);
+    BatchRefUpdateValidator batchRefUpdateValidator = newValidatorForConfig(cfg);
+    doThrow(UnsupportedOperationException.class).when(sharedRefDatabase).lockProject(any());
+    doReturn(Map.of(A_REF_NAME_1, true, A_REF_NAME_2, true))
+        .when(sharedRefDatabase)
+        .compareAndPutAll(any(), any());
+
+    batchRefUpdateValidator.executeBatchUpdateWithValidation(
+        batchRefUpdate, () -> execute(batchRefUpdate), rollbackFunction);
+
+    verify(sharedRefDatabase)
+        .lockRefs(A_TEST_PROJECT_NAME_KEY, new TreeSet<>(List.of(A_REF_NAME_1, A_REF_NAME_2)));
+    batchRefUpdate.getCommands().forEach(command -> assertThatReceiveCommandIsSuccessful(command));
+  }
+
   @Test
   public void immutableChangeShouldNotBeWrittenIntoSharedRefDb() throws Exception {
     String AN_IMMUTABLE_REF = "refs/changes/01/1/1";
@@ -138,8 +337,7 @@ public class BatchRefUpdateValidatorTest extends LocalDiskRepositoryTestCase imp
     BatchRefUpdateValidator.executeBatchUpdateWithValidation(
         batchRefUpdate, () -> execute(batchRefUpdate), this::defaultRollback);
 
-    verify(sharedRefDatabase, never())
-        .compareAndPut(any(Project.NameKey.class), any(Ref.class), any(ObjectId.class));
+    verify(sharedRefDatabase, never()).compareAndPutAll(any(), any());
     assertThatReceiveCommandIsSuccessful(receiveCommand);
   }
 
@@ -156,6 +354,7 @@ public class BatchRefUpdateValidatorTest extends LocalDiskRepositoryTestCase imp
 
     verify(sharedRefDatabase, never())
         .compareAndPut(A_TEST_PROJECT_NAME_KEY, newRef(DRAFT_COMMENT, A.getId()), B.getId());
+    verify(sharedRefDatabase, never()).compareAndPutAll(any(), any());
     assertThatReceiveCommandIsSuccessful(receiveCommand);
   }
 
@@ -170,8 +369,9 @@ public class BatchRefUpdateValidatorTest extends LocalDiskRepositoryTestCase imp
         .when(batchRefUpdateValidator.refEnforcement)
         .getPolicy(A_TEST_PROJECT_NAME, A_REF_NAME_1);
 
-    doReturn(false).when(sharedRefDatabase).isUpToDate(eq(A_TEST_PROJECT_NAME_KEY), any());
-    doReturn(true).when(sharedRefDatabase).exists(eq(A_TEST_PROJECT_NAME_KEY), any());
+    doAnswer(globalRefStates(GlobalRefState.OUT_OF_SYNC))
+        .when(sharedRefDatabase)
+        .checkState(eq(A_TEST_PROJECT_NAME_KEY), any());
 
     batchRefUpdateValidator.executeBatchUpdateWithValidation(
         batchRefUpdate, () -> execute(batchRefUpdate), rollbackFunction);
@@ -193,9 +393,11 @@ public class BatchRefUpdateValidatorTest extends LocalDiskRepositoryTestCase imp
         .when(batchRefUpdateValidator.refEnforcement)
         .getPolicy(A_TEST_PROJECT_NAME, A_REF_NAME_1);
 
-    doReturn(true).when(sharedRefDatabase).isUpToDate(any(), any());
+    doAnswer(globalRefStates(GlobalRefState.UP_TO_DATE))
+        .when(sharedRefDatabase)
+        .checkState(any(), any());
 
-    doThrow(TestError.class).when(sharedRefDatabase).compareAndPut(any(), any(), any());
+    doThrow(TestError.class).when(sharedRefDatabase).compareAndPutAll(any(), any());
 
     assertThrows(
         TestError.class,
@@ -218,12 +420,14 @@ public class BatchRefUpdateValidatorTest extends LocalDiskRepositoryTestCase imp
         .when(batchRefUpdateValidator.refEnforcement)
         .getPolicy(A_TEST_PROJECT_NAME, A_REF_NAME_1);
 
-    doReturn(true).when(sharedRefDatabase).isUpToDate(any(), any());
+    doAnswer(globalRefStates(GlobalRefState.UP_TO_DATE))
+        .when(sharedRefDatabase)
+        .checkState(any(), any());
 
     lenient()
         .doThrow(GlobalRefDbSystemError.class)
         .when(sharedRefDatabase)
-        .compareAndPut(any(), any(), any());
+        .compareAndPutAll(any(), any());
 
     batchRefUpdateValidator.executeBatchUpdateWithValidation(
         batchRefUpdate, () -> execute(batchRefUpdate), rollbackFunction);
@@ -232,6 +436,114 @@ public class BatchRefUpdateValidatorTest extends LocalDiskRepositoryTestCase imp
     assertThat(receiveCommand.getResult()).isEqualTo(ReceiveCommand.Result.LOCK_FAILURE);
   }
 
+  @Test
+  public void shouldRollbackWhenOneOfTheRefsIsNotUpdatedInSharedRefDb() throws Exception {
+    BatchRefUpdate batchRefUpdate =
+        newBatchUpdate(
+            List.of(
+                new ReceiveCommand(A, B, A_REF_NAME_1, UPDATE),
+                new ReceiveCommand(A, B, A_REF_NAME_2, UPDATE)));
+    BatchRefUpdateValidator batchRefUpdateValidator =
+        getRefValidatorForEnforcement(tmpRefEnforcement);
+
+    doAnswer(globalRefStates(GlobalRefState.UP_TO_DATE))
+        .when(sharedRefDatabase)
+        .checkState(any(), any());
+    doReturn(Map.of(A_REF_NAME_1, true, A_REF_NAME_2, false))
+        .when(sharedRefDatabase)
+        .compareAndPutAll(any(), any());
+
+    batchRefUpdateValidator.executeBatchUpdateWithValidation(
+        batchRefUpdate, () -> execute(batchRefUpdate), rollbackFunction);
+
+    verify(rollbackFunction).invoke(any());
+    batchRefUpdate
+        .getCommands()
+        .forEach(
+            command ->
+                assertThat(command.getResult()).isEqualTo(ReceiveCommand.Result.LOCK_FAILURE));
+  }
+
+  @Test
+  public void shouldRollbackOnlyTheRefsNotUpdatedInSharedRefDbForNonAtomicBatches()
+      throws Exception {
+    ReceiveCommand receiveCommand1 = new ReceiveCommand(A, B, A_REF_NAME_1, UPDATE);
+    ReceiveCommand receiveCommand2 = new ReceiveCommand(A, B, A_REF_NAME_2, UPDATE);
+    BatchRefUpdate batchRefUpdate = newBatchUpdate(List.of(receiveCommand1, receiveCommand2));
+    batchRefUpdate.setAtomic(false);
+    BatchRefUpdateValidator batchRefUpdateValidator =
+        getRefValidatorForEnforcement(tmpRefEnforcement);
+
+    doAnswer(globalRefStates(GlobalRefState.UP_TO_DATE))
+        .when(sharedRefDatabase)
+        .checkState(any(), any());
+    doReturn(Map.of(A_REF_NAME_1, true, A_REF_NAME_2, false))
+        .when(sharedRefDatabase)
+        .compareAndPutAll(any(), any());
+
+    batchRefUpdateValidator.executeBatchUpdateWithValidation(
+        batchRefUpdate, () -> execute(batchRefUpdate), rollbackFunction);
+
+    verify(rollbackFunction).invoke(rolledBackCommands.capture());
+    assertThat(rolledBackCommands.getValue()).hasSize(1);
+    assertThat(rolledBackCommands.getValue().get(0).getRefName()).isEqualTo(A_REF_NAME_2);
+    assertThatReceiveCommandIsSuccessful(receiveCommand1);
+    assertThat(receiveCommand2.getResult()).isEqualTo(ReceiveCommand.Result.LOCK_FAILURE);
+  }
+
+  @Test
+  public void shouldCheckTheRefsLastWrittenByThisNodeWithoutQueryingTheGlobalRefDb()
+      throws Exception {
+    AtomicInteger checkStateCalls = new AtomicInteger();
+    InMemoryGlobalRefDatabase globalRefDb =
+        new InMemoryGlobalRefDatabase() {
+          @Override
+          public Map<String, GlobalRefState> checkState(
+              Project.NameKey project, Collection<Ref> refs) throws GlobalRefDbLockException {
+            checkStateCalls.incrementAndGet();
+            return super.checkState(project, refs);
+          }
+        };
+    SharedRefDatabaseWrapper cachingSharedRefDb =
+        new SharedRefDatabaseWrapper(
+            DynamicItem.itemOf(GlobalRefDatabase.class, globalRefDb),
+            new DisabledSharedRefLogger(),
+            new SharedRefDBMetrics(new DisabledMetricMaker()),
+            NoOpRefLocker.INSTANCE,
+            10L,
+            0L,
+            0L);
+    BatchRefUpdateValidator batchRefUpdateValidator =
+        new BatchRefUpdateValidator(
+            cachingSharedRefDb,
+            new ValidationMetrics(
+                new DisabledMetricMaker(),
+                new SharedRefDbConfiguration(new Config(), "testplugin")),
+            new SharedRefEnforcement(
+                new SharedRefDbConfiguration(new Config(), "testplugin"),
+                new DraftCommentEventsEnabledProvider(new Config())),
+            projectsFilter,
+            RefFixture.A_TEST_PROJECT_NAME,
+            diskRepo.getRefDatabase(),
+            ImmutableSet.of());
+    RevCommit C = repo.commit(repo.getRevWalk().parseCommit(B));
+
+    BatchRefUpdate firstBatchRefUpdate =
+        newBatchUpdate(singletonList(new ReceiveCommand(A, B, A_REF_NAME_1, UPDATE)));
+    batchRefUpdateValidator.executeBatchUpdateWithValidation(
+        firstBatchRefUpdate, () -> execute(firstBatchRefUpdate), this::defaultRollback);
+    BatchRefUpdate secondBatchRefUpdate =
+        newBatchUpdate(singletonList(new ReceiveCommand(B, C, A_REF_NAME_1, UPDATE)));
+    batchRefUpdateValidator.executeBatchUpdateWithValidation(
+        secondBatchRefUpdate, () -> execute(secondBatchRefUpdate), this::defaultRollback);
+
+    assertThatReceiveCommandIsSuccessful(firstBatchRefUpdate.getCommands().get(0));
+    assertThatReceiveCommandIsSuccessful(secondBatchRefUpdate.getCommands().get(0));
+    assertThat(checkStateCalls.get()).isEqualTo(1);
+    assertThat(globalRefDb.isUpToDate(A_TEST_PROJECT_NAME_KEY, diskRepo.exactRef(A_REF_NAME_1)))
+        .isTrue();
+  }
+
   @Test
   public void shouldNotUpdateSharedRefDbWhenProjectIsLocal() throws Exception {
     when(projectsFilter.matches(anyString())).thenReturn(false);
@@ -278,6 +590,21 @@ public class BatchRefUpdateValidatorTest extends LocalDiskRepositoryTestCase imp
         ImmutableSet.of());
   }
 
+  private BatchRefUpdateValidator newValidatorForConfig(Config cfg) {
+    return new BatchRefUpdateValidator(
+        sharedRefDatabase,
+        new ValidationMetrics(
+            new DisabledMetricMaker(), new SharedRefDbConfiguration(new Config(), "testplugin")),
+        new SharedRefEnforcement(
+            new SharedRefDbConfiguration(new Config(), "testplugin"),
+            new DraftCommentEventsEnabledProvider(new Config())),
+        projectsFilter,
+        new SharedRefDbConfiguration(cfg, "testplugin"),
+        RefFixture.A_TEST_PROJECT_NAME,
+        diskRepo.getRefDatabase(),
+        ImmutableSet.of());
+  }
+
   private void execute(BatchRefUpdate u) throws IOException {
     try (RevWalk rw = new RevWalk(diskRepo)) {
       u.execute(rw, NullProgressMonitor.INSTANCE);
@@ -300,5 +627,12 @@ public class BatchRefUpdateValidatorTest extends LocalDiskRepositoryTestCase imp
     return "branch_" + nameRule.getMethodName();
   }
 
+  private static Answer<Map<String, GlobalRefState>> globalRefStates(GlobalRefState state) {
+    return invocation -> {
+      Collection<Ref> refs = invocation.getArgument(1);
+      return refs.stream().collect(Collectors.toMap(Ref::getName, ref -> state));
+    };
+  }
+
   private static class TestError extends Error {}
 }
@@ -0,0 +1,64 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDBMetrics.Operation;
+import com.google.common.base.Ticker;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class FailureLogLimiterTest {
+  private final AtomicLong nanos = new AtomicLong();
+  private final Ticker ticker =
+      new Ticker() {
+        @Override
+        public long read() {
+          return nanos.get();
+        }
+      };
+
+  @Test
+  public void shouldLogAllFailuresWhenIntervalIsZero() {
+    FailureLogLimiter limiter = new FailureLogLimiter(0L, TimeUnit.SECONDS, ticker);
+
+    assertThat(limiter.tryLog(Operation.LOCK_REF)).isEqualTo(0L);
+    assertThat(limiter.tryLog(Operation.LOCK_REF)).isEqualTo(0L);
+  }
+
+  @Test
+  public void shouldLogOneFailureWithinTheIntervalAndCountTheOthers() {
+    FailureLogLimiter limiter = new FailureLogLimiter(10L, TimeUnit.SECONDS, ticker);
+
+    assertThat(limiter.tryLog(Operation.LOCK_REF)).isEqualTo(0L);
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(5));
+    assertThat(limiter.tryLog(Operation.LOCK_REF)).isEqualTo(FailureLogLimiter.NOT_LOGGED);
+    assertThat(limiter.tryLog(Operation.LOCK_REF)).isEqualTo(FailureLogLimiter.NOT_LOGGED);
+
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(5));
+    assertThat(limiter.tryLog(Operation.LOCK_REF)).isEqualTo(2L);
+  }
+
+  @Test
+  public void shouldLimitEachOperationSeparately() {
+    FailureLogLimiter limiter = new FailureLogLimiter(10L, TimeUnit.SECONDS, ticker);
+
+    assertThat(limiter.tryLog(Operation.LOCK_REF)).isEqualTo(0L);
+    assertThat(limiter.tryLog(Operation.COMPARE_AND_PUT)).isEqualTo(0L);
+    assertThat(limiter.tryLog(Operation.LOCK_REF)).isEqualTo(FailureLogLimiter.NOT_LOGGED);
+  }
+}
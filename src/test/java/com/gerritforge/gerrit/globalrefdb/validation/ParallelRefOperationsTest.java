@@ -0,0 +1,194 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefState;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefUpdate;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.InMemoryGlobalRefDatabase;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.RefFixture;
+import com.google.gerrit.entities.Project;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.junit.Test;
+
+public class ParallelRefOperationsTest implements RefFixture {
+  private static final String A_REF_NAME_1 = "refs/heads/a-ref-name-1";
+  private static final String A_REF_NAME_2 = "refs/heads/a-ref-name-2";
+  private static final String A_REF_NAME_3 = "refs/heads/a-ref-name-3";
+
+  private final ParallelRefOperations objectUnderTest = new ParallelRefOperations(3);
+
+  @Test
+  public void shouldDetectGlobalRefDbWithDefaultBulkOperations() {
+    assertThat(ParallelRefOperations.hasDefaultBulkOperations(new InMemoryGlobalRefDatabase()))
+        .isTrue();
+    assertThat(
+            ParallelRefOperations.hasDefaultBulkOperations(
+                new InMemoryGlobalRefDatabase() {
+                  @Override
+                  public Map<String, Boolean> compareAndPutAll(
+                      Project.NameKey project, List<GlobalRefUpdate> updates) {
+                    return super.compareAndPutAll(project, updates);
+                  }
+                }))
+        .isFalse();
+  }
+
+  @Test
+  public void shouldCheckTheStateOfTheRefsInParallelAndInOrder() throws Exception {
+    ConcurrentCallsGlobalRefDatabase globalRefDb = new ConcurrentCallsGlobalRefDatabase();
+    globalRefDb.compareAndPut(A_TEST_PROJECT_NAME_KEY, nullRef(A_REF_NAME_1), AN_OBJECT_ID_2);
+    globalRefDb.compareAndPut(A_TEST_PROJECT_NAME_KEY, nullRef(A_REF_NAME_2), AN_OBJECT_ID_1);
+    globalRefDb.compareAndPut(A_TEST_PROJECT_NAME_KEY, nullRef(A_REF_NAME_3), AN_OBJECT_ID_1);
+    globalRefDb.expectConcurrentCalls(3);
+
+    assertThat(
+            objectUnderTest.checkState(
+                globalRefDb,
+                A_TEST_PROJECT_NAME_KEY,
+                List.of(
+                    newRef(A_REF_NAME_1, AN_OBJECT_ID_1),
+                    newRef(A_REF_NAME_2, AN_OBJECT_ID_1),
+                    newRef(A_REF_NAME_3, AN_OBJECT_ID_2))))
+        .containsExactly(
+            A_REF_NAME_1,
+            GlobalRefState.OUT_OF_SYNC,
+            A_REF_NAME_2,
+            GlobalRefState.UP_TO_DATE,
+            A_REF_NAME_3,
+            GlobalRefState.OUT_OF_SYNC)
+        .inOrder();
+  }
+
+  @Test
+  public void shouldCompareAndPutTheRefsInParallelAndInOrder() {
+    ConcurrentCallsGlobalRefDatabase globalRefDb = new ConcurrentCallsGlobalRefDatabase();
+    globalRefDb.compareAndPut(A_TEST_PROJECT_NAME_KEY, nullRef(A_REF_NAME_2), AN_OBJECT_ID_2);
+    globalRefDb.expectConcurrentCalls(3);
+
+    assertThat(
+            objectUnderTest.compareAndPutAll(
+                globalRefDb,
+                A_TEST_PROJECT_NAME_KEY,
+                List.of(
+                    new GlobalRefUpdate(nullRef(A_REF_NAME_1), AN_OBJECT_ID_1),
+                    new GlobalRefUpdate(newRef(A_REF_NAME_2, AN_OBJECT_ID_1), AN_OBJECT_ID_2),
+                    new GlobalRefUpdate(nullRef(A_REF_NAME_3), AN_OBJECT_ID_1))))
+        .containsExactly(A_REF_NAME_1, true, A_REF_NAME_2, false, A_REF_NAME_3, true)
+        .inOrder();
+  }
+
+  @Test
+  public void shouldNotExceedTheParallelism() {
+    AtomicInteger concurrentCalls = new AtomicInteger();
+    AtomicInteger maxConcurrentCalls = new AtomicInteger();
+    InMemoryGlobalRefDatabase globalRefDb =
+        new InMemoryGlobalRefDatabase() {
+          @Override
+          public boolean compareAndPut(Project.NameKey project, Ref currRef, ObjectId newRefValue) {
+            maxConcurrentCalls.accumulateAndGet(concurrentCalls.incrementAndGet(), Math::max);
+            try {
+              Thread.sleep(10);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            concurrentCalls.decrementAndGet();
+            return super.compareAndPut(project, currRef, newRefValue);
+          }
+        };
+    List<GlobalRefUpdate> updates = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      updates.add(new GlobalRefUpdate(nullRef("refs/heads/branch-" + i), AN_OBJECT_ID_1));
+    }
+
+    assertThat(
+            new ParallelRefOperations(2)
+                .compareAndPutAll(globalRefDb, A_TEST_PROJECT_NAME_KEY, updates)
+                .values())
+        .doesNotContain(false);
+    assertThat(maxConcurrentCalls.get()).isAtMost(2);
+  }
+
+  @Test
+  public void shouldRethrowTheFailureOfAnyRef() {
+    InMemoryGlobalRefDatabase globalRefDb =
+        new InMemoryGlobalRefDatabase() {
+          @Override
+          public boolean compareAndPut(Project.NameKey project, Ref currRef, ObjectId newRefValue) {
+            if (currRef.getName().equals(A_REF_NAME_2)) {
+              throw new GlobalRefDbSystemError("test", new Exception());
+            }
+            return super.compareAndPut(project, currRef, newRefValue);
+          }
+        };
+
+    assertThrows(
+        GlobalRefDbSystemError.class,
+        () ->
+            objectUnderTest.compareAndPutAll(
+                globalRefDb,
+                A_TEST_PROJECT_NAME_KEY,
+                List.of(
+                    new GlobalRefUpdate(nullRef(A_REF_NAME_1), AN_OBJECT_ID_1),
+                    new GlobalRefUpdate(nullRef(A_REF_NAME_2), AN_OBJECT_ID_1))));
+  }
+
+  /**
+   * Fails the calls unless the expected number of them are waiting for the global refdb together.
+   */
+  private static class ConcurrentCallsGlobalRefDatabase extends InMemoryGlobalRefDatabase {
+    private CyclicBarrier barrier;
+
+    void expectConcurrentCalls(int concurrentCalls) {
+      barrier = new CyclicBarrier(concurrentCalls);
+    }
+
+    @Override
+    public boolean isUpToDate(Project.NameKey project, Ref ref) throws GlobalRefDbLockException {
+      awaitConcurrentCalls();
+      return super.isUpToDate(project, ref);
+    }
+
+    @Override
+    public boolean compareAndPut(Project.NameKey project, Ref currRef, ObjectId newRefValue) {
+      awaitConcurrentCalls();
+      return super.compareAndPut(project, currRef, newRefValue);
+    }
+
+    private void awaitConcurrentCalls() {
+      if (barrier == null) {
+        return;
+      }
+      try {
+        barrier.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException | BrokenBarrierException | TimeoutException e) {
+        throw new IllegalStateException("The calls have not been executed in parallel", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,109 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.gerritforge.gerrit.globalrefdb.RefDbLockException;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.RefFixture;
+import com.google.common.collect.ImmutableSortedSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class PerRefLockerTest implements RefFixture {
+  private static final String A_REF_NAME_1 = "refs/heads/a-ref-name-1";
+  private static final String A_REF_NAME_2 = "refs/heads/a-ref-name-2";
+  private static final long LOCK_TIMEOUT_MSEC = 100L;
+
+  @Test
+  public void shouldNotLockTheSameRefFromAnotherThreadUntilReleased() throws Exception {
+    PerRefLocker locker = newPerRefLocker();
+
+    try (AutoCloseable lock = locker.lockRef(A_TEST_PROJECT_NAME_KEY, A_REF_NAME_1)) {
+      assertThat(lockRefFromAnotherThread(locker, A_REF_NAME_1)).isFalse();
+    }
+    assertThat(lockRefFromAnotherThread(locker, A_REF_NAME_1)).isTrue();
+  }
+
+  @Test
+  public void shouldLockDifferentRefsFromDifferentThreads() throws Exception {
+    PerRefLocker locker = newPerRefLocker();
+
+    try (AutoCloseable lock = locker.lockRef(A_TEST_PROJECT_NAME_KEY, A_REF_NAME_1)) {
+      assertThat(lockRefFromAnotherThread(locker, A_REF_NAME_2)).isTrue();
+    }
+  }
+
+  @Test
+  public void shouldReleaseAllTheLocksOfMultipleRefs() throws Exception {
+    PerRefLocker locker = newPerRefLocker();
+
+    try (AutoCloseable lock =
+        locker.lockRefs(
+            A_TEST_PROJECT_NAME_KEY, ImmutableSortedSet.of(A_REF_NAME_1, A_REF_NAME_2))) {
+      assertThat(lockRefFromAnotherThread(locker, A_REF_NAME_1)).isFalse();
+      assertThat(lockRefFromAnotherThread(locker, A_REF_NAME_2)).isFalse();
+    }
+    assertThat(lockRefFromAnotherThread(locker, A_REF_NAME_1)).isTrue();
+    assertThat(lockRefFromAnotherThread(locker, A_REF_NAME_2)).isTrue();
+  }
+
+  @Test
+  public void shouldLockTheSameRefAgainFromTheSameThread() throws Exception {
+    PerRefLocker locker = newPerRefLocker();
+
+    try (AutoCloseable lock =
+            locker.lockRefs(
+                A_TEST_PROJECT_NAME_KEY, ImmutableSortedSet.of(A_REF_NAME_1, A_REF_NAME_2));
+        AutoCloseable nestedLock = locker.lockRef(A_TEST_PROJECT_NAME_KEY, A_REF_NAME_1)) {
+      assertThat(lockRefFromAnotherThread(locker, A_REF_NAME_1)).isFalse();
+    }
+    assertThat(lockRefFromAnotherThread(locker, A_REF_NAME_1)).isTrue();
+  }
+
+  @Test
+  public void shouldNotBlockOtherRefsWhilstHoldingTheLocksOfALargeBatch() throws Exception {
+    PerRefLocker locker = newPerRefLocker();
+    ImmutableSortedSet.Builder<String> refNames = ImmutableSortedSet.naturalOrder();
+    for (int i = 0; i < 5000; i++) {
+      refNames.add("refs/heads/batch-" + i);
+    }
+
+    try (AutoCloseable lock = locker.lockRefs(A_TEST_PROJECT_NAME_KEY, refNames.build())) {
+      assertThat(lockRefFromAnotherThread(locker, A_REF_NAME_1)).isTrue();
+      assertThat(lockRefFromAnotherThread(locker, A_REF_NAME_2)).isTrue();
+    }
+  }
+
+  private static PerRefLocker newPerRefLocker() {
+    return new PerRefLocker(LOCK_TIMEOUT_MSEC, TimeUnit.MILLISECONDS);
+  }
+
+  private static boolean lockRefFromAnotherThread(PerRefLocker locker, String refName)
+      throws Exception {
+    return CompletableFuture.supplyAsync(
+            () -> {
+              try (AutoCloseable lock = locker.lockRef(A_TEST_PROJECT_NAME_KEY, refName)) {
+                return true;
+              } catch (RefDbLockException e) {
+                return false;
+              } catch (Exception e) {
+                throw new IllegalStateException(e);
+              }
+            })
+        .get();
+  }
+}
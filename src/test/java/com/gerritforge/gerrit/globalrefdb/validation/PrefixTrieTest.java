@@ -0,0 +1,62 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableSet;
+import java.util.List;
+import org.junit.Test;
+
+public class PrefixTrieTest {
+
+  @Test
+  public void shouldNotMatchAnythingWhenEmpty() {
+    PrefixTrie trie = PrefixTrie.of(List.of());
+
+    assertThat(trie.isEmpty()).isTrue();
+    assertThat(trie.matchesPrefixOf("")).isFalse();
+    assertThat(trie.matchesPrefixOf("refs/heads/master")).isFalse();
+  }
+
+  @Test
+  public void shouldMatchValuesStartingWithAnyPrefix() {
+    PrefixTrie trie = PrefixTrie.of(List.of("refs/changes/", "refs/heads/foo", "refs/heads/f"));
+
+    assertThat(trie.isEmpty()).isFalse();
+    assertThat(trie.matchesPrefixOf("refs/changes/01/1/1")).isTrue();
+    assertThat(trie.matchesPrefixOf("refs/heads/f")).isTrue();
+    assertThat(trie.matchesPrefixOf("refs/heads/foobar")).isTrue();
+    assertThat(trie.matchesPrefixOf("refs/heads/master")).isFalse();
+    assertThat(trie.matchesPrefixOf("refs/changes")).isFalse();
+    assertThat(trie.matchesPrefixOf("refs/")).isFalse();
+  }
+
+  @Test
+  public void shouldShareTheTrieOfTheSameSetInstance() {
+    ImmutableSet<String> prefixes = ImmutableSet.of("refs/changes/", "refs/meta/");
+
+    assertThat(PrefixTrie.ofShared(prefixes)).isSameInstanceAs(PrefixTrie.ofShared(prefixes));
+    assertThat(PrefixTrie.ofShared(prefixes).matchesPrefixOf("refs/meta/config")).isTrue();
+  }
+
+  @Test
+  public void shouldMatchEverythingWithAnEmptyPrefix() {
+    PrefixTrie trie = PrefixTrie.of(List.of("refs/heads/", ""));
+
+    assertThat(trie.matchesPrefixOf("")).isTrue();
+    assertThat(trie.matchesPrefixOf("refs/meta/config")).isTrue();
+  }
+}
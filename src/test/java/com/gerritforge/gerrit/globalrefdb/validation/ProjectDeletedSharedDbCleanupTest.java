@@ -32,12 +32,13 @@ public class ProjectDeletedSharedDbCleanupTest implements RefFixture {
 
   @Mock ValidationMetrics mockValidationMetrics;
   @Mock SharedRefDatabaseWrapper sharedRefDatabase;
+  @Mock ProjectsFilter projectsFilter;
 
   @Test
   public void aDeleteProjectEventShouldCleanupProjectFromZk() throws Exception {
     String projectName = A_TEST_PROJECT_NAME;
     ProjectDeletedSharedDbCleanup projectDeletedSharedDbCleanup =
-        new ProjectDeletedSharedDbCleanup(sharedRefDatabase, mockValidationMetrics);
+        new ProjectDeletedSharedDbCleanup(sharedRefDatabase, mockValidationMetrics, projectsFilter);
 
     ProjectDeletedListener.Event event =
         new ProjectDeletedListener.Event() {
@@ -55,5 +56,6 @@ public class ProjectDeletedSharedDbCleanupTest implements RefFixture {
     projectDeletedSharedDbCleanup.onProjectDeleted(event);
 
     verify(sharedRefDatabase).remove(A_TEST_PROJECT_NAME_KEY);
+    verify(projectsFilter).invalidate(A_TEST_PROJECT_NAME_KEY);
   }
 }
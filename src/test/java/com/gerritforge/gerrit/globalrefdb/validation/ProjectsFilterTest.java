@@ -16,6 +16,9 @@ package com.gerritforge.gerrit.globalrefdb.validation;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDbConfiguration.Projects;
@@ -26,6 +29,8 @@ import com.google.gerrit.server.events.ProjectEvent;
 import com.google.gerrit.server.events.RefUpdatedEvent;
 import com.google.gerrit.testing.GerritJUnit;
 import java.util.Collections;
+import java.util.regex.PatternSyntaxException;
+import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
@@ -36,6 +41,7 @@ public class ProjectsFilterTest {
 
   @Mock private SharedRefDbConfiguration configuration;
   @Mock private Projects projects;
+  @Mock private SharedRefDBMetrics metrics;
 
   private ProjectsFilter objectUnderTest;
 
@@ -62,6 +68,36 @@ public class ProjectsFilterTest {
     assertThat(objectUnderTest.matches(NameKey.parse("2test_project"))).isFalse();
   }
 
+  @Test
+  public void shouldMatchReloadedPatterns() throws Exception {
+    when(projects.getPatterns())
+        .thenReturn(Lists.newArrayList("test_project"))
+        .thenReturn(Lists.newArrayList("another_project"));
+    when(configuration.projects()).thenReturn(projects);
+
+    objectUnderTest = new ProjectsFilter(configuration);
+    assertThat(objectUnderTest.matches(NameKey.parse("test_project"))).isTrue();
+
+    objectUnderTest.prepareReload(configuration).run();
+
+    assertThat(objectUnderTest.matches(NameKey.parse("test_project"))).isFalse();
+    assertThat(objectUnderTest.matches(NameKey.parse("another_project"))).isTrue();
+  }
+
+  @Test
+  public void shouldKeepCurrentPatternsWhenReloadedPatternIsInvalid() {
+    when(projects.getPatterns())
+        .thenReturn(Lists.newArrayList("test_project"))
+        .thenReturn(Lists.newArrayList("^test_(project"));
+    when(configuration.projects()).thenReturn(projects);
+
+    objectUnderTest = new ProjectsFilter(configuration);
+
+    GerritJUnit.assertThrows(
+        ConfigInvalidException.class, () -> objectUnderTest.prepareReload(configuration));
+    assertThat(objectUnderTest.matches(NameKey.parse("test_project"))).isTrue();
+  }
+
   @Test
   public void shouldMatchByRegex() {
     when(projects.getPatterns()).thenReturn(Lists.newArrayList("^test_(project|project2)"));
@@ -100,6 +136,120 @@ public class ProjectsFilterTest {
     assertThat(objectUnderTest.matches(NameKey.parse("test_project4"))).isFalse();
   }
 
+  @Test
+  public void shouldMatchAnyOfMultipleRegexes() {
+    when(projects.getPatterns())
+        .thenReturn(Lists.newArrayList("^foo/.*", "^(?i)BAR/[a-z]+$", "^baz[0-9]"));
+    when(configuration.projects()).thenReturn(projects);
+
+    objectUnderTest = new ProjectsFilter(configuration);
+
+    assertThat(objectUnderTest.matches(NameKey.parse("foo/project"))).isTrue();
+    assertThat(objectUnderTest.matches(NameKey.parse("bar/project"))).isTrue();
+    assertThat(objectUnderTest.matches(NameKey.parse("baz1"))).isTrue();
+    assertThat(objectUnderTest.matches(NameKey.parse("baz12"))).isFalse();
+    assertThat(objectUnderTest.matches(NameKey.parse("FOO/project"))).isFalse();
+  }
+
+  @Test
+  public void shouldMatchRegexesWithBackReferences() {
+    when(projects.getPatterns())
+        .thenReturn(Lists.newArrayList("^(a)b", "^(\\w+)/\\1$", "^(?<name>c)/\\k<name>$"));
+    when(configuration.projects()).thenReturn(projects);
+
+    objectUnderTest = new ProjectsFilter(configuration);
+
+    assertThat(objectUnderTest.matches(NameKey.parse("ab"))).isTrue();
+    assertThat(objectUnderTest.matches(NameKey.parse("foo/foo"))).isTrue();
+    assertThat(objectUnderTest.matches(NameKey.parse("foo/bar"))).isFalse();
+    assertThat(objectUnderTest.matches(NameKey.parse("c/c"))).isTrue();
+  }
+
+  @Test
+  public void shouldMatchRegexesWithClashingNamedGroups() {
+    when(projects.getPatterns())
+        .thenReturn(Lists.newArrayList("^(?<name>foo)/.*", "^(?<name>bar)/.*"));
+    when(configuration.projects()).thenReturn(projects);
+
+    objectUnderTest = new ProjectsFilter(configuration);
+
+    assertThat(objectUnderTest.matches(NameKey.parse("foo/project"))).isTrue();
+    assertThat(objectUnderTest.matches(NameKey.parse("bar/project"))).isTrue();
+    assertThat(objectUnderTest.matches(NameKey.parse("baz/project"))).isFalse();
+  }
+
+  @Test
+  public void shouldMatchMixedPatternTypes() {
+    when(projects.getPatterns())
+        .thenReturn(Lists.newArrayList("exact", "foo/b*", "foo/bar/baz*", "^regex[0-9]+$"));
+    when(configuration.projects()).thenReturn(projects);
+
+    objectUnderTest = new ProjectsFilter(configuration);
+
+    assertThat(objectUnderTest.matches(NameKey.parse("exact"))).isTrue();
+    assertThat(objectUnderTest.matches(NameKey.parse("exact2"))).isFalse();
+    assertThat(objectUnderTest.matches(NameKey.parse("foo/b"))).isTrue();
+    assertThat(objectUnderTest.matches(NameKey.parse("foo/baz"))).isTrue();
+    assertThat(objectUnderTest.matches(NameKey.parse("foo/a"))).isFalse();
+    assertThat(objectUnderTest.matches(NameKey.parse("regex42"))).isTrue();
+    assertThat(objectUnderTest.matches(NameKey.parse("regex"))).isFalse();
+  }
+
+  @Test
+  public void shouldRejectInvalidRegex() {
+    when(projects.getPatterns()).thenReturn(Lists.newArrayList("^foo/.*", "^bar)"));
+    when(configuration.projects()).thenReturn(projects);
+
+    GerritJUnit.assertThrows(PatternSyntaxException.class, () -> new ProjectsFilter(configuration));
+  }
+
+  @Test
+  public void shouldCacheMatchesOfProjectNames() {
+    when(projects.getPatterns()).thenReturn(Lists.newArrayList("test_project*"));
+    when(projects.getCacheSize()).thenReturn(10L);
+    when(configuration.projects()).thenReturn(projects);
+
+    objectUnderTest = new ProjectsFilter(configuration, metrics);
+
+    assertThat(objectUnderTest.matches(NameKey.parse("test_project"))).isTrue();
+    assertThat(objectUnderTest.matches(NameKey.parse("test_project"))).isTrue();
+    assertThat(objectUnderTest.matches(NameKey.parse("another_project"))).isFalse();
+    assertThat(objectUnderTest.matches(NameKey.parse("another_project"))).isFalse();
+
+    verify(metrics, times(2)).incrementProjectsFilterCacheMisses();
+    verify(metrics, times(2)).incrementProjectsFilterCacheHits();
+  }
+
+  @Test
+  public void shouldBoundTheCacheOfProjectNames() {
+    when(projects.getPatterns()).thenReturn(Lists.newArrayList("test_project*"));
+    when(projects.getCacheSize()).thenReturn(2L);
+    when(configuration.projects()).thenReturn(projects);
+
+    objectUnderTest = new ProjectsFilter(configuration, metrics);
+    for (int i = 0; i < 10; i++) {
+      objectUnderTest.matches(NameKey.parse("test_project" + i));
+    }
+
+    assertThat(objectUnderTest.cacheSize()).isAtMost(2L);
+  }
+
+  @Test
+  public void shouldMatchAgainstThePatternsAfterInvalidation() {
+    when(projects.getPatterns()).thenReturn(Lists.newArrayList("test_project"));
+    when(projects.getCacheSize()).thenReturn(10L);
+    when(configuration.projects()).thenReturn(projects);
+
+    objectUnderTest = new ProjectsFilter(configuration, metrics);
+    objectUnderTest.matches(NameKey.parse("test_project"));
+    objectUnderTest.invalidate(NameKey.parse("test_project"));
+
+    assertThat(objectUnderTest.cacheSize()).isEqualTo(0L);
+    assertThat(objectUnderTest.matches(NameKey.parse("test_project"))).isTrue();
+    verify(metrics, times(2)).incrementProjectsFilterCacheMisses();
+    verify(metrics, never()).incrementProjectsFilterCacheHits();
+  }
+
   @Test
   public void shouldMatchWhenNoPatternProvided() {
     when(projects.getPatterns()).thenReturn(Collections.emptyList());
@@ -28,12 +28,19 @@ import static org.mockito.Mockito.when;
 import com.gerritforge.gerrit.globalrefdb.DraftCommentEventsEnabledProvider;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
 import com.gerritforge.gerrit.globalrefdb.RefDbLockException;
+import com.gerritforge.gerrit.globalrefdb.validation.RefUpdateValidator.CloseableSet;
+import com.gerritforge.gerrit.globalrefdb.validation.RefUpdateValidator.LockKey;
 import com.gerritforge.gerrit.globalrefdb.validation.RefUpdateValidator.OneParameterFunction;
+import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDbConfiguration.SharedRefDatabase;
+import com.gerritforge.gerrit.globalrefdb.validation.SharedRefLogger.Scope;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.RefFixture;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement;
 import com.google.common.collect.ImmutableSet;
 import com.google.gerrit.entities.Project;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectIdRef;
@@ -259,6 +266,36 @@ public class RefUpdateValidatorTest implements RefFixture {
     verify(rollbackFunction).invoke(any());
   }
 
+  @Test
+  public void shouldNotLockLockFreeRefsAndRollbackWhenFinalCompareAndPutIsFailing()
+      throws Exception {
+    Config sharedRefDbConfig = new Config();
+    sharedRefDbConfig.setStringList(
+        SharedRefDatabase.SECTION,
+        SharedRefDatabase.LOCK_FREE_REFS_KEY,
+        SharedRefDatabase.REF,
+        List.of(refName));
+    refUpdateValidator =
+        newRefUpdateValidator(
+            sharedRefDb,
+            new SharedRefEnforcement(
+                new SharedRefDbConfiguration(sharedRefDbConfig, "testplugin"),
+                new DraftCommentEventsEnabledProvider(sharedRefDbConfig)));
+    doReturn(true).when(sharedRefDb).isUpToDate(A_TEST_PROJECT_NAME_KEY, localRef);
+    doReturn(false)
+        .when(sharedRefDb)
+        .compareAndPut(A_TEST_PROJECT_NAME_KEY, localRef, AN_OBJECT_ID_2);
+
+    Result result =
+        refUpdateValidator.executeRefUpdate(
+            refUpdate, () -> doLocalRefUpdate(refName), rollbackFunction);
+
+    verify(sharedRefDb, never()).lockLocalRef(any(), anyString());
+    verify(sharedRefDb, never()).lockRef(any(), anyString());
+    verify(rollbackFunction).invoke(any());
+    assertThat(result).isEqualTo(Result.LOCK_FAILURE);
+  }
+
   @Test
   public void shouldSucceedButNotUpdateSharedRefDbWhenProjectIsLocal() throws Exception {
     when(projectsFilter.matches(anyString())).thenReturn(false);
@@ -282,6 +319,38 @@ public class RefUpdateValidatorTest implements RefFixture {
         .compareAndPut(any(Project.NameKey.class), any(Ref.class), any(ObjectId.class));
   }
 
+  @Test
+  public void closeableSetShouldReleaseLocksInReverseOrderOfAcquisition() throws Exception {
+    List<String> released = new ArrayList<>();
+    try (CloseableSet<AutoCloseable> locks = new CloseableSet<>()) {
+      locks.addResourceIfNotExist(
+          new LockKey(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, Scope.LOCAL),
+          () -> () -> released.add("local"));
+      locks.addResourceIfNotExist(
+          new LockKey(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, Scope.GLOBAL),
+          () -> () -> released.add("global"));
+    }
+
+    assertThat(released).containsExactly("global", "local").inOrder();
+  }
+
+  @Test
+  public void closeableSetShouldNotAcquireTheSameLockTwice() throws Exception {
+    AtomicInteger acquired = new AtomicInteger();
+    try (CloseableSet<AutoCloseable> locks = new CloseableSet<>()) {
+      for (int i = 0; i < 2; i++) {
+        locks.addResourceIfNotExist(
+            new LockKey(Project.nameKey(A_TEST_PROJECT_NAME), A_TEST_REF_NAME, Scope.GLOBAL),
+            () -> {
+              acquired.incrementAndGet();
+              return () -> {};
+            });
+      }
+    }
+
+    assertThat(acquired.get()).isEqualTo(1);
+  }
+
   private Result defaultRollback(ObjectId unused) {
     return Result.NO_CHANGE;
   }
@@ -295,10 +364,15 @@ public class RefUpdateValidatorTest implements RefFixture {
   }
 
   private RefUpdateValidator newRefUpdateValidator(SharedRefDatabaseWrapper refDbWrapper) {
+    return newRefUpdateValidator(refDbWrapper, defaultRefEnforcement);
+  }
+
+  private RefUpdateValidator newRefUpdateValidator(
+      SharedRefDatabaseWrapper refDbWrapper, SharedRefEnforcement refEnforcement) {
     return new RefUpdateValidator(
         refDbWrapper,
         validationMetrics,
-        defaultRefEnforcement,
+        refEnforcement,
         projectsFilter,
         A_TEST_PROJECT_NAME,
         localRefDb,
@@ -14,18 +14,33 @@
 
 package com.gerritforge.gerrit.globalrefdb.validation;
 
+import static com.google.common.truth.Truth.assertThat;
 import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDatabase;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefLease;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefState;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefUpdate;
+import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDBMetrics.Operation;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.InMemoryGlobalRefDatabase;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.NoopSharedRefDatabase;
 import com.google.gerrit.entities.Project;
 import com.google.gerrit.extensions.registration.DynamicItem;
 import com.google.gerrit.metrics.Timer0.Context;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
 import org.eclipse.jgit.lib.Ref;
 import org.junit.Before;
 import org.junit.Test;
@@ -35,6 +50,10 @@ import org.mockito.junit.MockitoJUnitRunner;
 
 @RunWith(MockitoJUnitRunner.class)
 public class SharedRefDatabaseWrapperTest {
+  private static final ObjectId AN_OBJECT_ID =
+      ObjectId.fromString("1234567890123456789012345678901234567890");
+  private static final ObjectId ANOTHER_OBJECT_ID =
+      ObjectId.fromString("0987654321098765432109876543210987654321");
 
   @Mock private SharedRefDBMetrics metrics;
   @Mock SharedRefLogger sharedRefLogger;
@@ -64,6 +83,17 @@ public class SharedRefDatabaseWrapperTest {
     verify(context).close();
   }
 
+  @Test
+  public void shouldUpdateCompareAndPutAllExecutionTimeMetricWhenCompareAndPutAll() {
+    when(metrics.startCompareAndPutAllExecutionTime()).thenReturn(context);
+    when(ref.getName()).thenReturn(refName);
+
+    objectUnderTest.compareAndPutAll(
+        projectName, List.of(new GlobalRefUpdate(ref, ObjectId.zeroId())));
+    verify(metrics).startCompareAndPutAllExecutionTime();
+    verify(context).close();
+  }
+
   @Test
   public void shouldUpdateLockRefExecutionTimeMetricWhenLockRefIsCalled()
       throws GlobalRefDbLockException {
@@ -72,6 +102,19 @@ public class SharedRefDatabaseWrapperTest {
     verify(context).close();
   }
 
+  @Test
+  public void shouldUpdateLockRefsExecutionTimeMetricWhenLockRefsIsCalled() throws Exception {
+    when(metrics.startLockRefsExecutionTime()).thenReturn(context);
+
+    objectUnderTest.lockRefs(projectName, new TreeSet<>(List.of(refName))).close();
+    verify(metrics).startLockRefsExecutionTime();
+    verify(context).close();
+    verify(sharedRefLogger)
+        .logLockAcquisition(projectName.get(), refName, SharedRefLogger.Scope.GLOBAL);
+    verify(sharedRefLogger)
+        .logLockRelease(projectName.get(), refName, SharedRefLogger.Scope.GLOBAL);
+  }
+
   @Test
   public void shouldUpdateIsUpToDateExecutionTimeMetricWhenIsUpToDate()
       throws GlobalRefDbLockException {
@@ -80,6 +123,17 @@ public class SharedRefDatabaseWrapperTest {
     verify(context).close();
   }
 
+  @Test
+  public void shouldUpdateCheckStateExecutionTimeMetricWhenCheckState()
+      throws GlobalRefDbLockException {
+    when(metrics.startCheckStateExecutionTime()).thenReturn(context);
+    when(ref.getName()).thenReturn(refName);
+
+    objectUnderTest.checkState(projectName, List.of(ref));
+    verify(metrics).startCheckStateExecutionTime();
+    verify(context).close();
+  }
+
   @Test
   public void shouldUpdateExistsExecutionTimeMetricWhenExistsIsCalled() {
     objectUnderTest.exists(projectName, refName);
@@ -126,6 +180,345 @@ public class SharedRefDatabaseWrapperTest {
         GlobalRefDbSystemError.class,
         () -> objectUnderTest.compareAndPut(projectName, ref, ObjectId.zeroId()));
 
-    verify(metrics).incrementOperationFailures();
+    verify(metrics).incrementOperationFailures(Operation.COMPARE_AND_PUT);
+  }
+
+  @Test
+  public void shouldIncreaseNumberOfFailuresAndCloseTimerWhenLockRefThrows() throws Exception {
+    DynamicItem<GlobalRefDatabase> alreadyLockedGlobalRefDB =
+        DynamicItem.itemOf(
+            GlobalRefDatabase.class,
+            new NoopSharedRefDatabase() {
+              @Override
+              public AutoCloseable lockRef(Project.NameKey project, String refName)
+                  throws GlobalRefDbLockException {
+                throw new GlobalRefDbLockException(
+                    project.get(), refName, new Exception("Already locked"));
+              }
+            });
+    objectUnderTest =
+        new SharedRefDatabaseWrapper(
+            alreadyLockedGlobalRefDB,
+            new DisabledSharedRefLogger(),
+            metrics,
+            NoOpRefLocker.INSTANCE);
+
+    assertThrows(
+        GlobalRefDbLockException.class, () -> objectUnderTest.lockRef(projectName, refName));
+
+    verify(context).close();
+    verify(metrics).incrementOperationFailures(Operation.LOCK_REF);
+  }
+
+  @Test
+  public void shouldUpdateCompareAndPutExecutionTimeMetricWhenCompareAndPutAsyncCompletes() {
+    CompletableFuture<Boolean> result =
+        objectUnderTest.compareAndPutAsync(projectName, ref, ObjectId.zeroId());
+
+    assertThat(result.join()).isTrue();
+    verify(metrics).startCompareAndPutExecutionTime();
+    verify(context).close();
+  }
+
+  @Test
+  public void shouldUpdateLockRefExecutionTimeMetricWhenLockRefAsyncCompletes() {
+    objectUnderTest.lockRefAsync(projectName, refName).join();
+    verify(metrics).startLockRefExecutionTime();
+    verify(context).close();
+  }
+
+  @Test
+  public void shouldIncreaseNumberOfFailuresWhenCompareAndPutAsyncFails() {
+    CompletableFuture<Boolean> pendingCompareAndPut = new CompletableFuture<>();
+    DynamicItem<GlobalRefDatabase> asyncGlobalRefDB =
+        DynamicItem.itemOf(
+            GlobalRefDatabase.class,
+            new NoopSharedRefDatabase() {
+              @Override
+              public CompletableFuture<Boolean> compareAndPutAsync(
+                  Project.NameKey project, Ref currRef, ObjectId newRefValue) {
+                return pendingCompareAndPut;
+              }
+            });
+    objectUnderTest =
+        new SharedRefDatabaseWrapper(
+            asyncGlobalRefDB, new DisabledSharedRefLogger(), metrics, NoOpRefLocker.INSTANCE);
+
+    CompletableFuture<Boolean> result =
+        objectUnderTest.compareAndPutAsync(projectName, ref, ObjectId.zeroId());
+    verify(context, never()).close();
+
+    pendingCompareAndPut.completeExceptionally(
+        new GlobalRefDbSystemError(
+            "Could not write to global-refdb", new Exception("Could not connect")));
+
+    ExecutionException e = assertThrows(ExecutionException.class, result::get);
+    assertThat(e).hasCauseThat().isInstanceOf(GlobalRefDbSystemError.class);
+    verify(context).close();
+    verify(metrics).incrementOperationFailures(Operation.COMPARE_AND_PUT);
+  }
+
+  @Test
+  public void shouldBeUpToDateWithoutQueryingGlobalRefDbWhenHoldingTheLockOfACachedRef()
+      throws Exception {
+    AtomicInteger isUpToDateCalls = new AtomicInteger();
+    objectUnderTest = newWrapperWithRefValuesCache(isUpToDateCalls);
+    Ref currRef = new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, refName, AN_OBJECT_ID);
+    objectUnderTest.compareAndPut(projectName, currRef, ANOTHER_OBJECT_ID);
+    Ref updatedRef = new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, refName, ANOTHER_OBJECT_ID);
+
+    try (AutoCloseable lock = objectUnderTest.lockRef(projectName, refName)) {
+      assertThat(objectUnderTest.isUpToDate(projectName, updatedRef)).isTrue();
+      assertThat(objectUnderTest.isUpToDate(projectName, currRef)).isFalse();
+    }
+    assertThat(isUpToDateCalls.get()).isEqualTo(1);
+
+    assertThat(objectUnderTest.isUpToDate(projectName, updatedRef)).isFalse();
+    assertThat(isUpToDateCalls.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldNotUseCachedRefValuesOfARemovedProject() throws Exception {
+    AtomicInteger isUpToDateCalls = new AtomicInteger();
+    objectUnderTest = newWrapperWithRefValuesCache(isUpToDateCalls);
+    Ref currRef = new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, refName, AN_OBJECT_ID);
+    objectUnderTest.compareAndPut(projectName, currRef, ANOTHER_OBJECT_ID);
+    objectUnderTest.remove(projectName);
+
+    try (AutoCloseable lock = objectUnderTest.lockRef(projectName, refName)) {
+      objectUnderTest.isUpToDate(
+          projectName, new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, refName, ANOTHER_OBJECT_ID));
+    }
+    assertThat(isUpToDateCalls.get()).isEqualTo(1);
+  }
+
+  private SharedRefDatabaseWrapper newWrapperWithRefValuesCache(AtomicInteger isUpToDateCalls) {
+    return new SharedRefDatabaseWrapper(
+        DynamicItem.itemOf(
+            GlobalRefDatabase.class,
+            new NoopSharedRefDatabase() {
+              @Override
+              public boolean isUpToDate(Project.NameKey project, Ref ref) {
+                isUpToDateCalls.incrementAndGet();
+                return false;
+              }
+            }),
+        new DisabledSharedRefLogger(),
+        metrics,
+        NoOpRefLocker.INSTANCE,
+        10L,
+        0L,
+        0L);
+  }
+
+  @Test
+  public void shouldFenceTheUpdatesOfTheRefsLeasedWhilstLocked() throws Exception {
+    List<Long> fencingTokens = new ArrayList<>();
+    InMemoryGlobalRefDatabase globalRefDb =
+        new InMemoryGlobalRefDatabase() {
+          @Override
+          public boolean compareAndPut(
+              Project.NameKey project, Ref currRef, ObjectId newRefValue, long fencingToken) {
+            fencingTokens.add(fencingToken);
+            return super.compareAndPut(project, currRef, newRefValue, fencingToken);
+          }
+        };
+    objectUnderTest = newWrapperWithLockLeases(globalRefDb, 300L);
+    Ref currRef = new ObjectIdRef.Unpeeled(Ref.Storage.NEW, refName, ObjectId.zeroId());
+
+    try (AutoCloseable lock = objectUnderTest.lockRef(projectName, refName)) {
+      Thread.sleep(500L);
+      assertThat(objectUnderTest.compareAndPut(projectName, currRef, AN_OBJECT_ID)).isTrue();
+    }
+    assertThat(fencingTokens).hasSize(1);
+
+    try (GlobalRefLease lease = globalRefDb.leaseRef(projectName, refName, Duration.ofSeconds(1))) {
+      assertThat(lease.getFencingToken()).isGreaterThan(fencingTokens.get(0));
+    }
+  }
+
+  @Test
+  public void shouldFenceTheUpdatesOfTheRefsLeasedWhilstLockedAsynchronously() throws Exception {
+    List<Long> fencingTokens = new ArrayList<>();
+    objectUnderTest =
+        newWrapperWithLockLeases(
+            new InMemoryGlobalRefDatabase() {
+              @Override
+              public boolean compareAndPut(
+                  Project.NameKey project, Ref currRef, ObjectId newRefValue, long fencingToken) {
+                fencingTokens.add(fencingToken);
+                return super.compareAndPut(project, currRef, newRefValue, fencingToken);
+              }
+            },
+            300L);
+    Ref currRef = new ObjectIdRef.Unpeeled(Ref.Storage.NEW, refName, ObjectId.zeroId());
+
+    try (AutoCloseable lock = objectUnderTest.lockRefAsync(projectName, refName).get()) {
+      assertThat(objectUnderTest.compareAndPut(projectName, currRef, AN_OBJECT_ID)).isTrue();
+    }
+    assertThat(fencingTokens).hasSize(1);
+  }
+
+  @Test
+  public void shouldLockTheRefsWhenTheGlobalRefDbDoesNotSupportLeases() throws Exception {
+    AtomicInteger lockRefCalls = new AtomicInteger();
+    objectUnderTest =
+        newWrapperWithLockLeases(
+            new NoopSharedRefDatabase() {
+              @Override
+              public GlobalRefLease leaseRef(
+                  Project.NameKey project, String refName, Duration ttl) {
+                throw new UnsupportedOperationException();
+              }
+
+              @Override
+              public AutoCloseable lockRef(Project.NameKey project, String refName) {
+                lockRefCalls.incrementAndGet();
+                return () -> {};
+              }
+            },
+            300L);
+
+    try (AutoCloseable lock = objectUnderTest.lockRef(projectName, refName)) {
+      assertThat(lockRefCalls.get()).isEqualTo(1);
+    }
+    verify(metrics, never()).incrementOperationFailures(Operation.LOCK_REF);
+  }
+
+  @Test
+  public void shouldRenewTheLeasesOnlyWhilstHeld() throws Exception {
+    AtomicInteger renewCalls = new AtomicInteger();
+    objectUnderTest =
+        newWrapperWithLockLeases(
+            new NoopSharedRefDatabase() {
+              @Override
+              public GlobalRefLease leaseRef(
+                  Project.NameKey project, String refName, Duration ttl) {
+                return new GlobalRefLease() {
+                  @Override
+                  public long getFencingToken() {
+                    return 1L;
+                  }
+
+                  @Override
+                  public void renew() {
+                    renewCalls.incrementAndGet();
+                  }
+
+                  @Override
+                  public void close() {}
+                };
+              }
+            },
+            30L);
+    assertThat(objectUnderTest.leaseRenewalThreads()).isEqualTo(0);
+
+    try (AutoCloseable lock = objectUnderTest.lockRef(projectName, refName)) {
+      Thread.sleep(50L);
+      assertThat(renewCalls.get()).isGreaterThan(0);
+      assertThat(objectUnderTest.leaseRenewalThreads()).isEqualTo(1);
+    }
+    int renewCallsAfterRelease = renewCalls.get();
+    Thread.sleep(200L);
+
+    assertThat(renewCalls.get()).isEqualTo(renewCallsAfterRelease);
+    assertThat(objectUnderTest.leaseRenewalThreads()).isEqualTo(0);
+  }
+
+  private SharedRefDatabaseWrapper newWrapperWithLockLeases(
+      GlobalRefDatabase globalRefDb, long lockLeaseTtlMsec) {
+    return new SharedRefDatabaseWrapper(
+        DynamicItem.itemOf(GlobalRefDatabase.class, globalRefDb),
+        new DisabledSharedRefLogger(),
+        metrics,
+        NoOpRefLocker.INSTANCE,
+        lockLeaseTtlMsec);
+  }
+
+  @Test
+  public void shouldNotQueryGlobalRefDbAgainForRefsKnownToBeAbsent() {
+    AtomicInteger existsCalls = new AtomicInteger();
+    objectUnderTest = newWrapperWithAbsentRefsCache(existsCalls);
+
+    assertThat(objectUnderTest.exists(projectName, refName)).isFalse();
+    assertThat(objectUnderTest.exists(projectName, refName)).isFalse();
+    assertThat(existsCalls.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldQueryGlobalRefDbAgainForAbsentRefsUpdatedByThisNode() {
+    AtomicInteger existsCalls = new AtomicInteger();
+    objectUnderTest = newWrapperWithAbsentRefsCache(existsCalls);
+    objectUnderTest.exists(projectName, refName);
+
+    objectUnderTest.compareAndPut(
+        projectName,
+        new ObjectIdRef.Unpeeled(Ref.Storage.NEW, refName, ObjectId.zeroId()),
+        AN_OBJECT_ID);
+
+    objectUnderTest.exists(projectName, refName);
+    assertThat(existsCalls.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldQueryGlobalRefDbAgainForAbsentRefsOfARemovedProject() {
+    AtomicInteger existsCalls = new AtomicInteger();
+    objectUnderTest = newWrapperWithAbsentRefsCache(existsCalls);
+    objectUnderTest.exists(projectName, refName);
+
+    objectUnderTest.remove(projectName);
+
+    objectUnderTest.exists(projectName, refName);
+    assertThat(existsCalls.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldCheckTheStateOfRefsKnownToBeAbsentWithoutQueryingGlobalRefDb()
+      throws Exception {
+    AtomicInteger existsCalls = new AtomicInteger();
+    objectUnderTest = newWrapperWithAbsentRefsCache(existsCalls);
+    List<Ref> refs = List.of(new ObjectIdRef.Unpeeled(Ref.Storage.LOOSE, refName, AN_OBJECT_ID));
+
+    assertThat(objectUnderTest.checkState(projectName, refs))
+        .containsExactly(refName, GlobalRefState.MISSING);
+    assertThat(objectUnderTest.checkState(projectName, refs))
+        .containsExactly(refName, GlobalRefState.MISSING);
+    assertThat(objectUnderTest.exists(projectName, refName)).isFalse();
+    assertThat(existsCalls.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldCheckTheStateOfRefsToBeCreatedInGlobalRefDb() throws Exception {
+    AtomicInteger existsCalls = new AtomicInteger();
+    objectUnderTest = newWrapperWithAbsentRefsCache(existsCalls);
+    List<Ref> refs = List.of(new ObjectIdRef.Unpeeled(Ref.Storage.NEW, refName, ObjectId.zeroId()));
+
+    objectUnderTest.checkState(projectName, refs);
+    objectUnderTest.checkState(projectName, refs);
+    assertThat(existsCalls.get()).isEqualTo(2);
+  }
+
+  private SharedRefDatabaseWrapper newWrapperWithAbsentRefsCache(AtomicInteger existsCalls) {
+    return new SharedRefDatabaseWrapper(
+        DynamicItem.itemOf(
+            GlobalRefDatabase.class,
+            new NoopSharedRefDatabase() {
+              @Override
+              public boolean isUpToDate(Project.NameKey project, Ref ref) {
+                return false;
+              }
+
+              @Override
+              public boolean exists(Project.NameKey project, String refName) {
+                existsCalls.incrementAndGet();
+                return false;
+              }
+            }),
+        new DisabledSharedRefLogger(),
+        metrics,
+        NoOpRefLocker.INSTANCE,
+        0L,
+        10L,
+        60000L);
   }
 }
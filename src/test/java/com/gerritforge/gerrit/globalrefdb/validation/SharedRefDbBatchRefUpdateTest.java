@@ -20,6 +20,7 @@ import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.lenient;
@@ -28,12 +29,17 @@ import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 import com.gerritforge.gerrit.globalrefdb.DraftCommentEventsEnabledProvider;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefState;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefUpdate;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.RefFixture;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement;
 import com.google.common.collect.ImmutableSet;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 import org.eclipse.jgit.lib.BatchRefUpdate;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
@@ -52,6 +58,7 @@ import org.junit.runner.RunWith;
 import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 @RunWith(MockitoJUnitRunner.Silent.class)
 public class SharedRefDbBatchRefUpdateTest implements RefFixture {
@@ -118,6 +125,11 @@ public class SharedRefDbBatchRefUpdateTest implements RefFixture {
 
     lenient().when(refDatabase.exactRef(A_TEST_REF_NAME)).thenReturn(oldRef).thenReturn(newRef);
     lenient().when(refDatabase.findRef(A_TEST_REF_NAME)).thenReturn(oldRef).thenReturn(newRef);
+    lenient()
+        .when(refDatabase.exactRef(new String[] {A_TEST_REF_NAME}))
+        .thenReturn(Map.of(A_TEST_REF_NAME, oldRef))
+        .thenReturn(Map.of(A_TEST_REF_NAME, oldRef))
+        .thenReturn(Map.of(A_TEST_REF_NAME, newRef));
 
     sharedRefDbRefUpdate = getSharedRefDbBatchRefUpdateWithDefaultPolicyEnforcement();
 
@@ -129,17 +141,24 @@ public class SharedRefDbBatchRefUpdateTest implements RefFixture {
     setMockRequiredReturnValues();
 
     // When compareAndPut against sharedDb succeeds
-    doReturn(true).when(sharedRefDb).isUpToDate(A_TEST_PROJECT_NAME_KEY, oldRef);
-    doReturn(true)
+    doAnswer(globalRefStates(GlobalRefState.UP_TO_DATE))
         .when(sharedRefDb)
-        .compareAndPut(eq(A_TEST_PROJECT_NAME_KEY), refEquals(oldRef), eq(newRef.getObjectId()));
+        .checkState(eq(A_TEST_PROJECT_NAME_KEY), any());
+    doReturn(Map.of(A_TEST_REF_NAME, true))
+        .when(sharedRefDb)
+        .compareAndPutAll(eq(A_TEST_PROJECT_NAME_KEY), updatesEqual(oldRef, newRef.getObjectId()));
     sharedRefDbRefUpdate.execute(revWalk, progressMonitor, Collections.emptyList());
     verify(sharedRefDb)
-        .compareAndPut(eq(A_TEST_PROJECT_NAME_KEY), refEquals(oldRef), eq(newRef.getObjectId()));
+        .compareAndPutAll(eq(A_TEST_PROJECT_NAME_KEY), updatesEqual(oldRef, newRef.getObjectId()));
   }
 
-  private Ref refEquals(Ref oldRef) {
-    return argThat(new RefMatcher(oldRef));
+  private List<GlobalRefUpdate> updatesEqual(Ref oldRef, ObjectId newValue) {
+    RefMatcher refMatcher = new RefMatcher(oldRef);
+    return argThat(
+        updates ->
+            updates.size() == 1
+                && refMatcher.matches(updates.get(0).getCurrRef())
+                && newValue.equals(updates.get(0).getNewRefValue()));
   }
 
   @Test(expected = IOException.class)
@@ -147,7 +166,7 @@ public class SharedRefDbBatchRefUpdateTest implements RefFixture {
     sharedRefDbRefUpdate = getSharedRefDbBatchRefUpdateWithMockedValidator();
     doThrow(new IOException("IO Test Exception"))
         .when(batchRefUpdateValidator)
-        .executeBatchUpdateWithValidation(any(), any(), any());
+        .executeBatchUpdateWithValidation(any(), any(), any(), any());
 
     sharedRefDbRefUpdate.execute(revWalk, progressMonitor, Collections.emptyList());
   }
@@ -155,8 +174,9 @@ public class SharedRefDbBatchRefUpdateTest implements RefFixture {
   @Test
   public void executeSuccessfullyWithNoExceptionsWhenOutOfSync() throws IOException {
     setMockRequiredReturnValues();
-    doReturn(true).when(sharedRefDb).exists(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME);
-    doReturn(false).when(sharedRefDb).isUpToDate(A_TEST_PROJECT_NAME_KEY, oldRef);
+    doAnswer(globalRefStates(GlobalRefState.OUT_OF_SYNC))
+        .when(sharedRefDb)
+        .checkState(eq(A_TEST_PROJECT_NAME_KEY), any());
 
     sharedRefDbRefUpdate.execute(revWalk, progressMonitor, Collections.emptyList());
 
@@ -202,6 +222,13 @@ public class SharedRefDbBatchRefUpdateTest implements RefFixture {
         batchRefValidatorFactory, A_TEST_PROJECT_NAME, refDatabase, ImmutableSet.of());
   }
 
+  private static Answer<Map<String, GlobalRefState>> globalRefStates(GlobalRefState state) {
+    return invocation -> {
+      Collection<Ref> refs = invocation.getArgument(1);
+      return refs.stream().collect(Collectors.toMap(Ref::getName, ref -> state));
+    };
+  }
+
   protected static class RefMatcher implements ArgumentMatcher<Ref> {
     private Ref left;
 
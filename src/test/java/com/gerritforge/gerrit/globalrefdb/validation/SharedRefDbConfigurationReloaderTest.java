@@ -0,0 +1,90 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDbConfiguration.Projects;
+import com.google.gerrit.entities.Project;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.util.FS;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SharedRefDbConfigurationReloaderTest {
+  private static final Project.NameKey A_PROJECT = Project.nameKey("a-project");
+  private static final Project.NameKey ANOTHER_PROJECT = Project.nameKey("another-project");
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File configFile;
+  private SharedRefDbConfiguration configuration;
+  private SharedRefDbConfigurationReloader objectUnderTest;
+
+  @Before
+  public void setup() throws IOException {
+    configFile = tempFolder.newFile("global-refdb.config");
+    writeProjectPattern(A_PROJECT);
+    configuration =
+        new SharedRefDbConfiguration(new FileBasedConfig(configFile, FS.DETECTED), "testplugin");
+    objectUnderTest = new SharedRefDbConfigurationReloader(configuration);
+  }
+
+  @Test
+  public void shouldApplyModifiedConfigurationFile() throws IOException {
+    ProjectsFilter projectsFilter = new ProjectsFilter(configuration);
+    assertThat(projectsFilter.matches(A_PROJECT)).isTrue();
+
+    writeProjectPattern(ANOTHER_PROJECT);
+    objectUnderTest.reloadIfOutdated();
+
+    assertThat(projectsFilter.matches(A_PROJECT)).isFalse();
+    assertThat(projectsFilter.matches(ANOTHER_PROJECT)).isTrue();
+  }
+
+  @Test
+  public void shouldKeepCurrentSettingsWhenConfigurationFileIsInvalid() throws IOException {
+    ProjectsFilter projectsFilter = new ProjectsFilter(configuration);
+
+    Files.write(configFile.toPath(), "[projects\n".getBytes(StandardCharsets.UTF_8));
+    objectUnderTest.reloadIfOutdated();
+
+    assertThat(projectsFilter.matches(A_PROJECT)).isTrue();
+  }
+
+  @Test
+  public void shouldKeepCurrentSettingsWhenProjectPatternIsInvalid() throws IOException {
+    ProjectsFilter projectsFilter = new ProjectsFilter(configuration);
+
+    writeProjectPattern(Project.nameKey("^(" + ANOTHER_PROJECT.get()));
+    objectUnderTest.reloadIfOutdated();
+
+    assertThat(projectsFilter.matches(A_PROJECT)).isTrue();
+    assertThat(configuration.projects().getPatterns()).containsExactly(A_PROJECT.get());
+  }
+
+  private void writeProjectPattern(Project.NameKey project) throws IOException {
+    Files.write(
+        configFile.toPath(),
+        String.format("[%s]\n\t%s = %s\n", Projects.SECTION, Projects.PATTERN_KEY, project.get())
+            .getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,118 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+
+import com.gerritforge.gerrit.globalrefdb.validation.RefUpdateValidator.NoParameterFunction;
+import com.gerritforge.gerrit.globalrefdb.validation.RefUpdateValidator.OneParameterFunction;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.RefFixture;
+import com.google.common.collect.ImmutableSet;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.RefUpdate.Result;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SharedRefDbRefUpdateTest implements RefFixture {
+
+  @Rule public TestName nameRule = new TestName();
+
+  @Mock RefUpdateValidator.Factory refUpdateValidatorFactory;
+  @Mock RefUpdateValidator refUpdateValidator;
+
+  private InMemoryRepository repository;
+  private TestRepository<InMemoryRepository> repo;
+  private RevCommit createdCommit;
+  private RevCommit concurrentCommit;
+
+  @Override
+  public String testBranch() {
+    return "branch_" + nameRule.getMethodName();
+  }
+
+  @Before
+  public void setup() throws Exception {
+    repository = new InMemoryRepository(new DfsRepositoryDescription(A_TEST_PROJECT_NAME));
+    repo = new TestRepository<>(repository);
+    createdCommit = repo.commit().create();
+    concurrentCommit = repo.commit().create();
+    doReturn(refUpdateValidator).when(refUpdateValidatorFactory).create(any(), any(), any());
+  }
+
+  @Test
+  public void shouldDeleteTheCreatedRefWhenRollingBackALockFreeCreation() throws Exception {
+    String refName = aBranchRef();
+    doAnswer(
+            invocation -> {
+              assertThat(invocation.<NoParameterFunction<Result>>getArgument(1).invoke())
+                  .isEqualTo(Result.NEW);
+              return invocation
+                  .<OneParameterFunction<ObjectId, Result>>getArgument(2)
+                  .invoke(ObjectId.zeroId());
+            })
+        .when(refUpdateValidator)
+        .executeRefUpdate(any(), any(), any());
+
+    newSharedRefDbRefUpdate(refName).update();
+
+    assertThat(repository.exactRef(refName)).isNull();
+  }
+
+  @Test
+  public void shouldNotDeleteARefUpdatedConcurrentlyWhenRollingBackALockFreeCreation()
+      throws Exception {
+    String refName = aBranchRef();
+    doAnswer(
+            invocation -> {
+              invocation.<NoParameterFunction<Result>>getArgument(1).invoke();
+              repo.update(refName, concurrentCommit);
+              return invocation
+                  .<OneParameterFunction<ObjectId, Result>>getArgument(2)
+                  .invoke(ObjectId.zeroId());
+            })
+        .when(refUpdateValidator)
+        .executeRefUpdate(any(), any(), any());
+
+    assertThat(newSharedRefDbRefUpdate(refName).update()).isEqualTo(Result.LOCK_FAILURE);
+
+    assertThat(repository.exactRef(refName).getObjectId()).isEqualTo(concurrentCommit);
+  }
+
+  private SharedRefDbRefUpdate newSharedRefDbRefUpdate(String refName) throws Exception {
+    RefUpdate refUpdate = repository.getRefDatabase().newUpdate(refName, false);
+    refUpdate.setExpectedOldObjectId(ObjectId.zeroId());
+    refUpdate.setNewObjectId(createdCommit);
+    return new SharedRefDbRefUpdate(
+        refUpdateValidatorFactory,
+        A_TEST_PROJECT_NAME,
+        refUpdate,
+        repository.getRefDatabase(),
+        ImmutableSet.of());
+  }
+}
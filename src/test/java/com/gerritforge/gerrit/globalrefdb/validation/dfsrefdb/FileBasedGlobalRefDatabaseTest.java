@@ -0,0 +1,232 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileBasedGlobalRefDatabaseTest implements RefFixture {
+  private static final String A_VALUE_NAME = "a-value";
+  private static final long COMPACTION_THRESHOLD = 10L;
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private Path logFile;
+  private FileBasedGlobalRefDatabase objectUnderTest;
+
+  @Before
+  public void setup() throws IOException {
+    logFile = tempFolder.getRoot().toPath().resolve("global-refdb.log");
+    objectUnderTest = newFileBasedGlobalRefDatabase();
+  }
+
+  @After
+  public void teardown() throws IOException {
+    objectUnderTest.close();
+  }
+
+  @Test
+  public void shouldRestoreRefsAndValuesAfterReopening() throws IOException {
+    objectUnderTest.compareAndPut(
+        A_TEST_PROJECT_NAME_KEY, nullRef(A_TEST_REF_NAME), AN_OBJECT_ID_1);
+    objectUnderTest.compareAndPut(
+        A_TEST_PROJECT_NAME_KEY, newRef(A_TEST_REF_NAME, AN_OBJECT_ID_1), AN_OBJECT_ID_2);
+    objectUnderTest.put(A_TEST_PROJECT_NAME_KEY, A_VALUE_NAME, 42L);
+
+    reopen();
+
+    assertThat(
+            objectUnderTest.isUpToDate(
+                A_TEST_PROJECT_NAME_KEY, newRef(A_TEST_REF_NAME, AN_OBJECT_ID_2)))
+        .isTrue();
+    assertThat(objectUnderTest.get(A_TEST_PROJECT_NAME_KEY, A_VALUE_NAME, Long.class))
+        .hasValue(42L);
+  }
+
+  @Test
+  public void shouldNotPersistFailedCompareAndPut() throws IOException {
+    objectUnderTest.compareAndPut(
+        A_TEST_PROJECT_NAME_KEY, nullRef(A_TEST_REF_NAME), AN_OBJECT_ID_1);
+    long logSize = Files.size(logFile);
+
+    assertThat(
+            objectUnderTest.compareAndPut(
+                A_TEST_PROJECT_NAME_KEY, newRef(A_TEST_REF_NAME, AN_OBJECT_ID_2), AN_OBJECT_ID_3))
+        .isFalse();
+    assertThat(Files.size(logFile)).isEqualTo(logSize);
+  }
+
+  @Test
+  public void shouldRestoreProjectRemoval() throws IOException {
+    objectUnderTest.compareAndPut(
+        A_TEST_PROJECT_NAME_KEY, nullRef(A_TEST_REF_NAME), AN_OBJECT_ID_1);
+    objectUnderTest.remove(A_TEST_PROJECT_NAME_KEY);
+
+    reopen();
+
+    assertThat(objectUnderTest.exists(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)).isFalse();
+  }
+
+  @Test
+  public void shouldCompactTheLogKeepingTheLatestState() throws Exception {
+    objectUnderTest.compareAndPut(
+        A_TEST_PROJECT_NAME_KEY, nullRef(A_TEST_REF_NAME), AN_OBJECT_ID_1);
+    for (long i = 0; i < COMPACTION_THRESHOLD - 1; i++) {
+      objectUnderTest.put(A_TEST_PROJECT_NAME_KEY, A_VALUE_NAME, i);
+    }
+    long logSizeBeforeCompaction = Files.size(logFile);
+
+    objectUnderTest.put(A_TEST_PROJECT_NAME_KEY, A_VALUE_NAME, COMPACTION_THRESHOLD - 1);
+    objectUnderTest.awaitCompaction();
+    assertThat(Files.size(logFile)).isLessThan(logSizeBeforeCompaction);
+
+    reopen();
+
+    assertThat(objectUnderTest.exists(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)).isTrue();
+    assertThat(objectUnderTest.get(A_TEST_PROJECT_NAME_KEY, A_VALUE_NAME, Long.class))
+        .hasValue(COMPACTION_THRESHOLD - 1);
+  }
+
+  @Test
+  public void shouldKeepTheUpdatesAppendedDuringTheCompaction() throws Exception {
+    long updates = COMPACTION_THRESHOLD * 100;
+    for (long i = 0; i < updates; i++) {
+      objectUnderTest.put(A_TEST_PROJECT_NAME_KEY, A_VALUE_NAME + i % 3, i);
+      if (i % 7 == 0) {
+        objectUnderTest.remove(A_TEST_PROJECT_NAME_KEY);
+      }
+    }
+    objectUnderTest.awaitCompaction();
+    objectUnderTest.put(A_TEST_PROJECT_NAME_KEY, A_VALUE_NAME, updates);
+
+    reopen();
+
+    assertThat(objectUnderTest.get(A_TEST_PROJECT_NAME_KEY, A_VALUE_NAME, Long.class))
+        .hasValue(updates);
+    assertThat(objectUnderTest.get(A_TEST_PROJECT_NAME_KEY, A_VALUE_NAME + 1, Long.class))
+        .hasValue(updates - 3);
+    assertThat(objectUnderTest.get(A_TEST_PROJECT_NAME_KEY, A_VALUE_NAME + 2, Long.class))
+        .hasValue(updates - 2);
+    assertThat(Files.exists(logFile.resolveSibling(logFile.getFileName() + ".compacting")))
+        .isFalse();
+  }
+
+  @Test
+  public void shouldDiscardIncompleteRecordAtTheEndOfTheLog() throws IOException {
+    objectUnderTest.compareAndPut(
+        A_TEST_PROJECT_NAME_KEY, nullRef(A_TEST_REF_NAME), AN_OBJECT_ID_1);
+    objectUnderTest.put(A_TEST_PROJECT_NAME_KEY, A_VALUE_NAME, "a-string");
+    objectUnderTest.close();
+    try (FileChannel log = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+      log.truncate(log.size() - 1);
+    }
+
+    objectUnderTest = newFileBasedGlobalRefDatabase();
+
+    assertThat(objectUnderTest.exists(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)).isTrue();
+    assertThat(objectUnderTest.get(A_TEST_PROJECT_NAME_KEY, A_VALUE_NAME, String.class)).isEmpty();
+    objectUnderTest.put(A_TEST_PROJECT_NAME_KEY, A_VALUE_NAME, "another-string");
+
+    reopen();
+
+    assertThat(objectUnderTest.get(A_TEST_PROJECT_NAME_KEY, A_VALUE_NAME, String.class))
+        .hasValue("another-string");
+  }
+
+  @Test
+  public void shouldRejectUnsupportedValueTypes() {
+    assertThrows(
+        GlobalRefDbSystemError.class,
+        () -> objectUnderTest.put(A_TEST_PROJECT_NAME_KEY, A_VALUE_NAME, new Object()));
+  }
+
+  @Test
+  public void shouldRejectOversizedStringsWithoutUpdatingTheState() throws IOException {
+    objectUnderTest.put(A_TEST_PROJECT_NAME_KEY, A_VALUE_NAME, "a-string");
+    long logSize = Files.size(logFile);
+
+    assertThrows(
+        GlobalRefDbSystemError.class,
+        () ->
+            objectUnderTest.put(
+                A_TEST_PROJECT_NAME_KEY,
+                A_VALUE_NAME,
+                "x".repeat(FileBasedGlobalRefDatabase.MAX_STRING_LENGTH + 1)));
+
+    assertThat(objectUnderTest.get(A_TEST_PROJECT_NAME_KEY, A_VALUE_NAME, String.class))
+        .hasValue("a-string");
+    assertThat(Files.size(logFile)).isEqualTo(logSize);
+    objectUnderTest.put(A_TEST_PROJECT_NAME_KEY, A_VALUE_NAME, "another-string");
+  }
+
+  @Test
+  public void shouldRejectNewEntriesOnceFullWithoutAppendingToTheLog() throws IOException {
+    objectUnderTest.close();
+    objectUnderTest =
+        new FileBasedGlobalRefDatabase(
+            logFile,
+            new InMemoryGlobalRefDatabase(1, 10, TimeUnit.MILLISECONDS, 1),
+            false,
+            COMPACTION_THRESHOLD);
+    objectUnderTest.put(A_TEST_PROJECT_NAME_KEY, A_VALUE_NAME, 1L);
+    long logSize = Files.size(logFile);
+
+    assertThrows(
+        GlobalRefDbSystemError.class,
+        () ->
+            objectUnderTest.compareAndPut(
+                A_TEST_PROJECT_NAME_KEY, nullRef(A_TEST_REF_NAME), AN_OBJECT_ID_1));
+    assertThrows(
+        GlobalRefDbSystemError.class,
+        () -> objectUnderTest.put(A_TEST_PROJECT_NAME_KEY, "another-value", 2L));
+
+    assertThat(Files.size(logFile)).isEqualTo(logSize);
+    assertThat(objectUnderTest.exists(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)).isFalse();
+    objectUnderTest.put(A_TEST_PROJECT_NAME_KEY, A_VALUE_NAME, 3L);
+
+    reopen();
+
+    assertThat(objectUnderTest.exists(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)).isFalse();
+    assertThat(objectUnderTest.get(A_TEST_PROJECT_NAME_KEY, A_VALUE_NAME, Long.class)).hasValue(3L);
+  }
+
+  @Test
+  public void shouldRejectOpeningALogOwnedByAnotherInstance() {
+    assertThrows(IOException.class, this::newFileBasedGlobalRefDatabase);
+  }
+
+  private void reopen() throws IOException {
+    objectUnderTest.close();
+    objectUnderTest = newFileBasedGlobalRefDatabase();
+  }
+
+  private FileBasedGlobalRefDatabase newFileBasedGlobalRefDatabase() throws IOException {
+    return new FileBasedGlobalRefDatabase(
+        logFile, new InMemoryGlobalRefDatabase(), false, COMPACTION_THRESHOLD);
+  }
+}
@@ -0,0 +1,271 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefLease;
+import com.google.common.base.Ticker;
+import java.time.Duration;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class InMemoryGlobalRefDatabaseTest implements RefFixture {
+  private static final String ANOTHER_REF_NAME = "refs/heads/another";
+
+  private static final Duration LEASE_TTL = Duration.ofSeconds(10);
+
+  private final AtomicLong nanos = new AtomicLong();
+  private final Ticker ticker =
+      new Ticker() {
+        @Override
+        public long read() {
+          return nanos.get();
+        }
+      };
+
+  private InMemoryGlobalRefDatabase objectUnderTest =
+      new InMemoryGlobalRefDatabase(1, 10, TimeUnit.MILLISECONDS, 2, ticker);
+
+  @Test
+  public void compareAndPutShouldCompareTheRefValues() {
+    assertThat(
+            objectUnderTest.compareAndPut(
+                A_TEST_PROJECT_NAME_KEY, nullRef(A_TEST_REF_NAME), AN_OBJECT_ID_1))
+        .isTrue();
+
+    assertThat(
+            objectUnderTest.compareAndPut(
+                A_TEST_PROJECT_NAME_KEY, newRef(A_TEST_REF_NAME, AN_OBJECT_ID_2), AN_OBJECT_ID_3))
+        .isFalse();
+    assertThat(
+            objectUnderTest.compareAndPut(
+                A_TEST_PROJECT_NAME_KEY,
+                newRef(A_TEST_REF_NAME, AN_OBJECT_ID_1.copy()),
+                AN_OBJECT_ID_2))
+        .isTrue();
+  }
+
+  @Test
+  public void removeShouldClearRefsAndValuesOfTheProject() throws Exception {
+    objectUnderTest.compareAndPut(
+        A_TEST_PROJECT_NAME_KEY, nullRef(A_TEST_REF_NAME), AN_OBJECT_ID_1);
+    objectUnderTest.put(A_TEST_PROJECT_NAME_KEY, ANOTHER_REF_NAME, 1L);
+
+    objectUnderTest.remove(A_TEST_PROJECT_NAME_KEY);
+
+    assertThat(objectUnderTest.exists(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)).isFalse();
+    assertThat(objectUnderTest.get(A_TEST_PROJECT_NAME_KEY, ANOTHER_REF_NAME, Long.class))
+        .isEmpty();
+  }
+
+  @Test
+  public void shouldRejectNewEntriesWhenFull() {
+    objectUnderTest.compareAndPut(
+        A_TEST_PROJECT_NAME_KEY, nullRef(A_TEST_REF_NAME), AN_OBJECT_ID_1);
+    objectUnderTest.put(A_TEST_PROJECT_NAME_KEY, ANOTHER_REF_NAME, 1L);
+
+    assertThrows(
+        GlobalRefDbSystemError.class,
+        () -> objectUnderTest.put(A_TEST_PROJECT_NAME_KEY, A_REF_NAME_OF_A_PATCHSET, 1L));
+    assertThat(
+            objectUnderTest.compareAndPut(
+                A_TEST_PROJECT_NAME_KEY, newRef(A_TEST_REF_NAME, AN_OBJECT_ID_1), AN_OBJECT_ID_2))
+        .isTrue();
+  }
+
+  @Test
+  public void shouldAcceptNewEntriesAfterRemovingAProject() {
+    objectUnderTest.compareAndPut(
+        A_TEST_PROJECT_NAME_KEY, nullRef(A_TEST_REF_NAME), AN_OBJECT_ID_1);
+    objectUnderTest.put(A_TEST_PROJECT_NAME_KEY, ANOTHER_REF_NAME, 1L);
+
+    objectUnderTest.remove(A_TEST_PROJECT_NAME_KEY);
+
+    objectUnderTest.put(A_TEST_PROJECT_NAME_KEY, A_REF_NAME_OF_A_PATCHSET, 1L);
+    assertThat(objectUnderTest.get(A_TEST_PROJECT_NAME_KEY, A_REF_NAME_OF_A_PATCHSET, Long.class))
+        .hasValue(1L);
+  }
+
+  @Test
+  public void shouldNotCountTheEntriesCreatedConcurrentlyWithTheRemovalOfTheProject()
+      throws Exception {
+    InMemoryGlobalRefDatabase unboundedRefDb = new InMemoryGlobalRefDatabase();
+    AtomicBoolean writing = new AtomicBoolean(true);
+    CompletableFuture<Void> remover =
+        CompletableFuture.runAsync(
+            () -> {
+              while (writing.get()) {
+                unboundedRefDb.remove(A_TEST_PROJECT_NAME_KEY);
+              }
+            });
+
+    for (int i = 0; i < 20000; i++) {
+      unboundedRefDb.put(A_TEST_PROJECT_NAME_KEY, ANOTHER_REF_NAME + i, (long) i);
+      unboundedRefDb.compareAndPut(
+          A_TEST_PROJECT_NAME_KEY, nullRef(A_TEST_REF_NAME + i), AN_OBJECT_ID_1);
+    }
+    writing.set(false);
+    remover.join();
+    unboundedRefDb.remove(A_TEST_PROJECT_NAME_KEY);
+
+    assertThat(unboundedRefDb.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void lockRefShouldTimeoutWhenHeldByAnotherThread() throws Exception {
+    try (AutoCloseable lock = objectUnderTest.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)) {
+      CompletableFuture<Boolean> lockedByAnotherThread =
+          CompletableFuture.supplyAsync(() -> lockedByAnotherThread());
+      assertThat(lockedByAnotherThread.join()).isTrue();
+    }
+  }
+
+  @Test
+  public void lockRefsShouldLockRefsSharingTheSameStripeOnce() throws Exception {
+    try (AutoCloseable lock =
+        objectUnderTest.lockRefs(
+            A_TEST_PROJECT_NAME_KEY, new TreeSet<>(List.of(A_TEST_REF_NAME, ANOTHER_REF_NAME)))) {
+      CompletableFuture<Boolean> lockedByAnotherThread =
+          CompletableFuture.supplyAsync(() -> lockedByAnotherThread());
+      assertThat(lockedByAnotherThread.join()).isTrue();
+    }
+
+    CompletableFuture<Boolean> lockedByAnotherThread =
+        CompletableFuture.supplyAsync(() -> lockedByAnotherThread());
+    assertThat(lockedByAnotherThread.join()).isFalse();
+  }
+
+  @Test
+  public void lockProjectShouldExcludeTheLocksOfItsRefs() throws Exception {
+    try (AutoCloseable lock = objectUnderTest.lockProject(A_TEST_PROJECT_NAME_KEY)) {
+      CompletableFuture<Boolean> lockedByAnotherThread =
+          CompletableFuture.supplyAsync(() -> lockedByAnotherThread());
+      assertThat(lockedByAnotherThread.join()).isTrue();
+    }
+
+    try (AutoCloseable lock = objectUnderTest.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)) {
+      CompletableFuture<Boolean> projectLockedByAnotherThread =
+          CompletableFuture.supplyAsync(
+              () -> {
+                try (AutoCloseable projectLock =
+                    objectUnderTest.lockProject(A_TEST_PROJECT_NAME_KEY)) {
+                  return false;
+                } catch (GlobalRefDbLockException e) {
+                  return true;
+                } catch (Exception e) {
+                  throw new IllegalStateException(e);
+                }
+              });
+      assertThat(projectLockedByAnotherThread.join()).isTrue();
+    }
+  }
+
+  @Test
+  public void leaseRefShouldTimeoutWhenHeldByAnotherHolder() throws Exception {
+    try (GlobalRefLease lease =
+        objectUnderTest.leaseRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, LEASE_TTL)) {
+      assertThrows(
+          GlobalRefDbLockException.class,
+          () -> objectUnderTest.leaseRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, LEASE_TTL));
+    }
+
+    try (GlobalRefLease lease =
+        objectUnderTest.leaseRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, LEASE_TTL)) {
+      assertThat(lease.getFencingToken()).isGreaterThan(0L);
+    }
+  }
+
+  @Test
+  public void leaseRefShouldBeTakenOverOnceExpired() throws Exception {
+    GlobalRefLease expiredLease =
+        objectUnderTest.leaseRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, LEASE_TTL);
+    nanos.addAndGet(LEASE_TTL.toNanos());
+
+    try (GlobalRefLease lease =
+        objectUnderTest.leaseRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, LEASE_TTL)) {
+      assertThat(lease.getFencingToken()).isGreaterThan(expiredLease.getFencingToken());
+      assertThrows(GlobalRefDbLockException.class, expiredLease::renew);
+
+      expiredLease.close();
+      assertThrows(
+          GlobalRefDbLockException.class,
+          () -> objectUnderTest.leaseRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, LEASE_TTL));
+    }
+  }
+
+  @Test
+  public void renewShouldExtendTheLease() throws Exception {
+    try (GlobalRefLease lease =
+        objectUnderTest.leaseRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, LEASE_TTL)) {
+      nanos.addAndGet(LEASE_TTL.toNanos() - 1);
+      lease.renew();
+      nanos.addAndGet(LEASE_TTL.toNanos() - 1);
+
+      assertThat(
+              objectUnderTest.compareAndPut(
+                  A_TEST_PROJECT_NAME_KEY,
+                  nullRef(A_TEST_REF_NAME),
+                  AN_OBJECT_ID_1,
+                  lease.getFencingToken()))
+          .isTrue();
+    }
+  }
+
+  @Test
+  public void compareAndPutShouldRejectTheFencingTokenOfALostLease() throws Exception {
+    GlobalRefLease expiredLease =
+        objectUnderTest.leaseRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, LEASE_TTL);
+    nanos.addAndGet(LEASE_TTL.toNanos());
+
+    assertThat(
+            objectUnderTest.compareAndPut(
+                A_TEST_PROJECT_NAME_KEY,
+                nullRef(A_TEST_REF_NAME),
+                AN_OBJECT_ID_1,
+                expiredLease.getFencingToken()))
+        .isFalse();
+
+    try (GlobalRefLease lease =
+        objectUnderTest.leaseRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, LEASE_TTL)) {
+      assertThat(
+              objectUnderTest.compareAndPut(
+                  A_TEST_PROJECT_NAME_KEY,
+                  nullRef(A_TEST_REF_NAME),
+                  AN_OBJECT_ID_1,
+                  expiredLease.getFencingToken()))
+          .isFalse();
+      assertThat(objectUnderTest.exists(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)).isFalse();
+    }
+  }
+
+  private boolean lockedByAnotherThread() {
+    try (AutoCloseable lock = objectUnderTest.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)) {
+      return false;
+    } catch (GlobalRefDbLockException e) {
+      return true;
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,87 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement.Policy;
+import org.junit.Test;
+
+public class RefPolicyTrieTest {
+
+  @Test
+  public void shouldNotMatchAnyRefWhenEmpty() {
+    assertThat(new RefPolicyTrie.Builder().build().getPolicy("refs/heads/master")).isNull();
+  }
+
+  @Test
+  public void shouldMatchLiteralPatterns() {
+    RefPolicyTrie trie =
+        new RefPolicyTrie.Builder().add("refs/meta/config", Policy.EXCLUDE).build();
+
+    assertThat(trie.getPolicy("refs/meta/config")).isEqualTo(Policy.EXCLUDE);
+    assertThat(trie.getPolicy("refs/meta/config/foo")).isNull();
+    assertThat(trie.getPolicy("refs/meta")).isNull();
+  }
+
+  @Test
+  public void wildcardShouldMatchOneOrMoreSegments() {
+    RefPolicyTrie trie =
+        new RefPolicyTrie.Builder()
+            .add("refs/changes/*/meta", Policy.INCLUDE)
+            .add("refs/users/*", Policy.EXCLUDE)
+            .build();
+
+    assertThat(trie.getPolicy("refs/changes/01/1/meta")).isEqualTo(Policy.INCLUDE);
+    assertThat(trie.getPolicy("refs/changes/01/meta")).isEqualTo(Policy.INCLUDE);
+    assertThat(trie.getPolicy("refs/changes/meta")).isNull();
+    assertThat(trie.getPolicy("refs/changes/01/1/1")).isNull();
+    assertThat(trie.getPolicy("refs/users/01/1000001")).isEqualTo(Policy.EXCLUDE);
+    assertThat(trie.getPolicy("refs/users")).isNull();
+  }
+
+  @Test
+  public void mostSpecificPatternShouldWin() {
+    RefPolicyTrie trie =
+        new RefPolicyTrie.Builder()
+            .add("refs/changes/*", Policy.EXCLUDE)
+            .add("refs/changes/*/meta", Policy.INCLUDE)
+            .add("refs/*/meta", Policy.INCLUDE_MUTABLE)
+            .build();
+
+    assertThat(trie.getPolicy("refs/changes/01/1/meta")).isEqualTo(Policy.INCLUDE);
+    assertThat(trie.getPolicy("refs/changes/01/1/1")).isEqualTo(Policy.EXCLUDE);
+    assertThat(trie.getPolicy("refs/heads/meta")).isEqualTo(Policy.INCLUDE_MUTABLE);
+  }
+
+  @Test
+  public void excludeShouldWinBetweenEquallySpecificPatterns() {
+    RefPolicyTrie trie =
+        new RefPolicyTrie.Builder()
+            .add("refs/*/meta", Policy.INCLUDE)
+            .add("refs/changes/*", Policy.EXCLUDE)
+            .build();
+
+    assertThat(trie.getPolicy("refs/changes/meta")).isEqualTo(Policy.EXCLUDE);
+  }
+
+  @Test
+  public void shouldRejectThePatternWithDifferentPolicies() {
+    RefPolicyTrie.Builder builder = new RefPolicyTrie.Builder().add("refs/users/*", Policy.INCLUDE);
+
+    assertThrows(IllegalArgumentException.class, () -> builder.add("refs/users/*", Policy.EXCLUDE));
+  }
+}
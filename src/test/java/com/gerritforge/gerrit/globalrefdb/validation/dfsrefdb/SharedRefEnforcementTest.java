@@ -15,6 +15,7 @@
 package com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb;
 
 import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
 
 import com.gerritforge.gerrit.globalrefdb.DraftCommentEventsEnabledProvider;
 import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDbConfiguration;
@@ -23,6 +24,7 @@ import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforceme
 import com.google.common.collect.ImmutableSet;
 import com.google.gerrit.entities.RefNames;
 import java.util.Arrays;
+import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.Ref;
 import org.junit.Before;
@@ -201,6 +203,87 @@ public class SharedRefEnforcementTest implements RefFixture {
         .isEqualTo(Policy.INCLUDE);
   }
 
+  @Test
+  public void refsSharingTheFirstLetterOfIgnoredNamespacesIncludedByDefault() {
+    assertThat(refEnforcement.getPolicy(A_TEST_PROJECT_NAME, "refs/config/foo"))
+        .isEqualTo(Policy.INCLUDE);
+    assertThat(refEnforcement.getPolicy(A_TEST_PROJECT_NAME, "refs/drafts/foo"))
+        .isEqualTo(Policy.INCLUDE);
+    assertThat(refEnforcement.getPolicy(A_TEST_PROJECT_NAME, "refs/")).isEqualTo(Policy.INCLUDE);
+    assertThat(refEnforcement.getPolicy(A_TEST_PROJECT_NAME, "HEAD")).isEqualTo(Policy.INCLUDE);
+  }
+
+  @Test
+  public void projectPolicyShouldFallBackToTheWildcardPolicy() {
+    SharedRefEnforcement refEnforcement =
+        new SharedRefEnforcement(
+            ImmutableSet.of(A_TEST_PROJECT_NAME), ImmutableSet.of(), ImmutableSet.of("*"), false);
+
+    assertThat(refEnforcement.getPolicy(A_TEST_PROJECT_NAME)).isEqualTo(Policy.INCLUDE);
+    assertThat(refEnforcement.getPolicy("another-project")).isEqualTo(Policy.EXCLUDE);
+  }
+
+  @Test
+  public void shouldApplyTheStorageRulesOfRefPatterns() {
+    Config sharedRefDbConfig = new Config();
+    sharedRefDbConfig.setStringList(
+        SharedRefDatabase.SECTION,
+        SharedRefDatabase.STORE_NO_REFS_KEY,
+        SharedRefDatabase.REF,
+        Arrays.asList("refs/users/*"));
+    sharedRefDbConfig.setStringList(
+        SharedRefDatabase.SECTION,
+        SharedRefDatabase.STORE_ALL_REFS_KEY,
+        SharedRefDatabase.REF,
+        Arrays.asList("refs/cache-automerge/*", A_TEST_PROJECT_NAME + ":refs/users/*"));
+
+    SharedRefEnforcement refEnforcement = newRefEnforcement(sharedRefDbConfig);
+
+    assertThat(refEnforcement.getPolicy("another-project", "refs/users/01/1000001"))
+        .isEqualTo(Policy.EXCLUDE);
+    assertThat(refEnforcement.getPolicy(A_TEST_PROJECT_NAME, "refs/users/01/1000001"))
+        .isEqualTo(Policy.INCLUDE);
+    assertThat(refEnforcement.getPolicy("another-project", "refs/cache-automerge/01/1/1"))
+        .isEqualTo(Policy.INCLUDE);
+    assertThat(refEnforcement.getPolicy("another-project", A_REF_NAME_OF_A_PATCHSET))
+        .isEqualTo(Policy.EXCLUDE);
+    assertThat(refEnforcement.getPolicy("another-project", "refs/heads/master"))
+        .isEqualTo(Policy.INCLUDE);
+  }
+
+  @Test
+  public void refPatternsShouldNotIncludeRefsOfProjectsStoringNoRefs() {
+    SharedRefEnforcement refEnforcement =
+        new SharedRefEnforcement(
+            ImmutableSet.of(),
+            ImmutableSet.of(),
+            ImmutableSet.of(A_TEST_PROJECT_NAME),
+            ImmutableSet.of("refs/heads/*"),
+            ImmutableSet.of(),
+            ImmutableSet.of(),
+            false);
+
+    assertThat(refEnforcement.getPolicy(A_TEST_PROJECT_NAME, "refs/heads/master"))
+        .isEqualTo(Policy.EXCLUDE);
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void expectExceptionIfRefPatternStoredInMultipleConfigurations() {
+    Config sharedRefDbConfig = new Config();
+    sharedRefDbConfig.setStringList(
+        SharedRefDatabase.SECTION,
+        SharedRefDatabase.STORE_NO_REFS_KEY,
+        SharedRefDatabase.REF,
+        Arrays.asList("refs/users/*"));
+    sharedRefDbConfig.setStringList(
+        SharedRefDatabase.SECTION,
+        SharedRefDatabase.STORE_MUTABLE_REFS_KEY,
+        SharedRefDatabase.REF,
+        Arrays.asList("refs/users/*"));
+
+    newRefEnforcement(sharedRefDbConfig);
+  }
+
   @Test
   public void regularCommitIncludedByDefault() {
     Ref immutableChangeRef = newRef("refs/heads/stable-2.16", AN_OBJECT_ID_1);
@@ -223,6 +306,74 @@ public class SharedRefEnforcementTest implements RefFixture {
         .isEqualTo(Policy.INCLUDE);
   }
 
+  @Test
+  public void shouldApplyReloadedStorageRules() throws Exception {
+    Config sharedRefDbConfig = new Config();
+    SharedRefDbConfiguration configuration =
+        new SharedRefDbConfiguration(sharedRefDbConfig, "testplugin");
+    SharedRefEnforcement refEnforcement =
+        new SharedRefEnforcement(
+            configuration, new DraftCommentEventsEnabledProvider(sharedRefDbConfig));
+    assertThat(refEnforcement.getPolicy(A_TEST_PROJECT_NAME)).isEqualTo(Policy.INCLUDE_MUTABLE);
+
+    sharedRefDbConfig.setStringList(
+        SharedRefDatabase.SECTION,
+        SharedRefDatabase.STORE_NO_REFS_KEY,
+        SharedRefDatabase.PROJECT,
+        Arrays.asList(A_TEST_PROJECT_NAME));
+    configuration.reload();
+
+    assertThat(refEnforcement.getPolicy(A_TEST_PROJECT_NAME)).isEqualTo(Policy.EXCLUDE);
+  }
+
+  @Test
+  public void shouldKeepCurrentStorageRulesWhenReloadedConfigurationIsInvalid() throws Exception {
+    Config sharedRefDbConfig = new Config();
+    sharedRefDbConfig.setStringList(
+        SharedRefDatabase.SECTION,
+        SharedRefDatabase.STORE_NO_REFS_KEY,
+        SharedRefDatabase.PROJECT,
+        Arrays.asList(A_TEST_PROJECT_NAME));
+    SharedRefDbConfiguration configuration =
+        new SharedRefDbConfiguration(sharedRefDbConfig, "testplugin");
+    SharedRefEnforcement refEnforcement =
+        new SharedRefEnforcement(
+            configuration, new DraftCommentEventsEnabledProvider(sharedRefDbConfig));
+
+    sharedRefDbConfig.setStringList(
+        SharedRefDatabase.SECTION,
+        SharedRefDatabase.STORE_ALL_REFS_KEY,
+        SharedRefDatabase.PROJECT,
+        Arrays.asList(A_TEST_PROJECT_NAME));
+    assertThrows(ConfigInvalidException.class, configuration::reload);
+
+    assertThat(refEnforcement.getPolicy(A_TEST_PROJECT_NAME)).isEqualTo(Policy.EXCLUDE);
+  }
+
+  @Test
+  public void shouldUpdateWithoutLocksTheRefsOfLockFreeProjectsAndPatterns() {
+    Config sharedRefDbConfig = new Config();
+    sharedRefDbConfig.setStringList(
+        SharedRefDatabase.SECTION,
+        SharedRefDatabase.LOCK_FREE_REFS_KEY,
+        SharedRefDatabase.PROJECT,
+        Arrays.asList("lock-free-project"));
+    sharedRefDbConfig.setStringList(
+        SharedRefDatabase.SECTION,
+        SharedRefDatabase.LOCK_FREE_REFS_KEY,
+        SharedRefDatabase.REF,
+        Arrays.asList("refs/changes/*/meta", A_TEST_PROJECT_NAME + ":refs/users/*"));
+
+    SharedRefEnforcement refEnforcement = newRefEnforcement(sharedRefDbConfig);
+
+    assertThat(refEnforcement.isLockFree("lock-free-project", "refs/heads/master")).isTrue();
+    assertThat(refEnforcement.isLockFree("another-project", "refs/changes/01/1/meta")).isTrue();
+    assertThat(refEnforcement.isLockFree("another-project", A_REF_NAME_OF_A_PATCHSET)).isFalse();
+    assertThat(refEnforcement.isLockFree(A_TEST_PROJECT_NAME, "refs/users/01/1000001")).isTrue();
+    assertThat(refEnforcement.isLockFree("another-project", "refs/users/01/1000001")).isFalse();
+    assertThat(refEnforcement.isLockFree("another-project", "refs/heads/master")).isFalse();
+  }
+
   private SharedRefEnforcement newRefEnforcement(Config sharedRefDbConfig) {
     return new SharedRefEnforcement(
         new SharedRefDbConfiguration(sharedRefDbConfig, "testplugin"),